@@ -0,0 +1,12 @@
+package jp.co.fusions.win_proxy_selector.benchmark;
+
+import org.openjdk.jmh.annotations.Threads;
+
+/*****************************************************************************
+ * The select benchmarks with eight threads sharing the selectors, to show
+ * contention on locks and shared caches.
+ ****************************************************************************/
+
+@Threads(8)
+public class MultiThreadSelectBenchmark extends SelectBenchmark {
+}
@@ -0,0 +1,242 @@
+package jp.co.fusions.win_proxy_selector.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jp.co.fusions.win_proxy_selector.selector.fixed.FixedProxySelector;
+import jp.co.fusions.win_proxy_selector.selector.misc.ListProxySelector;
+import jp.co.fusions.win_proxy_selector.selector.misc.ProxyListFallbackSelector;
+import jp.co.fusions.win_proxy_selector.selector.pac.PacProxySelector;
+import jp.co.fusions.win_proxy_selector.selector.pac.UrlPacScriptSource;
+import jp.co.fusions.win_proxy_selector.selector.whitelist.ProxyBypassListSelector;
+
+/*****************************************************************************
+ * Measures ProxySelector.select for the selectors on the hot path. The
+ * fixtures are the PAC scripts of the unit tests, a synthetic corporate PAC
+ * script and a bypass list with 500 entries. Every thread walks through the
+ * same list of URIs, so cached decisions and uncached lookups are mixed like
+ * in an application talking to a few dozen hosts. All PAC scripts are
+ * compiled by PacScriptCompiler, the PAC benchmarks measure the compiled
+ * path.<br>
+ *
+ * Throughput and sample time (latency percentiles) are reported; run with
+ * "-prof gc" for the allocation rate. The concrete subclasses set the number
+ * of threads.
+ ****************************************************************************/
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class SelectBenchmark {
+
+	static final String PAC_FOLDER = "src" + File.separator + "test" + File.separator + "resources"
+			+ File.separator + "pac";
+
+	static final int BYPASS_ENTRIES = 500;
+
+	private static final String PROXIES = "PROXY proxy1.corp.example.invalid:8080; "
+			+ "PROXY proxy2.corp.example.invalid:8080; DIRECT";
+
+	private File corporatePac;
+
+	private ProxySelector simplePac;
+	private ProxySelector multiProxyPac;
+	private ProxySelector corporatePacSelector;
+	private ProxySelector bypassList;
+	private ProxySelector fallback;
+	private ProxySelector list;
+
+	private URI[] uris;
+
+	/*************************************************************************
+	 * Per thread position in the URI list.
+	 ************************************************************************/
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int next;
+
+		URI next(URI[] uris) {
+			URI result = uris[this.next];
+			this.next = this.next + 1 == uris.length ? 0 : this.next + 1;
+			return result;
+		}
+	}
+
+	/*************************************************************************
+	 * Builds the selectors and writes the corporate PAC script.
+	 *
+	 * @throws IOException
+	 *             if the script could not be written.
+	 ************************************************************************/
+
+	@Setup
+	public void setUp() throws IOException {
+		this.corporatePac = File.createTempFile("corporate", ".pac");
+		Files.write(this.corporatePac.toPath(), corporatePacScript().getBytes(StandardCharsets.UTF_8));
+
+		this.simplePac = new PacProxySelector(new UrlPacScriptSource(pacUrl("test1.pac")));
+		this.multiProxyPac = new PacProxySelector(new UrlPacScriptSource(pacUrl("testMultiProxy.pac")));
+		this.corporatePacSelector = new PacProxySelector(
+			new UrlPacScriptSource(this.corporatePac.toURI().toString()));
+
+		ProxySelector proxy = new FixedProxySelector("proxy1.corp.example.invalid", 8080);
+		this.bypassList = new ProxyBypassListSelector(bypassList(), proxy);
+		this.fallback = new ProxyListFallbackSelector(this.multiProxyPac);
+		List<ProxySelector> selectors = new ArrayList<ProxySelector>();
+		selectors.add(this.bypassList);
+		selectors.add(this.multiProxyPac);
+		this.list = new ListProxySelector(selectors, proxy);
+
+		List<URI> uris = new ArrayList<URI>();
+		for (int i = 0; i < 16; i++) {
+			uris.add(URI.create("http://www" + i + ".external" + i + ".example.invalid/index.html"));
+			uris.add(URI.create("https://app" + i + ".dept" + (i * 7) + ".corp.example.invalid/api/v1"));
+			uris.add(URI.create("http://10." + i + ".1." + (i * 3) + ":8080/status"));
+			uris.add(URI.create("https://srv" + i + "-" + (i * 13) + ".corp.example.invalid/"));
+		}
+		this.uris = uris.toArray(new URI[uris.size()]);
+	}
+
+	/*************************************************************************
+	 * Removes the corporate PAC script.
+	 ************************************************************************/
+
+	@TearDown
+	public void tearDown() {
+		this.corporatePac.delete();
+	}
+
+	@Benchmark
+	public List<Proxy> simplePac(Cursor cursor) {
+		return this.simplePac.select(cursor.next(this.uris));
+	}
+
+	@Benchmark
+	public List<Proxy> multiProxyPac(Cursor cursor) {
+		return this.multiProxyPac.select(cursor.next(this.uris));
+	}
+
+	@Benchmark
+	public List<Proxy> corporatePac(Cursor cursor) {
+		return this.corporatePacSelector.select(cursor.next(this.uris));
+	}
+
+	@Benchmark
+	public List<Proxy> bypassList(Cursor cursor) {
+		return this.bypassList.select(cursor.next(this.uris));
+	}
+
+	@Benchmark
+	public List<Proxy> fallback(Cursor cursor) {
+		return this.fallback.select(cursor.next(this.uris));
+	}
+
+	@Benchmark
+	public List<Proxy> list(Cursor cursor) {
+		return this.list.select(cursor.next(this.uris));
+	}
+
+	static String pacUrl(String name) throws IOException {
+		return new File(PAC_FOLDER, name).toURI().toURL().toString();
+	}
+
+	/*************************************************************************
+	 * Builds a bypass list like the ones distributed by group policy: domain
+	 * suffixes, single hosts, wildcard host names and private networks.
+	 *
+	 * @return the bypass list with BYPASS_ENTRIES entries.
+	 ************************************************************************/
+
+	static String bypassList() {
+		List<String> entries = new ArrayList<String>(Arrays.asList("<local>", "localhost", "127.0.0.1"));
+		for (int i = 0; entries.size() < BYPASS_ENTRIES; i++) {
+			switch (i % 5) {
+			case 0:
+			case 1:
+				entries.add("*.dept" + i + ".corp.example.invalid");
+				break;
+			case 2:
+				entries.add("host" + i + ".partner.example.invalid");
+				break;
+			case 3:
+				entries.add("srv" + i + "-*.corp.example.invalid");
+				break;
+			default:
+				entries.add("10." + (i % 256) + "." + (i / 256) + ".0/24");
+				break;
+			}
+		}
+		StringBuilder result = new StringBuilder();
+		for (String entry : entries) {
+			result.append(result.length() == 0 ? "" : ";").append(entry);
+		}
+		return result.toString();
+	}
+
+	/*************************************************************************
+	 * Builds a PAC script in the style of large corporate scripts: a long
+	 * chain of domain checks, wildcard checks and network checks before the
+	 * proxy is chosen by protocol. Network checks are only done for hosts
+	 * starting like a private IP literal, so the benchmark does not depend on
+	 * DNS. The script stays in the subset handled by PacScriptCompiler, so
+	 * corporatePac measures the compiled path and not the JavaScript engine.
+	 *
+	 * @return the script.
+	 ************************************************************************/
+
+	static String corporatePacScript() {
+		StringBuilder script = new StringBuilder();
+		script.append("function FindProxyForURL(url, host) {\n");
+		script.append("  host = host.toLowerCase();\n");
+		script.append("  if (isPlainHostName(host) || host == \"localhost\") {\n    return \"DIRECT\";\n  }\n");
+		for (int i = 0; i < 150; i++) {
+			script.append("  if (dnsDomainIs(host, \".dept").append(i).append(".corp.example.invalid\")");
+			script.append(" || shExpMatch(host, \"app").append(i).append("-*.corp.example.invalid\")) {\n");
+			script.append("    return \"DIRECT\";\n  }\n");
+		}
+		for (int i = 0; i < 50; i++) {
+			script.append("  if (shExpMatch(url, \"*://*.partner").append(i).append(".example.invalid/*\")) {\n");
+			script.append("    return \"PROXY partner-proxy.corp.example.invalid:3128\";\n  }\n");
+		}
+		script.append("  if (shExpMatch(host, \"10.*\") || shExpMatch(host, \"172.*\")");
+		script.append(" || shExpMatch(host, \"192.168.*\")) {\n");
+		for (int i = 0; i < 40; i++) {
+			script.append("    if (isInNet(host, \"10.").append(i).append(".0.0\", \"255.255.0.0\")) {\n");
+			script.append("      return \"DIRECT\";\n    }\n");
+		}
+		script.append("    if (isInNet(host, \"172.16.0.0\", \"255.240.0.0\")");
+		script.append(" || isInNet(host, \"192.168.0.0\", \"255.255.0.0\")) {\n      return \"DIRECT\";\n    }\n");
+		script.append("  }\n");
+		script.append("  if (shExpMatch(url, \"https:*\")) {\n");
+		script.append("    return \"").append(PROXIES).append("\";\n  }\n");
+		script.append("  return \"PROXY proxy1.corp.example.invalid:8080; DIRECT\";\n");
+		script.append("}\n");
+		return script.toString();
+	}
+
+}
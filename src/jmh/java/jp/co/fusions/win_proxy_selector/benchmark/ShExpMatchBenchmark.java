@@ -0,0 +1,82 @@
+package jp.co.fusions.win_proxy_selector.benchmark;
+
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import jp.co.fusions.win_proxy_selector.selector.pac.PacScriptMethods;
+
+/*****************************************************************************
+ * Compares shExpMatch with the former tokenizer based implementation on the
+ * kind of host names and expressions found in corporate PAC scripts.
+ ****************************************************************************/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShExpMatchBenchmark {
+
+	private static final String[] HOSTS = { "www.intranet.corp.example.invalid", "mail.example.invalid",
+		"10.1.2.3", "build-server-42.ci.corp.example.invalid" };
+
+	private static final String[] EXPRESSIONS = { "*.corp.example.invalid", "*.intranet.*", "10.*",
+		"*build*.ci.*", "mail.example.invalid", "build-server-??.ci.*" };
+
+	private final PacScriptMethods methods = new PacScriptMethods();
+
+	@Benchmark
+	public void current(Blackhole blackhole) {
+		for (String host : HOSTS) {
+			for (String expression : EXPRESSIONS) {
+				blackhole.consume(this.methods.shExpMatch(host, expression));
+			}
+		}
+	}
+
+	@Benchmark
+	public void tokenizer(Blackhole blackhole) {
+		for (String host : HOSTS) {
+			for (String expression : EXPRESSIONS) {
+				blackhole.consume(tokenizerMatch(host, expression));
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * The former implementation of shExpMatch, without support for '?'.
+	 ************************************************************************/
+
+	private static boolean tokenizerMatch(String str, String shexp) {
+		StringTokenizer tokenizer = new StringTokenizer(shexp, "*");
+		int startPos = 0;
+		while (tokenizer.hasMoreTokens()) {
+			String token = tokenizer.nextToken();
+			int temp = str.indexOf(token, startPos);
+			if (startPos == 0 && !shexp.startsWith("*") && temp != 0) {
+				return false;
+			}
+			if (!tokenizer.hasMoreTokens() && !shexp.endsWith("*") && !str.endsWith(token)) {
+				return false;
+			}
+			if (temp == -1) {
+				return false;
+			}
+			startPos = temp + token.length();
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,11 @@
+package jp.co.fusions.win_proxy_selector.benchmark;
+
+import org.openjdk.jmh.annotations.Threads;
+
+/*****************************************************************************
+ * The select benchmarks with one thread.
+ ****************************************************************************/
+
+@Threads(1)
+public class SingleThreadSelectBenchmark extends SelectBenchmark {
+}
@@ -0,0 +1,328 @@
+package jp.co.fusions.win_proxy_selector.selector.misc;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*****************************************************************************
+ * Wraps an existing ProxySelector and orders equivalent proxies by their
+ * connect latency. The application reports the time it took to connect to a
+ * proxy with connectSucceeded(), like it reports failures with
+ * connectFailed(), and the selector keeps a moving average per proxy.<br>
+ *
+ * Only consecutive proxies of the same type are reordered, e.g. the
+ * "PROXY a; PROXY b" entries of one PAC answer. A DIRECT entry and proxies
+ * of another type keep their position, so the fallback order of the
+ * delegate is not changed. Proxies without a recent measurement keep their
+ * position as well. As a proxy behind another one is only used when the
+ * first one fails, one in 20 requests (see setExplorationInterval()) moves
+ * the first unmeasured proxy of a run to its front, so it is tried and
+ * measured and a faster proxy is found.<br>
+ *
+ * To skip failed proxies wrap a ProxyListFallbackSelector:
+ *
+ * <pre>
+ * new LatencyOrderingSelector(new ProxyListFallbackSelector(selector));
+ * </pre>
+ ****************************************************************************/
+
+public class LatencyOrderingSelector extends ProxySelector {
+
+	// Weight of a new measurement in the moving average.
+	private static final double SMOOTHING = 0.3;
+
+	// Measurements older than 10 minutes are ignored per default.
+	private static final long DEFAULT_MAX_SAMPLE_AGE = 1000 * 60 * 10;
+
+	// One in this many requests tries an unmeasured proxy first per default.
+	private static final int DEFAULT_EXPLORATION_INTERVAL = 20;
+
+	private final ProxySelector delegate;
+	private final ConcurrentHashMap<SocketAddress, Sample> samples;
+	private volatile long maxSampleAgeMs;
+	private volatile int explorationInterval;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param delegate
+	 *            the delegate to use.
+	 ************************************************************************/
+
+	public LatencyOrderingSelector(ProxySelector delegate) {
+		super();
+		if (delegate == null) {
+			throw new NullPointerException("Delegate must not be null.");
+		}
+		this.delegate = delegate;
+		this.samples = new ConcurrentHashMap<SocketAddress, Sample>();
+		this.maxSampleAgeMs = DEFAULT_MAX_SAMPLE_AGE;
+		this.explorationInterval = DEFAULT_EXPLORATION_INTERVAL;
+	}
+
+	/*************************************************************************
+	 * Reports a successful connect to a proxy.
+	 *
+	 * @param uri
+	 *            the URI that the proxy was used for.
+	 * @param sa
+	 *            the socket address of the proxy.
+	 * @param latencyMs
+	 *            the time needed to connect in milliseconds.
+	 ************************************************************************/
+
+	public void connectSucceeded(URI uri, SocketAddress sa, long latencyMs) {
+		if (sa == null || latencyMs < 0) {
+			throw new IllegalArgumentException("Arguments can't be null or negative.");
+		}
+		long now = System.currentTimeMillis();
+		while (true) {
+			Sample old = this.samples.get(sa);
+			if (old == null || now - old.updated > this.maxSampleAgeMs) {
+				Sample created = new Sample(latencyMs, now);
+				if (old == null ? this.samples.putIfAbsent(sa, created) == null
+				        : this.samples.replace(sa, old, created)) {
+					return;
+				}
+			} else {
+				double average = old.averageMs + (latencyMs - old.averageMs) * SMOOTHING;
+				if (this.samples.replace(sa, old, new Sample(average, now))) {
+					return;
+				}
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * connectFailed. The measurements of the proxy are dropped, so that it
+	 * falls back to its position in the list of the delegate.
+	 *
+	 * @see java.net.ProxySelector#connectFailed(java.net.URI,
+	 *      java.net.SocketAddress, java.io.IOException)
+	 ************************************************************************/
+
+	@Override
+	public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+		if (sa != null) {
+			this.samples.remove(sa);
+		}
+		this.delegate.connectFailed(uri, sa, ioe);
+	}
+
+	/*************************************************************************
+	 * Gets the moving average of the connect latency of a proxy.
+	 *
+	 * @param sa
+	 *            the socket address of the proxy.
+	 * @return the average in milliseconds, -1 if there is no recent
+	 *         measurement.
+	 ************************************************************************/
+
+	public double getAverageLatencyMs(SocketAddress sa) {
+		Sample sample = this.samples.get(sa);
+		if (sample == null || System.currentTimeMillis() - sample.updated > this.maxSampleAgeMs) {
+			return -1;
+		}
+		return sample.averageMs;
+	}
+
+	/*************************************************************************
+	 * Sets the time after which a measurement is too old to be used.
+	 *
+	 * @param maxSampleAgeMs
+	 *            the maximum age in milliseconds.
+	 ************************************************************************/
+
+	public void setMaxSampleAgeMs(long maxSampleAgeMs) {
+		this.maxSampleAgeMs = maxSampleAgeMs;
+	}
+
+	/*************************************************************************
+	 * Sets how often a request tries an unmeasured proxy first, so that
+	 * proxies behind a measured one get measured as well.
+	 *
+	 * @param explorationInterval
+	 *            one in this many requests moves the first unmeasured proxy
+	 *            of a run to its front, 0 to never do this.
+	 ************************************************************************/
+
+	public void setExplorationInterval(int explorationInterval) {
+		this.explorationInterval = explorationInterval;
+	}
+
+	/*************************************************************************
+	 * select. The list of the delegate is returned as is, also if it is null
+	 * or empty, unless the measurements change the order.
+	 *
+	 * @see java.net.ProxySelector#select(java.net.URI)
+	 ************************************************************************/
+
+	@Override
+	public List<Proxy> select(URI uri) {
+		List<Proxy> proxies = this.delegate.select(uri);
+		if (proxies == null || proxies.size() < 2 || this.samples.isEmpty()) {
+			return proxies;
+		}
+		long now = System.currentTimeMillis();
+		long maxAge = this.maxSampleAgeMs;
+		int interval = this.explorationInterval;
+		boolean explore = interval > 0 && ThreadLocalRandom.current().nextInt(interval) == 0;
+		if (!explore && isOrdered(proxies, now, maxAge)) {
+			return proxies;
+		}
+		return orderByLatency(proxies, now, maxAge, explore);
+	}
+
+	/*************************************************************************
+	 * Checks without allocating whether the measured proxies of each run are
+	 * already sorted by latency, which is the common case once the order has
+	 * settled.
+	 ************************************************************************/
+
+	private boolean isOrdered(List<Proxy> proxies, long now, long maxAge) {
+		Proxy.Type type = null;
+		double previous = -1;
+		for (int i = 0, size = proxies.size(); i < size; i++) {
+			Proxy proxy = proxies.get(i);
+			if (proxy.type() != type) {
+				type = proxy.type();
+				previous = -1;
+			}
+			double latency = latencyOf(proxy, now, maxAge);
+			if (latency >= 0) {
+				if (latency < previous) {
+					return false;
+				}
+				previous = latency;
+			}
+		}
+		return true;
+	}
+
+	private double latencyOf(Proxy proxy, long now, long maxAge) {
+		Sample sample = proxy.type() == Proxy.Type.DIRECT ? null : this.samples.get(proxy.address());
+		return sample == null || now - sample.updated > maxAge ? -1 : sample.averageMs;
+	}
+
+	/*************************************************************************
+	 * Sorts each run of proxies of the same type by latency. Proxies without
+	 * measurement stay where they are, the measured ones are sorted among
+	 * the positions they occupy. When exploring, the first unmeasured proxy
+	 * of a run is moved to its front.
+	 *
+	 * @param proxies
+	 *            the list of the delegate.
+	 * @param now
+	 *            the current time in milliseconds.
+	 * @param maxAge
+	 *            the maximum age of a measurement in milliseconds.
+	 * @param explore
+	 *            true to try an unmeasured proxy first.
+	 * @return the ordered list, the given list if nothing was moved.
+	 ************************************************************************/
+
+	private List<Proxy> orderByLatency(List<Proxy> proxies, long now, long maxAge, boolean explore) {
+		int size = proxies.size();
+		double[] latency = new double[size];
+		for (int i = 0; i < size; i++) {
+			latency[i] = latencyOf(proxies.get(i), now, maxAge);
+		}
+
+		List<Proxy> result = null;
+		int[] measured = new int[size];
+		int start = 0;
+		while (start < size) {
+			Proxy.Type type = proxies.get(start).type();
+			int end = start + 1;
+			while (end < size && proxies.get(end).type() == type) {
+				end++;
+			}
+			int count = 0;
+			for (int i = start; i < end; i++) {
+				if (latency[i] >= 0) {
+					measured[count++] = i;
+				}
+			}
+			if (type != Proxy.Type.DIRECT && count > 1) {
+				result = sortRun(proxies, latency, measured, count, result);
+			}
+			if (type != Proxy.Type.DIRECT && explore && count > 0) {
+				result = exploreRun(proxies, latency, start, end, result);
+			}
+			start = end;
+		}
+		return result == null ? proxies : Collections.unmodifiableList(result);
+	}
+
+	/*************************************************************************
+	 * Sorts the measured positions of one run. A stable insertion sort is
+	 * used, the lists are short and mostly sorted already.
+	 ************************************************************************/
+
+	private static List<Proxy> sortRun(List<Proxy> proxies, double[] latency, int[] measured, int count,
+	        List<Proxy> result) {
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++) {
+			int index = measured[i];
+			int j = i;
+			while (j > 0 && latency[order[j - 1]] > latency[index]) {
+				order[j] = order[j - 1];
+				j--;
+			}
+			order[j] = index;
+		}
+		for (int i = 0; i < count; i++) {
+			if (order[i] != measured[i]) {
+				if (result == null) {
+					result = new ArrayList<Proxy>(proxies);
+				}
+				result.set(measured[i], proxies.get(order[i]));
+			}
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * Moves the first unmeasured proxy of a run in front of the measured
+	 * ones. The order of the other proxies is kept.
+	 ************************************************************************/
+
+	private static List<Proxy> exploreRun(List<Proxy> proxies, double[] latency, int start, int end,
+	        List<Proxy> result) {
+		if (latency[start] < 0) {
+			return result;
+		}
+		for (int i = start + 1; i < end; i++) {
+			if (latency[i] < 0) {
+				if (result == null) {
+					result = new ArrayList<Proxy>(proxies);
+				}
+				result.add(start, result.remove(i));
+				return result;
+			}
+		}
+		return result;
+	}
+
+	/*****************************************************************************
+	 * Moving average of the connect latency of one proxy.
+	 ****************************************************************************/
+
+	private static final class Sample {
+		final double averageMs;
+		final long updated;
+
+		Sample(double averageMs, long updated) {
+			this.averageMs = averageMs;
+			this.updated = updated;
+		}
+	}
+
+}
@@ -6,47 +6,155 @@ import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*****************************************************************************
+ * Merges the answers of several selectors into one list without duplicates,
+ * the fallback selector is only asked if no selector has an answer. DIRECT
+ * is always added as last choice.<br>
+ *
+ * The last merged lists are kept together with a copy of the answers they
+ * were built from and returned again if the selectors give equal answers.
+ * The returned lists are unmodifiable and shared between callers.
+ ****************************************************************************/
 
 public class ListProxySelector extends ProxySelector {
+	// Number of recent merge results kept, most callers see a few answers only.
+	private static final int MERGE_CACHE_SIZE = 8;
+
 	private final List<ProxySelector> selectors;
 	private final ProxySelector fallbackSelector;
 
+	private final AtomicReferenceArray<Merge> merges = new AtomicReferenceArray<>(MERGE_CACHE_SIZE);
+	private final AtomicInteger nextMerge = new AtomicInteger();
+	private final ThreadLocal<List<Proxy>[]> results = new ThreadLocal<>();
+
 	public ListProxySelector(List<ProxySelector> selectors, ProxySelector fallbackSelector) {
-		this.selectors = selectors;
+		// Copied, the cached merges depend on the number of selectors.
+		this.selectors = new ArrayList<ProxySelector>(selectors);
 		this.fallbackSelector = fallbackSelector;
 	}
 
+	/*************************************************************************
+	 * select. The returned list is unmodifiable and shared with other callers,
+	 * copy it before sorting or changing it.
+	 *
+	 * @see java.net.ProxySelector#select(java.net.URI)
+	 ************************************************************************/
+
 	@Override
 	public List<Proxy> select(URI uri) {
+		// Collect the answers of the children, the last slot is for the fallback.
+		// The array is taken from the thread while in use, so a child calling
+		// back into this selector gets its own.
+		int count = selectors.size();
+		List<Proxy>[] answers = results.get();
+		if (answers == null || answers.length != count + 1) {
+			answers = newResultArray(count + 1);
+		} else {
+			results.set(null);
+		}
+		try {
+			boolean empty = true;
+			for (int i = 0; i < count; i++) {
+				List<Proxy> l = selectors.get(i).select(uri);
+				answers[i] = l;
+				empty &= l == null || l.isEmpty();
+			}
+			answers[count] = empty && fallbackSelector != null ? fallbackSelector.select(uri) : null;
+
+			for (int i = 0; i < MERGE_CACHE_SIZE; i++) {
+				Merge merge = merges.get(i);
+				if (merge != null && merge.isFor(answers)) {
+					return merge.proxies;
+				}
+			}
+
+			Merge merge = new Merge(answers, merge(answers));
+			merges.set((nextMerge.getAndIncrement() & Integer.MAX_VALUE) % MERGE_CACHE_SIZE, merge);
+			return merge.proxies;
+		} finally {
+			Arrays.fill(answers, null);
+			results.set(answers);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Proxy>[] newResultArray(int size) {
+		return new List[size];
+	}
+
+	private static List<Proxy> merge(List<Proxy>[] answers) {
 		List<Proxy> proxies = new ArrayList<>();
-		for (ProxySelector selector : selectors) {
-			List<Proxy> l = selector.select(uri);
-			if (l != null && l.size() > 0) {
-				proxies.addAll(l);
+		for (List<Proxy> l : answers) {
+			if (l != null) {
+				for (int i = 0; i < l.size(); i++) {
+					addIfAbsent(proxies, l.get(i));
+				}
 			}
 		}
+		addIfAbsent(proxies, Proxy.NO_PROXY);
+		return Collections.unmodifiableList(proxies);
+	}
 
-		if (proxies.isEmpty() && fallbackSelector != null) {
-			proxies.addAll(fallbackSelector.select(uri));
+	// The lists are short, a linear search is cheaper than hashing.
+	private static void addIfAbsent(List<Proxy> proxies, Proxy proxy) {
+		for (int i = 0; i < proxies.size(); i++) {
+			if (proxies.get(i).equals(proxy)) {
+				return;
+			}
 		}
+		proxies.add(proxy);
+	}
 
-		proxies.add(Proxy.NO_PROXY);
+	/*****************************************************************************
+	 * A merged list together with a copy of the answers of the children it was
+	 * built from. The answers are copied and compared by content, a child may
+	 * reuse and change its list. Immutable, so it can be published without
+	 * locking.
+	 ****************************************************************************/
 
-		return removeDuplicates(proxies);
-	}
+	private static final class Merge {
+		private static final Proxy[] NO_ANSWER = new Proxy[0];
+
+		private final Proxy[][] answers;
+		private final List<Proxy> proxies;
+
+		Merge(List<Proxy>[] answers, List<Proxy> proxies) {
+			this.answers = new Proxy[answers.length][];
+			for (int i = 0; i < answers.length; i++) {
+				this.answers[i] = answers[i] == null ? NO_ANSWER : answers[i].toArray(NO_ANSWER);
+			}
+			this.proxies = proxies;
+		}
 
-	private List<Proxy> removeDuplicates(List<Proxy> proxies) {
-		List<Proxy> l = new ArrayList<>(proxies.size());
-		Set<Proxy> s = new HashSet<>();
-		for (Proxy proxy : proxies) {
-			if (s.contains(proxy)) continue;
-			l.add(proxy);
-			s.add(proxy);
+		boolean isFor(List<Proxy>[] other) {
+			for (int i = 0; i < answers.length; i++) {
+				if (!sameProxies(answers[i], other[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static boolean sameProxies(Proxy[] a, List<Proxy> b) {
+			int size = b == null ? 0 : b.size();
+			if (a.length != size) {
+				return false;
+			}
+			for (int i = 0; i < size; i++) {
+				// Selectors with stable answers return the same instances.
+				Proxy proxy = b.get(i);
+				if (a[i] != proxy && !a[i].equals(proxy)) {
+					return false;
+				}
+			}
+			return true;
 		}
-		return l;
 	}
 
 	@Override
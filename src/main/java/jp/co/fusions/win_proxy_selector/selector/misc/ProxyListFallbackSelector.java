@@ -6,32 +6,82 @@ import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import jp.co.fusions.win_proxy_selector.util.Metrics;
 
 /*****************************************************************************
  * Implements a fallback selector to warp it around an existing ProxySelector.
  * This will remove proxies from a list of proxies and implement an automatic
- * retry mechanism.
- * 
+ * retry mechanism.<br>
+ *
+ * Every proxy that failed has a health record. A failure removes the proxy
+ * for a backoff delay that grows exponentially with a failure score, an
+ * exponentially weighted count of the recent failures, and is randomized by
+ * 20 percent so that clients do not come back at the same time. When the
+ * delay has passed the proxy is half-open: a few requests are sent to it as
+ * trials, and if no failure is reported within the trial period it is fully
+ * restored. A single transient failure therefore removes a proxy for a few
+ * seconds only, while a proxy that keeps failing is retried less and less
+ * often, up to the maximum retry delay.<br>
+ *
+ * State changes are done by a background sweep, so select() does not scan
+ * the failures. Every state change increments a version, and filtered lists
+ * are reused as long as the version and the proxies returned by the delegate
+ * stay the same. The health record of a restored proxy is dropped once its
+ * failure score has decayed.
+ *
  * @author Markus Bernhardt, Copyright 2016
  * @author Bernd Rosstauscher, Copyright 2009
  ****************************************************************************/
 
 public class ProxyListFallbackSelector extends ProxySelector {
 
-	// Retry a unresponsive proxy after 10 minutes per default.
+	// Retry a unresponsive proxy after 10 minutes at most per default.
 	private static final int DEFAULT_RETRY_DELAY = 1000 * 60 * 10;
 
+	// Backoff after a single failure.
+	private static final long INITIAL_RETRY_DELAY = 1000 * 5;
+
+	// Randomization of the backoff, plus or minus.
+	private static final double RETRY_JITTER = 0.2;
+
+	// Half-life of the failure score.
+	private static final long SCORE_HALF_LIFE = 1000 * 60;
+
+	// Restored proxies are forgotten once their score has decayed below this.
+	private static final double NEGLIGIBLE_SCORE = 0.05;
+
+	// Requests sent to a half-open proxy before the trial period is over.
+	private static final int TRIAL_REQUESTS = 3;
+
+	// A half-open proxy without failure for this time is restored.
+	private static final long TRIAL_PERIOD = 1000 * 10;
+
+	// Number of recently filtered lists kept.
+	private static final int FILTER_CACHE_SIZE = 8;
+
 	private ProxySelector delegate;
-	private ConcurrentHashMap<SocketAddress, Long> failedDelayCache;
-	private long retryAfterMs;
+	private final ConcurrentHashMap<SocketAddress, Health> health;
+	private final AtomicInteger unhealthy = new AtomicInteger();
+	private final AtomicLong healthVersion = new AtomicLong();
+	private final AtomicReferenceArray<Filtered> filtered = new AtomicReferenceArray<Filtered>(FILTER_CACHE_SIZE);
+	private final AtomicInteger nextFiltered = new AtomicInteger();
+	private volatile long retryAfterMs;
 
 	/*************************************************************************
 	 * Constructor
-	 * 
+	 *
 	 * @param delegate
 	 *            the delegate to use.
 	 ************************************************************************/
@@ -42,88 +92,105 @@ public class ProxyListFallbackSelector extends ProxySelector {
 
 	/*************************************************************************
 	 * Constructor
-	 * 
+	 *
 	 * @param retryAfterMs
-	 *            the "retry delay" as amount of milliseconds.
+	 *            the maximum "retry delay" as amount of milliseconds. The
+	 *            delay after a single failure is 5 seconds or less.
 	 * @param delegate
 	 *            the delegate to use.
 	 ************************************************************************/
 
 	public ProxyListFallbackSelector(long retryAfterMs, ProxySelector delegate) {
 		super();
-		this.failedDelayCache = new ConcurrentHashMap<SocketAddress, Long>();
+		this.health = new ConcurrentHashMap<SocketAddress, Health>();
 		this.delegate = delegate;
 		this.retryAfterMs = retryAfterMs;
 	}
 
 	/*************************************************************************
 	 * connectFailed
-	 * 
+	 *
 	 * @see java.net.ProxySelector#connectFailed(java.net.URI,
 	 *      java.net.SocketAddress, java.io.IOException)
 	 ************************************************************************/
 
 	@Override
 	public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
-		this.failedDelayCache.put(sa, System.currentTimeMillis());
+		while (true) {
+			Health entry = this.health.get(sa);
+			if (entry == null) {
+				Health created = new Health(sa);
+				entry = this.health.putIfAbsent(sa, created);
+				if (entry == null) {
+					entry = created;
+				}
+			}
+			// Retry if the record was dropped in the meantime.
+			if (entry.failed()) {
+				break;
+			}
+		}
+		Metrics.increment(Metrics.FALLBACK_PROXY_FAILED);
 	}
 
 	/*************************************************************************
 	 * select
-	 * 
+	 *
 	 * @see java.net.ProxySelector#select(java.net.URI)
 	 ************************************************************************/
 
 	@Override
 	public List<Proxy> select(URI uri) {
-		cleanupCache();
 		List<Proxy> proxyList = this.delegate.select(uri);
-		List<Proxy> result = filterUnresponsiveProxiesFromList(proxyList);
-		return result;
-	}
-
-	/*************************************************************************
-	 * Cleanup the entries from the cache that are no longer unresponsive.
-	 ************************************************************************/
-
-	private void cleanupCache() {
-		Iterator<Entry<SocketAddress, Long>> it = this.failedDelayCache.entrySet().iterator();
-		while (it.hasNext()) {
-			Entry<SocketAddress, Long> e = it.next();
-			Long lastFailTime = e.getValue();
-			if (retryDelayHasPassedBy(lastFailTime)) {
-				it.remove();
-			}
-		}
+		return filterUnresponsiveProxiesFromList(proxyList);
 	}
 
 	/*************************************************************************
 	 * Filters out proxies that are not reponding.
-	 * 
+	 *
 	 * @param proxyList
 	 *            a list of proxies to test.
 	 * @return the filtered list.
 	 ************************************************************************/
 
 	private List<Proxy> filterUnresponsiveProxiesFromList(List<Proxy> proxyList) {
-		if (this.failedDelayCache.isEmpty()) {
+		if (this.unhealthy.get() == 0 || proxyList == null) {
 			return proxyList;
 		}
+		long version = this.healthVersion.get();
+		for (int i = 0; i < FILTER_CACHE_SIZE; i++) {
+			Filtered entry = this.filtered.get(i);
+			if (entry != null && entry.version == version && entry.isFor(proxyList)) {
+				return entry.result;
+			}
+		}
+
+		long now = System.nanoTime();
+		boolean trial = false;
 		List<Proxy> result = new ArrayList<Proxy>(proxyList.size());
 		for (Proxy proxy : proxyList) {
-			if (isDirect(proxy) || isNotUnresponsive(proxy)) {
+			Health entry = isDirect(proxy) ? null : this.health.get(proxy.address());
+			int admission = entry == null ? Health.ADMIT : entry.admit(now);
+			if (admission != Health.REJECT) {
 				result.add(proxy);
 			}
+			trial |= admission == Health.TRIAL;
 		}
-		if(result.isEmpty()){
-		    result.add(Proxy.NO_PROXY);
+		if (result.isEmpty()) {
+			result.add(Proxy.NO_PROXY);
+		}
+		result = Collections.unmodifiableList(result);
+		// Lists with trial requests must not be handed out again.
+		if (!trial) {
+			this.filtered.set((this.nextFiltered.getAndIncrement() & Integer.MAX_VALUE) % FILTER_CACHE_SIZE,
+				new Filtered(proxyList, version, result));
 		}
 		return result;
 	}
 
 	/*************************************************************************
 	 * Checks if the given proxy is representing a direct connection.
-	 * 
+	 *
 	 * @param proxy
 	 *            to inspect.
 	 * @return true if it is direct else false.
@@ -134,38 +201,241 @@ public class ProxyListFallbackSelector extends ProxySelector {
 	}
 
 	/*************************************************************************
-	 * Tests that a given proxy is not "unresponsive".
-	 * 
-	 * @param proxy
-	 *            to test.
-	 * @return true if not unresponsive.
+	 * Only used for unit testing not part of the public API.
+	 *
+	 * @param retryAfterMs
+	 *            The retryAfterMs to set.
 	 ************************************************************************/
 
-	private boolean isNotUnresponsive(Proxy proxy) {
-		Long lastFailTime = this.failedDelayCache.get(proxy.address());
-		return retryDelayHasPassedBy(lastFailTime);
+	final void setRetryAfterMs(long retryAfterMs) {
+		this.retryAfterMs = retryAfterMs;
 	}
 
 	/*************************************************************************
-	 * Checks if the retry delay has passed.
-	 * 
-	 * @param lastFailTime
-	 * @return true if the delay has passed.
+	 * Only used for unit testing not part of the public API.
+	 *
+	 * @param sa
+	 *            the address of the proxy.
+	 * @return the health record, null if there is none.
 	 ************************************************************************/
 
-	private boolean retryDelayHasPassedBy(Long lastFailTime) {
-		return lastFailTime == null || lastFailTime + this.retryAfterMs < System.currentTimeMillis();
+	final Health getHealth(SocketAddress sa) {
+		return this.health.get(sa);
 	}
 
-	/*************************************************************************
-	 * Only used for unit testing not part of the public API.
-	 * 
-	 * @param retryAfterMs
-	 *            The retryAfterMs to set.
-	 ************************************************************************/
+	/*****************************************************************************
+	 * Health of one proxy address. The state moves from CLOSED (healthy) to
+	 * OPEN on a failure, from OPEN to HALF_OPEN when the backoff delay has
+	 * passed and from HALF_OPEN back to CLOSED when the trial period passed
+	 * without failure. The score and its time stamp are kept while CLOSED,
+	 * so a proxy that fails again soon gets a longer delay, and the record is
+	 * removed once the score is negligible.
+	 ****************************************************************************/
 
-	final void setRetryAfterMs(long retryAfterMs) {
-		this.retryAfterMs = retryAfterMs;
+	final class Health {
+		static final int ADMIT = 0;
+		static final int TRIAL = 1;
+		static final int REJECT = 2;
+
+		private static final int CLOSED = 0;
+		private static final int OPEN = 1;
+		private static final int HALF_OPEN = 2;
+
+		private final SocketAddress address;
+
+		// All other fields guarded by this.
+		private int state = CLOSED;
+		private double score;
+		private long scoreNanos;
+		private long retryAtNanos;
+		private long trialEndNanos;
+		private int trialsLeft;
+		private int generation;
+		private boolean removed;
+
+		Health(SocketAddress address) {
+			this.address = address;
+		}
+
+		/*************************************************************************
+		 * Records a failure and schedules the end of the backoff delay. Failures
+		 * reported while the proxy is removed come from requests started
+		 * before and are not counted again.
+		 *
+		 * @return false if the record was dropped and a new one must be used.
+		 ************************************************************************/
+
+		synchronized boolean failed() {
+			if (this.removed) {
+				return false;
+			}
+			long now = System.nanoTime();
+			advance(now);
+			if (this.state == OPEN) {
+				return true;
+			}
+			this.score = decayedScore(now) + 1;
+			this.scoreNanos = now;
+			long delayNanos = TimeUnit.MILLISECONDS.toNanos(backoffMillis(this.score));
+			if (this.state == CLOSED) {
+				ProxyListFallbackSelector.this.unhealthy.incrementAndGet();
+			}
+			this.state = OPEN;
+			this.retryAtNanos = now + delayNanos;
+			changed(delayNanos);
+			return true;
+		}
+
+		/*************************************************************************
+		 * Decides if the proxy is offered to a request.
+		 *
+		 * @param now
+		 *            the current System.nanoTime().
+		 * @return ADMIT, TRIAL if a trial request was used up or REJECT.
+		 ************************************************************************/
+
+		synchronized int admit(long now) {
+			// The sweep may run a little late, the deadlines are authoritative.
+			advance(now);
+			if (this.state == CLOSED) {
+				return ADMIT;
+			}
+			if (this.state == HALF_OPEN && this.trialsLeft > 0) {
+				this.trialsLeft--;
+				if (this.trialsLeft == 0) {
+					ProxyListFallbackSelector.this.healthVersion.incrementAndGet();
+				}
+				return TRIAL;
+			}
+			return REJECT;
+		}
+
+		/*************************************************************************
+		 * Runs the state changes that are due.
+		 *
+		 * @param now
+		 *            the current System.nanoTime().
+		 ************************************************************************/
+
+		synchronized void advance(long now) {
+			if (this.state == OPEN && now - this.retryAtNanos >= 0) {
+				this.state = HALF_OPEN;
+				this.trialsLeft = TRIAL_REQUESTS;
+				long periodNanos = TimeUnit.MILLISECONDS.toNanos(TRIAL_PERIOD);
+				this.trialEndNanos = now + periodNanos;
+				changed(periodNanos);
+			} else if (this.state == HALF_OPEN && now - this.trialEndNanos >= 0) {
+				this.state = CLOSED;
+				ProxyListFallbackSelector.this.unhealthy.decrementAndGet();
+				ProxyListFallbackSelector.this.healthVersion.incrementAndGet();
+				scheduleSweep(negligibleAfterNanos(now));
+			}
+		}
+
+		/*************************************************************************
+		 * Runs the state changes that are due and drops the record of a
+		 * restored proxy whose failure score is negligible.
+		 *
+		 * @param now
+		 *            the current System.nanoTime().
+		 ************************************************************************/
+
+		synchronized void sweep(long now) {
+			advance(now);
+			if (this.state == CLOSED && !this.removed && decayedScore(now) < NEGLIGIBLE_SCORE) {
+				this.removed = true;
+				ProxyListFallbackSelector.this.health.remove(this.address, this);
+			}
+		}
+
+		private long negligibleAfterNanos(long now) {
+			double score = decayedScore(now);
+			double halfLives = score < NEGLIGIBLE_SCORE ? 0 : Math.log(score / NEGLIGIBLE_SCORE) / Math.log(2);
+			// A little later, so the score is below the limit for sure.
+			return (long) ((halfLives + 0.1) * TimeUnit.MILLISECONDS.toNanos(SCORE_HALF_LIFE));
+		}
+
+		private double decayedScore(long now) {
+			if (this.score == 0) {
+				return 0;
+			}
+			double halfLives = (double) (now - this.scoreNanos) / TimeUnit.MILLISECONDS.toNanos(SCORE_HALF_LIFE);
+			return this.score * Math.pow(0.5, halfLives);
+		}
+
+		long backoffMillis(double failureScore) {
+			long max = ProxyListFallbackSelector.this.retryAfterMs;
+			double delay = Math.min(INITIAL_RETRY_DELAY, max) * Math.pow(2, Math.max(0, failureScore - 1));
+			delay *= 1 + RETRY_JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+			return (long) Math.min(delay, max);
+		}
+
+		private void changed(long sweepAfterNanos) {
+			ProxyListFallbackSelector.this.healthVersion.incrementAndGet();
+			scheduleSweep(sweepAfterNanos);
+		}
+
+		private void scheduleSweep(long sweepAfterNanos) {
+			final int expected = ++this.generation;
+			Sweeper.INSTANCE.schedule(new Runnable() {
+				public void run() {
+					synchronized (Health.this) {
+						if (Health.this.generation == expected) {
+							sweep(System.nanoTime());
+						}
+					}
+				}
+			}, sweepAfterNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/*****************************************************************************
+	 * A filtered list for a delegate list and a health version. The proxies of
+	 * the delegate list are copied and compared by content, the delegate may
+	 * reuse and change its list.
+	 ****************************************************************************/
+
+	private static final class Filtered {
+		private static final Proxy[] NO_PROXIES = new Proxy[0];
+
+		final Proxy[] input;
+		final long version;
+		final List<Proxy> result;
+
+		Filtered(List<Proxy> input, long version, List<Proxy> result) {
+			this.input = input.toArray(NO_PROXIES);
+			this.version = version;
+			this.result = result;
+		}
+
+		boolean isFor(List<Proxy> proxies) {
+			if (this.input.length != proxies.size()) {
+				return false;
+			}
+			for (int i = 0; i < this.input.length; i++) {
+				// Delegates with stable answers return the same instances.
+				Proxy proxy = proxies.get(i);
+				if (this.input[i] != proxy && !this.input[i].equals(proxy)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/*****************************************************************************
+	 * Shared daemon thread running the due state changes.
+	 ****************************************************************************/
+
+	private static final class Sweeper {
+		static final ScheduledExecutorService INSTANCE = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ProxyFailureSweep");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 	}
 
 }
@@ -0,0 +1,642 @@
+package jp.co.fusions.win_proxy_selector.selector.pac;
+
+import java.util.Locale;
+
+/*****************************************************************************
+ * A PAC script compiled into a tree of Java objects by the PacScriptCompiler.
+ * Evaluating it needs no JavaScript engine. The nodes implement the
+ * JavaScript semantics for the small subset of the language supported by the
+ * compiler. Values are represented as String, Double, Boolean, null and
+ * UNDEFINED.
+ *
+ * If a script reaches a state the subset does not cover (e.g. a number that
+ * would need the JavaScript number formatting) an UnsupportedScriptException
+ * is thrown and the caller falls back to a real JavaScript engine.
+ ****************************************************************************/
+
+final class CompiledPacScript {
+
+	static final Object UNDEFINED = new Object() {
+		@Override
+		public String toString() {
+			return "undefined";
+		}
+	};
+
+	// Marks the normal completion of a statement (no return executed).
+	private static final Object NORMAL = new Object();
+
+	private final Statement body;
+	private final int frameSize;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param body
+	 *            the body of FindProxyForURL.
+	 * @param frameSize
+	 *            the number of parameters and local variables.
+	 ************************************************************************/
+
+	CompiledPacScript(Statement body, int frameSize) {
+		this.body = body;
+		this.frameSize = frameSize;
+	}
+
+	/*************************************************************************
+	 * Runs FindProxyForURL.
+	 *
+	 * @param methods
+	 *            the implementation of the PAC functions.
+	 * @param url
+	 *            the URL to evaluate.
+	 * @param host
+	 *            the host name part of the URL.
+	 * @return the script result.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 * @throws UnsupportedScriptException
+	 *             if the script needs a real JavaScript engine.
+	 ************************************************************************/
+
+	String evaluate(ScriptMethods methods, String url, String host)
+			throws ProxyEvaluationException, UnsupportedScriptException {
+		Frame frame = new Frame(methods, this.frameSize);
+		frame.slots[0] = url;
+		frame.slots[1] = host;
+		Object result;
+		try {
+			result = this.body.execute(frame);
+		} catch (RuntimeException e) {
+			throw new ProxyEvaluationException("Error while executing PAC script: " + e.getMessage(), e, null);
+		}
+		if (result == NORMAL || result == null || result == UNDEFINED) {
+			return null;
+		}
+		if (!(result instanceof String)) {
+			throw new ProxyEvaluationException("PAC script returned a " + typeOf(result) + " instead of a string.");
+		}
+		return (String) result;
+	}
+
+	/*************************************************************************
+	 * Signals that a script uses JavaScript features not supported by the
+	 * compiler.
+	 ************************************************************************/
+
+	static final class UnsupportedScriptException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		UnsupportedScriptException(String message) {
+			super(message);
+		}
+	}
+
+	static final class Frame {
+		final ScriptMethods methods;
+		final Object[] slots;
+
+		Frame(ScriptMethods methods, int size) {
+			this.methods = methods;
+			this.slots = new Object[size];
+			for (int i = 0; i < size; i++) {
+				this.slots[i] = UNDEFINED;
+			}
+		}
+	}
+
+	// Statements
+
+	abstract static class Statement {
+		/**
+		 * @return NORMAL or the value of an executed return statement.
+		 */
+		abstract Object execute(Frame frame) throws UnsupportedScriptException;
+	}
+
+	static final class Block extends Statement {
+		private final Statement[] statements;
+
+		Block(Statement[] statements) {
+			this.statements = statements;
+		}
+
+		@Override
+		Object execute(Frame frame) throws UnsupportedScriptException {
+			for (Statement statement : this.statements) {
+				Object result = statement.execute(frame);
+				if (result != NORMAL) {
+					return result;
+				}
+			}
+			return NORMAL;
+		}
+	}
+
+	static final class If extends Statement {
+		private final Expression condition;
+		private final Statement then;
+		private final Statement otherwise;
+
+		If(Expression condition, Statement then, Statement otherwise) {
+			this.condition = condition;
+			this.then = then;
+			this.otherwise = otherwise;
+		}
+
+		@Override
+		Object execute(Frame frame) throws UnsupportedScriptException {
+			if (toBoolean(this.condition.evaluate(frame))) {
+				return this.then.execute(frame);
+			}
+			return this.otherwise == null ? NORMAL : this.otherwise.execute(frame);
+		}
+	}
+
+	static final class Return extends Statement {
+		private final Expression value;
+
+		Return(Expression value) {
+			this.value = value;
+		}
+
+		@Override
+		Object execute(Frame frame) throws UnsupportedScriptException {
+			return this.value == null ? UNDEFINED : this.value.evaluate(frame);
+		}
+	}
+
+	static final class ExpressionStatement extends Statement {
+		private final Expression expression;
+
+		ExpressionStatement(Expression expression) {
+			this.expression = expression;
+		}
+
+		@Override
+		Object execute(Frame frame) throws UnsupportedScriptException {
+			this.expression.evaluate(frame);
+			return NORMAL;
+		}
+	}
+
+	// Expressions
+
+	abstract static class Expression {
+		abstract Object evaluate(Frame frame) throws UnsupportedScriptException;
+	}
+
+	static final class Constant extends Expression {
+		final Object value;
+
+		Constant(Object value) {
+			this.value = value;
+		}
+
+		@Override
+		Object evaluate(Frame frame) {
+			return this.value;
+		}
+	}
+
+	static final class Variable extends Expression {
+		private final int slot;
+
+		Variable(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		Object evaluate(Frame frame) {
+			return frame.slots[this.slot];
+		}
+	}
+
+	static final class Assignment extends Expression {
+		private final int slot;
+		private final Expression value;
+
+		Assignment(int slot, Expression value) {
+			this.slot = slot;
+			this.value = value;
+		}
+
+		@Override
+		Object evaluate(Frame frame) throws UnsupportedScriptException {
+			Object v = this.value.evaluate(frame);
+			frame.slots[this.slot] = v;
+			return v;
+		}
+	}
+
+	static final class Conditional extends Expression {
+		private final Expression condition;
+		private final Expression then;
+		private final Expression otherwise;
+
+		Conditional(Expression condition, Expression then, Expression otherwise) {
+			this.condition = condition;
+			this.then = then;
+			this.otherwise = otherwise;
+		}
+
+		@Override
+		Object evaluate(Frame frame) throws UnsupportedScriptException {
+			return toBoolean(this.condition.evaluate(frame)) ? this.then.evaluate(frame) : this.otherwise.evaluate(frame);
+		}
+	}
+
+	static final class And extends Expression {
+		private final Expression left;
+		private final Expression right;
+
+		And(Expression left, Expression right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		Object evaluate(Frame frame) throws UnsupportedScriptException {
+			Object l = this.left.evaluate(frame);
+			return toBoolean(l) ? this.right.evaluate(frame) : l;
+		}
+	}
+
+	static final class Or extends Expression {
+		private final Expression left;
+		private final Expression right;
+
+		Or(Expression left, Expression right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		Object evaluate(Frame frame) throws UnsupportedScriptException {
+			Object l = this.left.evaluate(frame);
+			return toBoolean(l) ? l : this.right.evaluate(frame);
+		}
+	}
+
+	enum UnaryOperator {
+		NOT, NEGATE, TYPEOF
+	}
+
+	static final class Unary extends Expression {
+		private final UnaryOperator operator;
+		private final Expression operand;
+
+		Unary(UnaryOperator operator, Expression operand) {
+			this.operator = operator;
+			this.operand = operand;
+		}
+
+		@Override
+		Object evaluate(Frame frame) throws UnsupportedScriptException {
+			Object v = this.operand.evaluate(frame);
+			switch (this.operator) {
+			case NOT:
+				return !toBoolean(v);
+			case NEGATE:
+				return -toNumber(v);
+			default:
+				return typeOf(v);
+			}
+		}
+	}
+
+	enum BinaryOperator {
+		ADD, SUBTRACT, EQUALS, NOT_EQUALS, STRICT_EQUALS, STRICT_NOT_EQUALS, LESS, GREATER, LESS_OR_EQUAL,
+		GREATER_OR_EQUAL
+	}
+
+	static final class Binary extends Expression {
+		private final BinaryOperator operator;
+		private final Expression left;
+		private final Expression right;
+
+		Binary(BinaryOperator operator, Expression left, Expression right) {
+			this.operator = operator;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		Object evaluate(Frame frame) throws UnsupportedScriptException {
+			Object l = this.left.evaluate(frame);
+			Object r = this.right.evaluate(frame);
+			switch (this.operator) {
+			case ADD:
+				if (l instanceof String || r instanceof String) {
+					return toJsString(l).concat(toJsString(r));
+				}
+				return toNumber(l) + toNumber(r);
+			case SUBTRACT:
+				return toNumber(l) - toNumber(r);
+			case EQUALS:
+				return looseEquals(l, r);
+			case NOT_EQUALS:
+				return !looseEquals(l, r);
+			case STRICT_EQUALS:
+				return strictEquals(l, r);
+			case STRICT_NOT_EQUALS:
+				return !strictEquals(l, r);
+			default:
+				return compare(this.operator, l, r);
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * The PAC functions that can be called from a compiled script.
+	 ************************************************************************/
+
+	enum Builtin {
+		IS_PLAIN_HOST_NAME("isPlainHostName", 1),
+		DNS_DOMAIN_IS("dnsDomainIs", 2),
+		LOCAL_HOST_OR_DOMAIN_IS("localHostOrDomainIs", 2),
+		IS_RESOLVABLE("isResolvable", 1),
+		IS_RESOLVABLE_EX("isResolvableEx", 1),
+		IS_IN_NET("isInNet", 3),
+		IS_IN_NET_EX("isInNetEx", 2),
+		DNS_RESOLVE("dnsResolve", 1),
+		DNS_RESOLVE_EX("dnsResolveEx", 1),
+		MY_IP_ADDRESS("myIpAddress", 0),
+		MY_IP_ADDRESS_EX("myIpAddressEx", 0),
+		DNS_DOMAIN_LEVELS("dnsDomainLevels", 1),
+		SH_EXP_MATCH("shExpMatch", 2),
+		SORT_IP_ADDRESS_LIST("sortIpAddressList", 1),
+		GET_CLIENT_VERSION("getClientVersion", 0);
+
+		final String functionName;
+		final int arity;
+
+		Builtin(String functionName, int arity) {
+			this.functionName = functionName;
+			this.arity = arity;
+		}
+
+		static Builtin forName(String name) {
+			for (Builtin builtin : values()) {
+				if (builtin.functionName.equals(name)) {
+					return builtin;
+				}
+			}
+			return null;
+		}
+
+		Object invoke(ScriptMethods m, String[] a) {
+			switch (this) {
+			case IS_PLAIN_HOST_NAME:
+				return m.isPlainHostName(a[0]);
+			case DNS_DOMAIN_IS:
+				return m.dnsDomainIs(a[0], a[1]);
+			case LOCAL_HOST_OR_DOMAIN_IS:
+				return m.localHostOrDomainIs(a[0], a[1]);
+			case IS_RESOLVABLE:
+				return m.isResolvable(a[0]);
+			case IS_RESOLVABLE_EX:
+				return m.isResolvableEx(a[0]);
+			case IS_IN_NET:
+				return m.isInNet(a[0], a[1], a[2]);
+			case IS_IN_NET_EX:
+				return m.isInNetEx(a[0], a[1]);
+			case DNS_RESOLVE:
+				return m.dnsResolve(a[0]);
+			case DNS_RESOLVE_EX:
+				return m.dnsResolveEx(a[0]);
+			case MY_IP_ADDRESS:
+				return m.myIpAddress();
+			case MY_IP_ADDRESS_EX:
+				return m.myIpAddressEx();
+			case DNS_DOMAIN_LEVELS:
+				return (double) m.dnsDomainLevels(a[0]);
+			case SH_EXP_MATCH:
+				return m.shExpMatch(a[0], a[1]);
+			case SORT_IP_ADDRESS_LIST:
+				return m.sortIpAddressList(a[0]);
+			default:
+				return m.getClientVersion();
+			}
+		}
+	}
+
+	static final class Call extends Expression {
+		private final Builtin builtin;
+		private final Expression[] arguments;
+
+		Call(Builtin builtin, Expression[] arguments) {
+			this.builtin = builtin;
+			this.arguments = arguments;
+		}
+
+		@Override
+		Object evaluate(Frame frame) throws UnsupportedScriptException {
+			String[] args = new String[this.arguments.length];
+			for (int i = 0; i < args.length; i++) {
+				Object v = this.arguments[i].evaluate(frame);
+				// Like the script engine: JavaScript null stays null for String parameters.
+				args[i] = v == null ? null : toJsString(v);
+			}
+			Object result = this.builtin.invoke(frame.methods, args);
+			// Java methods returning null yield the string "null" in the engine aliases.
+			return result == null ? "null" : result;
+		}
+	}
+
+	enum StringMember {
+		LENGTH, TO_LOWER_CASE, TO_UPPER_CASE, INDEX_OF, SUBSTRING
+	}
+
+	static final class StringMemberAccess extends Expression {
+		private final StringMember member;
+		private final Expression target;
+		private final Expression[] arguments;
+
+		StringMemberAccess(StringMember member, Expression target, Expression[] arguments) {
+			this.member = member;
+			this.target = target;
+			this.arguments = arguments;
+		}
+
+		@Override
+		Object evaluate(Frame frame) throws UnsupportedScriptException {
+			Object t = this.target.evaluate(frame);
+			if (!(t instanceof String)) {
+				throw new UnsupportedScriptException("String method on a " + typeOf(t) + " value.");
+			}
+			String s = (String) t;
+			switch (this.member) {
+			case LENGTH:
+				return (double) s.length();
+			case TO_LOWER_CASE:
+				return s.toLowerCase(Locale.ROOT);
+			case TO_UPPER_CASE:
+				return s.toUpperCase(Locale.ROOT);
+			case INDEX_OF:
+				String search = toJsString(argument(frame, 0));
+				int from = this.arguments.length > 1 ? clamp(toInteger(argument(frame, 1)), s.length()) : 0;
+				return (double) s.indexOf(search, from);
+			default:
+				int start = clamp(toInteger(argument(frame, 0)), s.length());
+				int end = this.arguments.length > 1 && argument(frame, 1) != UNDEFINED
+						? clamp(toInteger(argument(frame, 1)), s.length()) : s.length();
+				return s.substring(Math.min(start, end), Math.max(start, end));
+			}
+		}
+
+		private Object argument(Frame frame, int index) throws UnsupportedScriptException {
+			return index < this.arguments.length ? this.arguments[index].evaluate(frame) : UNDEFINED;
+		}
+	}
+
+	// JavaScript type conversions
+
+	static boolean toBoolean(Object v) {
+		if (v instanceof Boolean) {
+			return (Boolean) v;
+		}
+		if (v instanceof String) {
+			return ((String) v).length() > 0;
+		}
+		if (v instanceof Double) {
+			double d = (Double) v;
+			return d != 0 && !Double.isNaN(d);
+		}
+		return false;
+	}
+
+	static double toNumber(Object v) {
+		if (v instanceof Double) {
+			return (Double) v;
+		}
+		if (v instanceof Boolean) {
+			return ((Boolean) v) ? 1 : 0;
+		}
+		if (v == null) {
+			return 0;
+		}
+		if (v instanceof String) {
+			return stringToNumber((String) v);
+		}
+		return Double.NaN;
+	}
+
+	private static double stringToNumber(String s) {
+		String t = s.trim();
+		if (t.isEmpty()) {
+			return 0;
+		}
+		if (t.startsWith("0x") || t.startsWith("0X")) {
+			try {
+				return Long.parseLong(t.substring(2), 16);
+			} catch (NumberFormatException e) {
+				return Double.NaN;
+			}
+		}
+		if (t.equals("Infinity") || t.equals("+Infinity")) {
+			return Double.POSITIVE_INFINITY;
+		}
+		if (t.equals("-Infinity")) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		// Only plain decimal literals, Double.parseDouble also accepts "1d", "NaN", ...
+		if (!t.matches("[+-]?(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?")) {
+			return Double.NaN;
+		}
+		return Double.parseDouble(t);
+	}
+
+	private static int toInteger(Object v) {
+		double d = toNumber(v);
+		if (Double.isNaN(d)) {
+			return 0;
+		}
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, d));
+	}
+
+	private static int clamp(int index, int length) {
+		return Math.max(0, Math.min(index, length));
+	}
+
+	static String toJsString(Object v) throws UnsupportedScriptException {
+		if (v instanceof String) {
+			return (String) v;
+		}
+		if (v instanceof Double) {
+			double d = (Double) v;
+			if (Double.isNaN(d)) {
+				return "NaN";
+			}
+			if (Double.isInfinite(d)) {
+				return d > 0 ? "Infinity" : "-Infinity";
+			}
+			if (d == Math.rint(d) && Math.abs(d) < 1e21) {
+				return Long.toString((long) d);
+			}
+			throw new UnsupportedScriptException("Formatting of the number " + d);
+		}
+		return String.valueOf(v);
+	}
+
+	static String typeOf(Object v) {
+		if (v == UNDEFINED) {
+			return "undefined";
+		}
+		if (v == null) {
+			return "object";
+		}
+		if (v instanceof String) {
+			return "string";
+		}
+		if (v instanceof Double) {
+			return "number";
+		}
+		return "boolean";
+	}
+
+	private static boolean strictEquals(Object l, Object r) {
+		if (l instanceof Double && r instanceof Double) {
+			return ((Double) l).doubleValue() == ((Double) r).doubleValue();
+		}
+		return l == r || (l != null && l.equals(r));
+	}
+
+	private static boolean looseEquals(Object l, Object r) {
+		boolean lNullish = l == null || l == UNDEFINED;
+		boolean rNullish = r == null || r == UNDEFINED;
+		if (lNullish || rNullish) {
+			return lNullish && rNullish;
+		}
+		if (l.getClass() == r.getClass()) {
+			return strictEquals(l, r);
+		}
+		// Different primitive types are compared as numbers.
+		return toNumber(l) == toNumber(r);
+	}
+
+	private static boolean compare(BinaryOperator operator, Object l, Object r) {
+		int c;
+		if (l instanceof String && r instanceof String) {
+			c = ((String) l).compareTo((String) r);
+		} else {
+			double a = toNumber(l);
+			double b = toNumber(r);
+			if (Double.isNaN(a) || Double.isNaN(b)) {
+				return false;
+			}
+			c = Double.compare(a == 0 ? 0 : a, b == 0 ? 0 : b);
+		}
+		switch (operator) {
+		case LESS:
+			return c < 0;
+		case GREATER:
+			return c > 0;
+		case LESS_OR_EQUAL:
+			return c <= 0;
+		default:
+			return c >= 0;
+		}
+	}
+
+}
@@ -0,0 +1,165 @@
+package jp.co.fusions.win_proxy_selector.selector.pac;
+
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.UnsupportedScriptException;
+import jp.co.fusions.win_proxy_selector.util.Logger;
+import jp.co.fusions.win_proxy_selector.util.Logger.LogLevel;
+import jp.co.fusions.win_proxy_selector.util.Metrics;
+
+/*****************************************************************************
+ * PAC parser that compiles the script to Java with the PacScriptCompiler and
+ * evaluates it without a JavaScript engine.<br>
+ *
+ * Most PAC files only use plain if / else logic and the PAC helper functions,
+ * which the compiler covers. Scripts using anything beyond that are handed to
+ * a JavaxPacScriptParser, which is created on first use only. So the
+ * JavaScript engine is neither started nor required at all for the common
+ * case.
+ ****************************************************************************/
+class JavaPacScriptParser implements PacScriptParser {
+
+	private final PacScriptSource source;
+	private final int poolSize;
+	private final PacScriptMethods methods = new PacScriptMethods();
+	private volatile Program program;
+	private volatile JavaxPacScriptParser fallback;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param source
+	 *            the source for the PAC script.
+	 * @param poolSize
+	 *            the maximum number of JavaScript engines used if the script
+	 *            needs to be evaluated by the fallback parser.
+	 ************************************************************************/
+	JavaPacScriptParser(PacScriptSource source, int poolSize) {
+		this.source = source;
+		this.poolSize = poolSize;
+	}
+
+	/***************************************************************************
+	 * Gets the source of the PAC script used by this parser.
+	 *
+	 * @return a PacScriptSource.
+	 **************************************************************************/
+	public PacScriptSource getScriptSource() {
+		return this.source;
+	}
+
+	/***************************************************************************
+	 * Gets the pool of engines used by the fallback parser.
+	 *
+	 * @return the engine pool, null if the fallback parser was not needed so
+	 *         far.
+	 **************************************************************************/
+	PacEnginePool getEnginePool() {
+		JavaxPacScriptParser current = this.fallback;
+		return current == null ? null : current.getEnginePool();
+	}
+
+	/***************************************************************************
+	 * Checks if the current script can be evaluated without JavaScript engine.
+	 *
+	 * @return true if the script compiled.
+	 * @throws ProxyEvaluationException
+	 *             if the script could not be loaded.
+	 **************************************************************************/
+	boolean isCompiled() throws ProxyEvaluationException {
+		return getProgram(this.source.getScriptContent()).compiled != null;
+	}
+
+	/*************************************************************************
+	 * Evaluates the given URL and host against the PAC script.
+	 *
+	 * @param url
+	 *            the URL to evaluate.
+	 * @param host
+	 *            the host name part of the URL.
+	 * @return the script result.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 ************************************************************************/
+	public String evaluate(String url, String host) throws ProxyEvaluationException {
+		String script;
+		try {
+			script = this.source.getScriptContent();
+		} catch (RuntimeException e) {
+			throw new ProxyEvaluationException(e);
+		}
+		Program current = getProgram(script);
+		if (current.compiled != null) {
+			Logger.log(getClass(), LogLevel.TRACE, "Evaluating compiled FindProxyForURL(\"{0}\",\"{1}\") from: {2}", url,
+				host, this.source.getName());
+			this.methods.beginEvaluation();
+			try {
+				String result = current.compiled.evaluate(this.methods, url, host);
+				Logger.log(getClass(), LogLevel.DEBUG, "PAC script evaluates to : \"{0}\"", result);
+				return result;
+			} catch (UnsupportedScriptException e) {
+				Logger.log(getClass(), LogLevel.DEBUG, "Compiled PAC script not applicable, using JavaScript engine: {0}",
+					e.getMessage());
+			} finally {
+				this.methods.endEvaluation();
+			}
+		}
+		return getFallback().evaluate(url, host);
+	}
+
+	private Program getProgram(String script) {
+		Program current = this.program;
+		if (current != null && (current.script == script || current.script.equals(script))) {
+			return current;
+		}
+		CompiledPacScript compiled = null;
+		long start = Metrics.start();
+		try {
+			compiled = PacScriptCompiler.compile(script, this.methods);
+			Logger.log(getClass(), LogLevel.INFO, "Compiled PAC script from: {0}", this.source.getName());
+		} catch (UnsupportedScriptException e) {
+			Logger.log(getClass(), LogLevel.INFO, "PAC script from {0} needs a JavaScript engine: {1}",
+				this.source.getName(), e.getMessage());
+		} catch (RuntimeException e) {
+			Logger.log(getClass(), LogLevel.DEBUG, "Initializing the compiled PAC script failed.", e);
+		} finally {
+			Metrics.stop(Metrics.PAC_ENGINE_SETUP, start);
+		}
+		current = new Program(script, compiled);
+		this.program = current;
+		return current;
+	}
+
+	private JavaxPacScriptParser getFallback() throws ProxyEvaluationException {
+		// Double checked, evaluations that fall back must not serialize here.
+		JavaxPacScriptParser current = this.fallback;
+		if (current != null) {
+			return current;
+		}
+		synchronized (this) {
+			if (this.fallback == null) {
+				try {
+					this.fallback = new JavaxPacScriptParser(this.source, this.poolSize);
+				} catch (LinkageError e) {
+					// No Nashorn on this Java runtime.
+					throw new ProxyEvaluationException("No JavaScript engine available to evaluate the PAC script.",
+						e, null);
+				}
+			}
+			return this.fallback;
+		}
+	}
+
+	/*****************************************************************************
+	 * A script content together with its compiled form.
+	 ****************************************************************************/
+
+	private static final class Program {
+		final String script;
+		final CompiledPacScript compiled;
+
+		Program(String script, CompiledPacScript compiled) {
+			this.script = script;
+			this.compiled = compiled;
+		}
+	}
+
+}
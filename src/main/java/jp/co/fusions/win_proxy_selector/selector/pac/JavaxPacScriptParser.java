@@ -3,12 +3,17 @@ package jp.co.fusions.win_proxy_selector.selector.pac;
 import delight.nashornsandbox.NashornSandbox;
 import delight.nashornsandbox.NashornSandboxes;
 import java.lang.reflect.Method;
+import javax.script.Invocable;
 import jp.co.fusions.win_proxy_selector.util.Logger;
 import jp.co.fusions.win_proxy_selector.util.Logger.LogLevel;
+import jp.co.fusions.win_proxy_selector.util.Metrics;
 
 /*****************************************************************************
  * PAC parser using the Nashorn JavaScript engine bundled with Java 1.8<br>
  *
+ * Every thread evaluating the script borrows an engine of its own from a
+ * pool, so concurrent evaluations do not share the engine state.<br>
+ *
  * More information about PAC can be found there:<br>
  * <a href="http://en.wikipedia.org/wiki/Proxy_auto-config">Proxy_auto-config
  * </a><br>
@@ -23,11 +28,15 @@ class JavaxPacScriptParser implements PacScriptParser {
 	static final String SCRIPT_METHODS_OBJECT = "__pacutil";
 	static final String SOURCE_NAME = JavaxPacScriptParser.class.getName();
 
+	private static final String FIND_PROXY_FOR_URL = "FindProxyForURL";
+	private static final String FIND_PROXY_FOR_URL_EX = "FindProxyForURLEx";
+
 	private final PacScriptSource source;
-	private final NashornSandbox engine;
+	private final PacScriptMethods scriptMethods = new PacScriptMethods();
+	private final PacEnginePool enginePool;
 
 	/*************************************************************************
-	 * Constructor
+	 * Constructor using one engine per available processor.
 	 *
 	 * @param source
 	 *            the source for the PAC script.
@@ -35,8 +44,28 @@ class JavaxPacScriptParser implements PacScriptParser {
 	 *             on error.
 	 ************************************************************************/
 	JavaxPacScriptParser(PacScriptSource source) throws ProxyEvaluationException {
+		this(source, Runtime.getRuntime().availableProcessors());
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param source
+	 *            the source for the PAC script.
+	 * @param poolSize
+	 *            the maximum number of engines used for concurrent
+	 *            evaluations.
+	 * @throws ProxyEvaluationException
+	 *             on error.
+	 ************************************************************************/
+	JavaxPacScriptParser(PacScriptSource source, int poolSize) throws ProxyEvaluationException {
 		this.source = source;
-		this.engine = setupEngine();
+		this.enginePool = new PacEnginePool(poolSize, new PacEnginePool.EngineFactory() {
+			public NashornSandbox create() throws ProxyEvaluationException {
+				return setupEngine();
+			}
+		});
+		this.enginePool.prestart();
 	}
 
 	/*************************************************************************
@@ -48,7 +77,7 @@ class JavaxPacScriptParser implements PacScriptParser {
 	 ************************************************************************/
 	private NashornSandbox setupEngine() throws ProxyEvaluationException {
 		NashornSandbox engine = NashornSandboxes.create();
-		engine.inject(SCRIPT_METHODS_OBJECT, new PacScriptMethods());
+		engine.inject(SCRIPT_METHODS_OBJECT, this.scriptMethods);
 		// allow String
 		engine.allow(String.class);
 
@@ -118,6 +147,15 @@ class JavaxPacScriptParser implements PacScriptParser {
 		return this.source;
 	}
 
+	/***************************************************************************
+	 * Gets the pool of engines used by this parser.
+	 *
+	 * @return the engine pool.
+	 **************************************************************************/
+	PacEnginePool getEnginePool() {
+		return this.enginePool;
+	}
+
 	/*************************************************************************
 	 * Evaluates the given URL and host against the PAC script.
 	 *
@@ -132,17 +170,24 @@ class JavaxPacScriptParser implements PacScriptParser {
 	public String evaluate(String url, String host) throws ProxyEvaluationException {
 		try {
 			String script = this.source.getScriptContent();
-			if (script.contains("FindProxyForURLEx")) {
-				// for IPv6
-				try {
-					return evaluate(url, host, script, "FindProxyForURLEx");
-				} catch (ProxyEvaluationException e) {
-					Logger.log(getClass(), LogLevel.DEBUG, "FindProxyForURLEx failed. Trying FindProxyForURL. \n{0}\n{1}", e.getScript(), e);
-					return evaluate(url, host, script, "FindProxyForURL");
+			PacEnginePool.Engine engine = this.enginePool.borrow();
+			this.scriptMethods.beginEvaluation();
+			try {
+				if (compileIfChanged(engine, script)) {
+					// for IPv6
+					try {
+						return invoke(engine, FIND_PROXY_FOR_URL_EX, url, host);
+					} catch (ProxyEvaluationException e) {
+						Logger.log(getClass(), LogLevel.DEBUG, "FindProxyForURLEx failed. Trying FindProxyForURL. \n{0}\n{1}", e.getScript(), e);
+						return invoke(engine, FIND_PROXY_FOR_URL, url, host);
+					}
+				} else {
+					// for IPv4
+					return invoke(engine, FIND_PROXY_FOR_URL, url, host);
 				}
-			} else {
-				// for IPv4
-				return evaluate(url, host, script, "FindProxyForURL");
+			} finally {
+				this.scriptMethods.endEvaluation();
+				this.enginePool.release(engine);
 			}
 		} catch (ProxyEvaluationException e) {
 			throw e;
@@ -151,19 +196,55 @@ class JavaxPacScriptParser implements PacScriptParser {
 		}
 	}
 
-	private String evaluate(String url, String host, String scriptBody, String findProxyFunctionName) throws ProxyEvaluationException {
-		String evalMethod = " ;" + findProxyFunctionName + " (\"" + url + "\",\"" + host + "\")";
-		String script = scriptBody + evalMethod;
-		Logger.log(getClass(), LogLevel.INFO, "Evaluating PAC script from: {0}\n\n{1}\n", this.source.getName(), script);
+	/*************************************************************************
+	 * Loads the script body into the engine unless exactly this script is
+	 * already loaded. The body only defines functions, so evaluating it once
+	 * per script version is enough and the entry point can afterwards be
+	 * invoked directly.
+	 *
+	 * @param engine
+	 *            the engine borrowed by the current thread.
+	 * @param script
+	 *            the current script content.
+	 * @return true if the script provides FindProxyForURLEx.
+	 * @throws ProxyEvaluationException
+	 *             on script error.
+	 ************************************************************************/
+	private boolean compileIfChanged(PacEnginePool.Engine engine, String script) throws ProxyEvaluationException {
+		String compiled = engine.compiledScript;
+		if (compiled == script || (compiled != null && compiled.equals(script))) {
+			return engine.hasFindProxyForURLEx;
+		}
+		Logger.log(getClass(), LogLevel.INFO, "Loading PAC script from: {0}", this.source.getName());
+		long start = Metrics.start();
+		try {
+			engine.sandbox.eval(script);
+		} catch (Exception e) {
+			throw new ProxyEvaluationException("Error while loading PAC script: " + e.getMessage(), e, script);
+		} finally {
+			Metrics.stop(Metrics.PAC_ENGINE_SETUP, start);
+		}
+		engine.hasFindProxyForURLEx = script.contains(FIND_PROXY_FOR_URL_EX);
+		engine.compiledScript = script;
+		return engine.hasFindProxyForURLEx;
+	}
+
+	private String invoke(PacEnginePool.Engine engine, String findProxyFunctionName, String url, String host)
+			throws ProxyEvaluationException {
+		if (Logger.isEnabled(getClass(), LogLevel.TRACE)) {
+			Logger.log(getClass(), LogLevel.TRACE, "Evaluating {0}(\"{1}\",\"{2}\") from: {3}", findProxyFunctionName,
+				url, host, this.source.getName());
+		}
 
 		try {
-			Object result = this.engine.eval(script);
-			Logger.log(getClass(), LogLevel.INFO, "PAC script evaluates to : \"{0}\"", result);
+			Invocable invocable = engine.sandbox.getSandboxedInvocable();
+			Object result = invocable.invokeFunction(findProxyFunctionName, url, host);
+			Logger.log(getClass(), LogLevel.DEBUG, "PAC script evaluates to : \"{0}\"", result);
 			return (String) result;
 		} catch (Exception e) {
-			throw new ProxyEvaluationException("Error while executing PAC script: " + e.getMessage(), e, script);
+			throw new ProxyEvaluationException("Error while executing PAC script: " + e.getMessage(), e,
+				findProxyFunctionName + "(\"" + url + "\",\"" + host + "\")");
 		}
-
 	}
 
 }
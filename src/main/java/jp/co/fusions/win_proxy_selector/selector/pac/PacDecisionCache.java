@@ -0,0 +1,275 @@
+package jp.co.fusions.win_proxy_selector.selector.pac;
+
+import java.net.Proxy;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.co.fusions.win_proxy_selector.util.Logger;
+import jp.co.fusions.win_proxy_selector.util.Logger.LogLevel;
+import jp.co.fusions.win_proxy_selector.util.Metrics;
+
+/*****************************************************************************
+ * A bounded LRU cache for the decisions of a PAC script. Most PAC scripts
+ * decide on the host only, so by default the decisions are cached per scheme
+ * and host. For scripts that inspect the path of an URL the cache can be
+ * switched to use the complete URL as key.
+ *
+ * Entries expire after a fixed time to live and the whole cache is dropped
+ * as soon as the version of the PAC script changes.
+ *
+ * The entries are spread over up to 16 LRU maps by the hash of the key, so
+ * concurrent lookups of different hosts rarely wait for the same lock.
+ *
+ * Selectors created without an explicit cache use one if the system property
+ * OVERRIDE_DECISION_CACHE is set to "host" or "url".
+ ****************************************************************************/
+
+public class PacDecisionCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+	public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+	public static final String OVERRIDE_DECISION_CACHE = "com.btr.proxy.pac.decisionCache";
+
+	// Upper limit of the lock stripes, each stripe holds at least this many entries.
+	private static final int MAX_STRIPES = 16;
+	private static final int MIN_STRIPE_ENTRIES = 32;
+
+	private final int maxEntries;
+	private final long ttlNanos;
+	private final boolean keyByUrl;
+	private final LinkedHashMap<String, Entry>[] stripes;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong scriptVersion = new AtomicLong();
+
+	/*************************************************************************
+	 * Constructor for a host keyed cache with default size and time to live.
+	 ************************************************************************/
+
+	public PacDecisionCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS, false);
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param maxEntries
+	 *            the maximum number of cached decisions.
+	 * @param ttlMillis
+	 *            the time to live of a cached decision in milliseconds.
+	 * @param keyByUrl
+	 *            true to cache per URL instead of per scheme and host. Use
+	 *            this for scripts that make decisions on the URL path.
+	 ************************************************************************/
+
+	@SuppressWarnings("unchecked")
+	public PacDecisionCache(int maxEntries, long ttlMillis, boolean keyByUrl) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries must be positive.");
+		}
+		this.maxEntries = maxEntries;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.keyByUrl = keyByUrl;
+		int stripeCount = Math.min(MAX_STRIPES, Integer.highestOneBit(Math.max(1, maxEntries / MIN_STRIPE_ENTRIES)));
+		final int stripeEntries = maxEntries / stripeCount;
+		this.stripes = new LinkedHashMap[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			this.stripes[i] = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+					return size() > stripeEntries;
+				}
+			};
+		}
+	}
+
+	/*************************************************************************
+	 * Creates the cache configured with the system property
+	 * OVERRIDE_DECISION_CACHE: "host" for a host keyed cache, "url" for an URL
+	 * keyed one, both with default size and time to live.
+	 *
+	 * @return the cache, null if none is configured.
+	 ************************************************************************/
+
+	static PacDecisionCache fromSystemProperty() {
+		String prop = System.getProperty(OVERRIDE_DECISION_CACHE);
+		if (prop == null || prop.trim().length() == 0) {
+			return null;
+		}
+		String mode = prop.trim().toLowerCase(Locale.ROOT);
+		if (mode.equals("host") || mode.equals("url")) {
+			return new PacDecisionCache(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS, mode.equals("url"));
+		}
+		Logger.log(PacDecisionCache.class, LogLevel.DEBUG, "Invalid override property : {0}={1}",
+			OVERRIDE_DECISION_CACHE, prop);
+		return null;
+	}
+
+	/*************************************************************************
+	 * Builds the cache key for the given URI.
+	 *
+	 * @param uri
+	 *            the URI to build the key for.
+	 * @return the key.
+	 ************************************************************************/
+
+	String keyFor(URI uri) {
+		if (this.keyByUrl) {
+			return uri.toString();
+		}
+		String host = uri.getHost();
+		return uri.getScheme() + "://" + (host == null ? "" : host.toLowerCase(Locale.ROOT));
+	}
+
+	private LinkedHashMap<String, Entry> stripeFor(String key) {
+		int h = key.hashCode();
+		return this.stripes[(h ^ (h >>> 16)) & (this.stripes.length - 1)];
+	}
+
+	/*************************************************************************
+	 * Gets a cached decision.
+	 *
+	 * @param key
+	 *            the key as returned by keyFor().
+	 * @param version
+	 *            the current version of the PAC script.
+	 * @return the cached proxy list or null if not cached.
+	 ************************************************************************/
+
+	List<Proxy> get(String key, long version) {
+		invalidateIfOutdated(version);
+		LinkedHashMap<String, Entry> stripe = stripeFor(key);
+		synchronized (stripe) {
+			Entry entry = stripe.get(key);
+			if (entry != null && entry.version == version && entry.expiresAtNanos - System.nanoTime() > 0) {
+				this.hitCount.incrementAndGet();
+				Metrics.increment(Metrics.PAC_CACHE_HIT);
+				return entry.proxies;
+			}
+			if (entry != null && entry.version <= version) {
+				stripe.remove(key);
+			}
+		}
+		this.missCount.incrementAndGet();
+		Metrics.increment(Metrics.PAC_CACHE_MISS);
+		return null;
+	}
+
+	/*************************************************************************
+	 * Caches a decision.
+	 *
+	 * @param key
+	 *            the key as returned by keyFor().
+	 * @param version
+	 *            the version of the PAC script the decision was made with.
+	 * @param proxies
+	 *            the decision, must not be modified afterwards.
+	 ************************************************************************/
+
+	void put(String key, long version, List<Proxy> proxies) {
+		invalidateIfOutdated(version);
+		if (version == this.scriptVersion.get()) {
+			LinkedHashMap<String, Entry> stripe = stripeFor(key);
+			synchronized (stripe) {
+				stripe.put(key, new Entry(proxies, version, System.nanoTime() + this.ttlNanos));
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Drops all entries when a new script version is seen. Entries carry their
+	 * version as well, so a lookup racing with the clear never returns an
+	 * outdated decision. Script versions only grow, a thread that still holds
+	 * an older version does not move the cache back.
+	 ************************************************************************/
+
+	private void invalidateIfOutdated(long version) {
+		long current = this.scriptVersion.get();
+		while (version > current) {
+			if (this.scriptVersion.compareAndSet(current, version)) {
+				clear();
+				return;
+			}
+			current = this.scriptVersion.get();
+		}
+	}
+
+	/*************************************************************************
+	 * Drops all cached decisions.
+	 ************************************************************************/
+
+	public void clear() {
+		for (LinkedHashMap<String, Entry> stripe : this.stripes) {
+			synchronized (stripe) {
+				stripe.clear();
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * @return the number of currently cached decisions.
+	 ************************************************************************/
+
+	public int size() {
+		int result = 0;
+		for (LinkedHashMap<String, Entry> stripe : this.stripes) {
+			synchronized (stripe) {
+				result += stripe.size();
+			}
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * @return the maximum number of cached decisions.
+	 ************************************************************************/
+
+	public int getMaxEntries() {
+		return this.maxEntries;
+	}
+
+	/*************************************************************************
+	 * @return true if decisions are cached per URL, false if per scheme and
+	 *         host.
+	 ************************************************************************/
+
+	public boolean isKeyByUrl() {
+		return this.keyByUrl;
+	}
+
+	/*************************************************************************
+	 * @return the number of lookups answered from the cache.
+	 ************************************************************************/
+
+	public long getHitCount() {
+		return this.hitCount.get();
+	}
+
+	/*************************************************************************
+	 * @return the number of lookups that needed a script evaluation.
+	 ************************************************************************/
+
+	public long getMissCount() {
+		return this.missCount.get();
+	}
+
+	private static final class Entry {
+		final List<Proxy> proxies;
+		final long version;
+		final long expiresAtNanos;
+
+		Entry(List<Proxy> proxies, long version, long expiresAtNanos) {
+			this.proxies = proxies;
+			this.version = version;
+			this.expiresAtNanos = expiresAtNanos;
+		}
+	}
+
+}
@@ -0,0 +1,212 @@
+package jp.co.fusions.win_proxy_selector.selector.pac;
+
+import delight.nashornsandbox.NashornSandbox;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*****************************************************************************
+ * A pool of JavaScript engines used to evaluate PAC scripts. An engine is
+ * confined to one thread while it is borrowed, so concurrent proxy lookups
+ * do not share the engine state. Engines are created on demand up to the
+ * maximum pool size; if all of them are in use the caller waits for the next
+ * one to be released. The time spent waiting is recorded.
+ ****************************************************************************/
+
+public final class PacEnginePool {
+
+	private final int maxSize;
+	private final EngineFactory factory;
+	private final BlockingQueue<Engine> idle;
+	private final AtomicInteger createdCount = new AtomicInteger();
+	private final AtomicLong borrowCount = new AtomicLong();
+	private final AtomicLong waitCount = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param maxSize
+	 *            the maximum number of engines.
+	 * @param factory
+	 *            used to create and initialize new engines.
+	 ************************************************************************/
+
+	PacEnginePool(int maxSize, EngineFactory factory) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize must be positive.");
+		}
+		this.maxSize = maxSize;
+		this.factory = factory;
+		this.idle = new ArrayBlockingQueue<Engine>(maxSize);
+	}
+
+	/*************************************************************************
+	 * Creates an engine right away so that setup errors are reported early.
+	 *
+	 * @throws ProxyEvaluationException
+	 *             if the engine could not be initialized.
+	 ************************************************************************/
+
+	void prestart() throws ProxyEvaluationException {
+		Engine engine = tryCreate();
+		if (engine != null) {
+			release(engine);
+		}
+	}
+
+	/*************************************************************************
+	 * Takes an engine from the pool. The engine must be given back with
+	 * release() when the evaluation is done.
+	 *
+	 * @return an engine for exclusive use by the calling thread.
+	 * @throws ProxyEvaluationException
+	 *             if a new engine could not be initialized or the thread was
+	 *             interrupted while waiting.
+	 ************************************************************************/
+
+	Engine borrow() throws ProxyEvaluationException {
+		this.borrowCount.incrementAndGet();
+		Engine engine = this.idle.poll();
+		if (engine != null) {
+			return engine;
+		}
+		engine = tryCreate();
+		if (engine != null) {
+			return engine;
+		}
+
+		long start = System.nanoTime();
+		try {
+			engine = this.idle.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ProxyEvaluationException("Interrupted while waiting for a PAC engine.", e, null);
+		}
+		recordWait(System.nanoTime() - start);
+		return engine;
+	}
+
+	/*************************************************************************
+	 * Gives an engine back to the pool.
+	 *
+	 * @param engine
+	 *            the engine taken with borrow().
+	 ************************************************************************/
+
+	void release(Engine engine) {
+		this.idle.offer(engine);
+	}
+
+	private Engine tryCreate() throws ProxyEvaluationException {
+		while (true) {
+			int created = this.createdCount.get();
+			if (created >= this.maxSize) {
+				return null;
+			}
+			if (this.createdCount.compareAndSet(created, created + 1)) {
+				break;
+			}
+		}
+		try {
+			return new Engine(this.factory.create());
+		} catch (ProxyEvaluationException e) {
+			this.createdCount.decrementAndGet();
+			throw e;
+		} catch (RuntimeException e) {
+			this.createdCount.decrementAndGet();
+			throw e;
+		}
+	}
+
+	private void recordWait(long nanos) {
+		this.waitCount.incrementAndGet();
+		this.totalWaitNanos.addAndGet(nanos);
+		long max = this.maxWaitNanos.get();
+		while (nanos > max && !this.maxWaitNanos.compareAndSet(max, nanos)) {
+			max = this.maxWaitNanos.get();
+		}
+	}
+
+	/*************************************************************************
+	 * @return the maximum number of engines in this pool.
+	 ************************************************************************/
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/*************************************************************************
+	 * @return the number of engines created so far.
+	 ************************************************************************/
+
+	public int getCreatedCount() {
+		return this.createdCount.get();
+	}
+
+	/*************************************************************************
+	 * @return the number of engines currently not in use.
+	 ************************************************************************/
+
+	public int getIdleCount() {
+		return this.idle.size();
+	}
+
+	/*************************************************************************
+	 * @return the number of times an engine was taken from the pool.
+	 ************************************************************************/
+
+	public long getBorrowCount() {
+		return this.borrowCount.get();
+	}
+
+	/*************************************************************************
+	 * @return the number of times a caller had to wait for an engine.
+	 ************************************************************************/
+
+	public long getWaitCount() {
+		return this.waitCount.get();
+	}
+
+	/*************************************************************************
+	 * @return the accumulated time callers waited for an engine in
+	 *         nanoseconds.
+	 ************************************************************************/
+
+	public long getTotalWaitNanos() {
+		return this.totalWaitNanos.get();
+	}
+
+	/*************************************************************************
+	 * @return the longest time a caller waited for an engine in nanoseconds.
+	 ************************************************************************/
+
+	public long getMaxWaitNanos() {
+		return this.maxWaitNanos.get();
+	}
+
+	/*****************************************************************************
+	 * Creates and initializes the JavaScript engines of the pool.
+	 ****************************************************************************/
+
+	interface EngineFactory {
+		NashornSandbox create() throws ProxyEvaluationException;
+	}
+
+	/*****************************************************************************
+	 * A pooled engine together with the PAC script loaded into it.
+	 ****************************************************************************/
+
+	static final class Engine {
+		final NashornSandbox sandbox;
+		String compiledScript;
+		boolean hasFindProxyForURLEx;
+
+		Engine(NashornSandbox sandbox) {
+			this.sandbox = sandbox;
+		}
+	}
+
+}
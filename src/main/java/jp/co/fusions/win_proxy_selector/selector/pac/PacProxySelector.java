@@ -1,15 +1,16 @@
 package jp.co.fusions.win_proxy_selector.selector.pac;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import jp.co.fusions.win_proxy_selector.util.AsyncProxySelection;
 import jp.co.fusions.win_proxy_selector.util.Logger;
 import jp.co.fusions.win_proxy_selector.util.Logger.LogLevel;
+import jp.co.fusions.win_proxy_selector.util.Metrics;
 import jp.co.fusions.win_proxy_selector.util.ProxyUtil;
 
 /*****************************************************************************
@@ -20,26 +21,51 @@ import jp.co.fusions.win_proxy_selector.util.ProxyUtil;
  ****************************************************************************/
 public class PacProxySelector extends ProxySelector {
 
-	// private static final String PAC_PROXY = "PROXY";
-	private static final String PAC_SOCKS = "SOCKS";
-	private static final String PAC_DIRECT = "DIRECT";
+	public static final String OVERRIDE_ENGINE_POOL_SIZE = "com.btr.proxy.pac.enginePoolSize";
 
 	private PacScriptParser pacScriptParser;
+	private final PacDecisionCache decisionCache;
 
 	private static volatile boolean enabled = true;
 
 	/*************************************************************************
-	 * Constructor
+	 * Constructor. Decisions are cached if a cache is configured with the
+	 * system property PacDecisionCache.OVERRIDE_DECISION_CACHE.
 	 *
 	 * @param pacSource
 	 *          the source for the PAC file.
 	 ************************************************************************/
 
 	public PacProxySelector(PacScriptSource pacSource) {
+		this(pacSource, PacDecisionCache.fromSystemProperty());
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param pacSource
+	 *          the source for the PAC file.
+	 * @param decisionCache
+	 *          a cache for the script decisions, null to evaluate the script
+	 *          for every request.
+	 ************************************************************************/
+
+	public PacProxySelector(PacScriptSource pacSource, PacDecisionCache decisionCache) {
 		super();
+		this.decisionCache = decisionCache;
 		selectEngine(pacSource);
 	}
 
+	/*************************************************************************
+	 * Gets the decision cache used by this selector.
+	 *
+	 * @return the cache, null if decisions are not cached.
+	 ************************************************************************/
+
+	public PacDecisionCache getDecisionCache() {
+		return this.decisionCache;
+	}
+
 	/*************************************************************************
 	 * Can be used to enable / disable the proxy selector. If disabled it will
 	 * return DIRECT for all urls.
@@ -71,13 +97,53 @@ public class PacProxySelector extends ProxySelector {
 
 	private void selectEngine(PacScriptSource pacSource) {
 		try {
-			Logger.log(getClass(), LogLevel.INFO, "Using javax.script JavaScript engine.");
-			pacScriptParser = new JavaxPacScriptParser(pacSource);
+			Logger.log(getClass(), LogLevel.INFO, "Using PAC compiler with javax.script JavaScript engine as fallback.");
+			pacScriptParser = new JavaPacScriptParser(pacSource, getEnginePoolSize());
 		} catch (Exception e) {
 			Logger.log(getClass(), LogLevel.ERROR, "PAC parser error.", e);
 		}
 	}
 
+	/*************************************************************************
+	 * Gets the maximum number of JavaScript engines used for concurrent
+	 * evaluations. Defaults to the number of available processors and can be
+	 * overridden with the system property OVERRIDE_ENGINE_POOL_SIZE.
+	 *
+	 * @return the pool size.
+	 ************************************************************************/
+
+	static int getEnginePoolSize() {
+		int poolSize = Runtime.getRuntime().availableProcessors();
+		String prop = System.getProperty(OVERRIDE_ENGINE_POOL_SIZE);
+		if (prop != null && prop.trim().length() > 0) {
+			try {
+				poolSize = Integer.parseInt(prop.trim());
+			} catch (NumberFormatException e) {
+				Logger.log(PacProxySelector.class, LogLevel.DEBUG, "Invalid override property : {0}={1}",
+					OVERRIDE_ENGINE_POOL_SIZE, prop);
+				// In this case use the default value.
+			}
+		}
+		return Math.max(1, poolSize);
+	}
+
+	/*************************************************************************
+	 * Gets the pool of JavaScript engines used by this selector. Can be used to
+	 * monitor how long lookups wait for an engine.
+	 *
+	 * @return the engine pool, null if no JavaScript engine is in use.
+	 ************************************************************************/
+
+	public PacEnginePool getEnginePool() {
+		if (pacScriptParser instanceof JavaPacScriptParser) {
+			return ((JavaPacScriptParser) pacScriptParser).getEnginePool();
+		}
+		if (pacScriptParser instanceof JavaxPacScriptParser) {
+			return ((JavaxPacScriptParser) pacScriptParser).getEnginePool();
+		}
+		return null;
+	}
+
 	/*************************************************************************
 	 * connectFailed
 	 *
@@ -90,7 +156,8 @@ public class PacProxySelector extends ProxySelector {
 	}
 
 	/*************************************************************************
-	 * select
+	 * select. The returned list is unmodifiable and shared with other callers,
+	 * copy it before sorting or changing it.
 	 *
 	 * @see java.net.ProxySelector#select(java.net.URI)
 	 ************************************************************************/
@@ -109,6 +176,21 @@ public class PacProxySelector extends ProxySelector {
 		return findProxy(uri);
 	}
 
+	/*************************************************************************
+	 * Selects the proxies for the given URI without blocking the calling
+	 * thread. The PAC script is evaluated on the executor of
+	 * AsyncProxySelection, which also defines the timeout and the decision
+	 * used if the evaluation takes too long.
+	 *
+	 * @param uri
+	 *          the URI to select the proxies for.
+	 * @return a future completed with the proxy list.
+	 ************************************************************************/
+
+	public CompletableFuture<List<Proxy>> selectAsync(URI uri) {
+		return AsyncProxySelection.selectAsync(this, uri);
+	}
+
 	/*************************************************************************
 	 * Evaluation of the given URL with the PAC-file.
 	 *
@@ -122,25 +204,49 @@ public class PacProxySelector extends ProxySelector {
 	 ************************************************************************/
 
 	private List<Proxy> findProxy(URI uri) {
-		try {
-			if (pacScriptParser == null) {
-				return ProxyUtil.noProxyList();
+		if (pacScriptParser == null) {
+			return ProxyUtil.noProxyList();
+		}
+		if (decisionCache == null) {
+			List<Proxy> proxies = evaluate(uri);
+			return proxies == null ? ProxyUtil.noProxyList() : proxies;
+		}
+
+		// Failed evaluations are not cached.
+		long version = pacScriptParser.getScriptSource().getScriptVersion();
+		String key = decisionCache.keyFor(uri);
+		List<Proxy> proxies = decisionCache.get(key, version);
+		if (proxies == null) {
+			proxies = evaluate(uri);
+			if (proxies != null) {
+				decisionCache.put(key, version, proxies);
 			}
+		}
+		return proxies == null ? ProxyUtil.noProxyList() : proxies;
+	}
+
+	/*************************************************************************
+	 * Runs the PAC script for the given URI.
+	 *
+	 * @param uri
+	 *          <code>URI</code> to be evaluated.
+	 * @return <code>Proxy</code>-object list as result of the evaluation, null
+	 *         if the script failed. The list is unmodifiable and shared.
+	 ************************************************************************/
+
+	private List<Proxy> evaluate(URI uri) {
+		long start = Metrics.start();
+		try {
 			String parseResult = pacScriptParser.evaluate(uri.toString(), uri.getHost());
 			if (parseResult == null) {
 				return ProxyUtil.noProxyList();
 			}
-			List<Proxy> proxies = new ArrayList<Proxy>();
-			String[] proxyDefinitions = parseResult.split("[;]");
-			for (String proxyDef : proxyDefinitions) {
-				if (proxyDef.trim().length() > 0) {
-					proxies.add(buildProxyFromPacResult(proxyDef));
-				}
-			}
-			return proxies;
+			return PacResultParser.parse(parseResult);
 		} catch (ProxyEvaluationException e) {
 			Logger.log(getClass(), LogLevel.ERROR, "PAC JavaScript evaluation error. \n{0}\n{1}", e.getScript(),e);
-			return ProxyUtil.noProxyList();
+			return null;
+		} finally {
+			Metrics.stop(Metrics.PAC_EVALUATION, start);
 		}
 	}
 
@@ -150,66 +256,11 @@ public class PacProxySelector extends ProxySelector {
 	 *
 	 * @param pacResult
 	 *          the result from the PAC parser.
-	 * @return a Proxy
+	 * @return a Proxy, Proxy.NO_PROXY if the entry is invalid.
 	 ************************************************************************/
 
 	static Proxy buildProxyFromPacResult(String pacResult) {
-		String[] words = pacResult.trim().split("\\s+");
-		if (words.length == 0) return Proxy.NO_PROXY;
-
-		// Check proxy type.
-		Proxy.Type type = toProxyType(words[0]);
-		if (type == Proxy.Type.DIRECT) return Proxy.NO_PROXY;
-		if (words.length < 2) return Proxy.NO_PROXY;
-
-		SocketAddress adr = toSocketAddress(concat(words,1));
-
-		return new Proxy(type, adr);
-	}
-	private static String concat(String[] strings, int startIndex){
-		StringBuilder b = new StringBuilder();
-		for (int i = startIndex; i < strings.length; i++) {
-			b.append(strings[i]);
-		}
-		return b.toString();
-	}
-	private static Proxy.Type toProxyType(String string) {
-		String proxyType = string.toUpperCase().trim();
-
-		if (proxyType.startsWith(PAC_DIRECT)) {
-			return Proxy.Type.DIRECT;
-		}
-		if (proxyType.startsWith(PAC_SOCKS)) {
-			// SOCKS, SOCKS4, SOCKS5
-			return Proxy.Type.SOCKS;
-		}
-		// PROXY, HTTP, HTTPS
-		return Proxy.Type.HTTP;
-	}
-
-	private static SocketAddress toSocketAddress(String string) {
-		String hostAndPort = string.trim();
-
-		// Split port from host
-		int indexOfPortSeparator = hostAndPort.lastIndexOf(':');
-		int indexOfTheEndOfIPv6Address = hostAndPort.lastIndexOf(']');
-		if (indexOfPortSeparator != -1) {
-			if (indexOfTheEndOfIPv6Address < indexOfPortSeparator) {
-				// such as [2001:db8:85a3:8d3:1319:8a2e:370:7348]:3128
-				return new InetSocketAddress(
-					hostAndPort.substring(0, indexOfPortSeparator).trim(),
-					Integer.parseInt(hostAndPort.substring(indexOfPortSeparator + 1).trim()));
-			} else {
-				// such as [2001:db8:85a3:8d3:1319:8a2e:370:7348]  ... The last colon was misjudged as the port separator.
-				// So, use default port
-				return new InetSocketAddress(
-					hostAndPort,
-					ProxyUtil.DEFAULT_PROXY_PORT);
-			}
-		} else {
-			return new InetSocketAddress(
-				hostAndPort,
-				ProxyUtil.DEFAULT_PROXY_PORT);
-		}
+		Proxy proxy = PacResultParser.parseProxy(pacResult, 0, pacResult.length());
+		return proxy == null ? Proxy.NO_PROXY : proxy;
 	}
 }
@@ -0,0 +1,198 @@
+package jp.co.fusions.win_proxy_selector.selector.pac;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jp.co.fusions.win_proxy_selector.util.Logger;
+import jp.co.fusions.win_proxy_selector.util.Logger.LogLevel;
+import jp.co.fusions.win_proxy_selector.util.ProxyUtil;
+
+/*****************************************************************************
+ * Parses the string returned by FindProxyForURL, e.g.
+ * <code>"PROXY p1:8080; SOCKS s1:1080; DIRECT"</code>, into a proxy list.<br>
+ *
+ * A PAC script returns the same few strings over and over again, so the
+ * parsed lists are cached by result string. The lists are unmodifiable and
+ * shared between callers.<br>
+ *
+ * Host names are not resolved, the addresses are created unresolved and get
+ * resolved when a connection is made. IP literals are converted without a
+ * DNS lookup. Entries with an invalid port are skipped, if no entry is left
+ * the result is DIRECT.
+ ****************************************************************************/
+
+final class PacResultParser {
+
+	private static final int MAX_CACHED_RESULTS = 256;
+
+	private static final ConcurrentHashMap<String, List<Proxy>> CACHE = new ConcurrentHashMap<String, List<Proxy>>();
+
+	private PacResultParser() {
+		super();
+	}
+
+	/*************************************************************************
+	 * Parses a PAC result into a proxy list.
+	 *
+	 * @param pacResult
+	 *            the result of the PAC script.
+	 * @return an unmodifiable list of proxies, empty if the result contains no
+	 *         entries.
+	 ************************************************************************/
+
+	static List<Proxy> parse(String pacResult) {
+		List<Proxy> result = CACHE.get(pacResult);
+		if (result == null) {
+			result = parseUncached(pacResult);
+			if (CACHE.size() >= MAX_CACHED_RESULTS) {
+				// Scripts returning that many different results are rare, just
+				// start over.
+				CACHE.clear();
+			}
+			CACHE.put(pacResult, result);
+		}
+		return result;
+	}
+
+	private static List<Proxy> parseUncached(String pacResult) {
+		List<Proxy> proxies = new ArrayList<Proxy>(2);
+		boolean skipped = false;
+		int length = pacResult.length();
+		int start = 0;
+		while (start < length) {
+			int end = pacResult.indexOf(';', start);
+			if (end == -1) {
+				end = length;
+			}
+			if (skipWhitespace(pacResult, start, end) < end) {
+				Proxy proxy = parseProxy(pacResult, start, end);
+				if (proxy == null) {
+					Logger.log(PacResultParser.class, LogLevel.WARNING, "Skipping invalid PAC result entry: {0}",
+						pacResult.substring(start, end));
+					skipped = true;
+				} else {
+					proxies.add(proxy);
+				}
+			}
+			start = end + 1;
+		}
+		if (proxies.isEmpty() && skipped) {
+			return ProxyUtil.noProxyList();
+		}
+		if (proxies.size() == 1) {
+			return Collections.singletonList(proxies.get(0));
+		}
+		return Collections.unmodifiableList(proxies);
+	}
+
+	/*************************************************************************
+	 * Parses one entry of a PAC result like <code>"PROXY host:port"</code>.
+	 *
+	 * @param pacResult
+	 *            the PAC result.
+	 * @param start
+	 *            the start of the entry.
+	 * @param end
+	 *            the end of the entry, exclusive.
+	 * @return the proxy, Proxy.NO_PROXY for DIRECT or incomplete entries, null
+	 *         if the port is invalid.
+	 ************************************************************************/
+
+	static Proxy parseProxy(String pacResult, int start, int end) {
+		int pos = skipWhitespace(pacResult, start, end);
+		int typeStart = pos;
+		while (pos < end && !Character.isWhitespace(pacResult.charAt(pos))) {
+			pos++;
+		}
+		if (typeStart == pos || startsWith(pacResult, typeStart, pos, "DIRECT")) {
+			return Proxy.NO_PROXY;
+		}
+		// SOCKS, SOCKS4, SOCKS5 or PROXY, HTTP, HTTPS
+		Proxy.Type type = startsWith(pacResult, typeStart, pos, "SOCKS") ? Proxy.Type.SOCKS : Proxy.Type.HTTP;
+
+		// Host and port, whitespace like in "host : 8080" is dropped.
+		StringBuilder address = new StringBuilder(end - pos);
+		int portSeparator = -1;
+		int ipv6End = -1;
+		for (; pos < end; pos++) {
+			char c = pacResult.charAt(pos);
+			if (Character.isWhitespace(c)) {
+				continue;
+			}
+			if (c == ':') {
+				portSeparator = address.length();
+			} else if (c == ']') {
+				ipv6End = address.length();
+			}
+			address.append(c);
+		}
+		if (address.length() == 0) {
+			return Proxy.NO_PROXY;
+		}
+
+		String host;
+		int port = ProxyUtil.DEFAULT_PROXY_PORT;
+		if (portSeparator != -1 && ipv6End < portSeparator) {
+			// such as host:3128 or [2001:db8:85a3:8d3:1319:8a2e:370:7348]:3128
+			host = address.substring(0, portSeparator);
+			port = parsePort(address, portSeparator + 1);
+			if (port == -1) {
+				return null;
+			}
+		} else {
+			// such as [2001:db8:85a3:8d3:1319:8a2e:370:7348] without port.
+			host = address.toString();
+		}
+		return new Proxy(type, toSocketAddress(host, port));
+	}
+
+	private static int parsePort(CharSequence value, int start) {
+		int length = value.length();
+		if (start == length || length - start > 5) {
+			return -1;
+		}
+		int port = 0;
+		for (int i = start; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			port = port * 10 + (c - '0');
+		}
+		return port <= 0xFFFF ? port : -1;
+	}
+
+	private static InetSocketAddress toSocketAddress(String host, int port) {
+		if (host.length() > 1 && host.charAt(0) == '[' && host.charAt(host.length() - 1) == ']') {
+			host = host.substring(1, host.length() - 1);
+		}
+		InetAddress literal = ProxyUtil.parseIpLiteral(host);
+		if (literal != null) {
+			try {
+				// Keep the literal as name to avoid reverse lookups.
+				return new InetSocketAddress(InetAddress.getByAddress(host, literal.getAddress()), port);
+			} catch (UnknownHostException e) {
+				// Can not happen for a parsed address.
+			}
+		}
+		return InetSocketAddress.createUnresolved(host, port);
+	}
+
+	private static boolean startsWith(String value, int start, int end, String prefix) {
+		return end - start >= prefix.length() && value.regionMatches(true, start, prefix, 0, prefix.length());
+	}
+
+	private static int skipWhitespace(String value, int start, int end) {
+		while (start < end && Character.isWhitespace(value.charAt(start))) {
+			start++;
+		}
+		return start;
+	}
+
+}
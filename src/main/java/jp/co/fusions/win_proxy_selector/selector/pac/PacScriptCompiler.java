@@ -0,0 +1,776 @@
+package jp.co.fusions.win_proxy_selector.selector.pac;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.Assignment;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.Binary;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.BinaryOperator;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.Block;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.Builtin;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.Call;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.Conditional;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.Constant;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.Expression;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.ExpressionStatement;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.Frame;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.If;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.Return;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.Statement;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.StringMember;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.StringMemberAccess;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.Unary;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.UnaryOperator;
+import jp.co.fusions.win_proxy_selector.selector.pac.CompiledPacScript.UnsupportedScriptException;
+
+/*****************************************************************************
+ * Compiles PAC scripts written in the subset of JavaScript used by most PAC
+ * files into a CompiledPacScript.
+ *
+ * Supported are a single FindProxyForURL function, global variables with
+ * constant values, var, if / else, return, the operators ?: || &amp;&amp; ==
+ * != === !== &lt; &gt; &lt;= &gt;= + - ! typeof, the PAC functions with
+ * string parameters and the string members length, toLowerCase(),
+ * toUpperCase(), indexOf() and substring().
+ *
+ * Everything else (loops, own functions, the date and time functions, regular
+ * expressions, ...) makes the compiler throw an UnsupportedScriptException.
+ ****************************************************************************/
+
+final class PacScriptCompiler {
+
+	private static final String FIND_PROXY_FOR_URL = "FindProxyForURL";
+
+	private final List<Token> tokens;
+	private final ScriptMethods methods;
+	private final Map<String, Object> globals = new HashMap<String, Object>();
+	private Map<String, Integer> locals;
+	private int pos;
+
+	private PacScriptCompiler(List<Token> tokens, ScriptMethods methods) {
+		this.tokens = tokens;
+		this.methods = methods;
+	}
+
+	/*************************************************************************
+	 * Compiles a PAC script.
+	 *
+	 * @param script
+	 *            the content of the PAC script.
+	 * @param methods
+	 *            used to evaluate the initializers of global variables.
+	 * @return the compiled script.
+	 * @throws UnsupportedScriptException
+	 *             if the script is not covered by the supported subset.
+	 ************************************************************************/
+
+	static CompiledPacScript compile(String script, ScriptMethods methods) throws UnsupportedScriptException {
+		return new PacScriptCompiler(tokenize(script), methods).parseProgram();
+	}
+
+	// Parser
+
+	private CompiledPacScript parseProgram() throws UnsupportedScriptException {
+		int functionStart = -1;
+		while (peek().type != TokenType.EOF) {
+			if (acceptKeyword("function")) {
+				String name = expect(TokenType.IDENTIFIER).text;
+				if (!FIND_PROXY_FOR_URL.equals(name) || functionStart >= 0) {
+					throw new UnsupportedScriptException("Function " + name);
+				}
+				functionStart = this.pos;
+				skipFunction();
+			} else if (acceptKeyword("var")) {
+				parseGlobalDeclarations();
+			} else if (!accept(";")) {
+				throw unsupported(peek());
+			}
+		}
+		if (functionStart < 0) {
+			throw new UnsupportedScriptException("No " + FIND_PROXY_FOR_URL + " function");
+		}
+
+		// Compile the function after all globals are known (hoisting).
+		this.pos = functionStart;
+		this.locals = new HashMap<String, Integer>();
+		expect("(");
+		declareParameter();
+		expect(",");
+		declareParameter();
+		expect(")");
+		predeclareLocals();
+		Statement body = parseBlock();
+		return new CompiledPacScript(body, this.locals.size());
+	}
+
+	private void declareParameter() throws UnsupportedScriptException {
+		String name = expect(TokenType.IDENTIFIER).text;
+		if (this.locals.containsKey(name)) {
+			throw new UnsupportedScriptException("Duplicate parameter " + name);
+		}
+		this.locals.put(name, this.locals.size());
+	}
+
+	private void skipFunction() throws UnsupportedScriptException {
+		int depth = 0;
+		while (true) {
+			Token t = next();
+			if (t.type == TokenType.EOF) {
+				throw unsupported(t);
+			}
+			if (t.is("{")) {
+				depth++;
+			} else if (t.is("}") && --depth == 0) {
+				return;
+			}
+		}
+	}
+
+	// var is function scoped, so names used before their declaration must be known.
+	private void predeclareLocals() {
+		int depth = 0;
+		for (int i = this.pos; i < this.tokens.size() - 1; i++) {
+			Token t = this.tokens.get(i);
+			if (t.is("{")) {
+				depth++;
+			} else if (t.is("}") && --depth == 0) {
+				return;
+			} else if (t.isKeyword("var")) {
+				Token name = this.tokens.get(i + 1);
+				if (name.type == TokenType.IDENTIFIER) {
+					declareLocal(name.text);
+				}
+			}
+		}
+	}
+
+	private int declareLocal(String name) {
+		Integer slot = this.locals.get(name);
+		if (slot == null) {
+			slot = this.locals.size();
+			this.locals.put(name, slot);
+		}
+		return slot;
+	}
+
+	private void parseGlobalDeclarations() throws UnsupportedScriptException {
+		do {
+			String name = expect(TokenType.IDENTIFIER).text;
+			Object value = CompiledPacScript.UNDEFINED;
+			if (accept("=")) {
+				// Globals are initialized once when the script is loaded.
+				Expression init = parseExpression();
+				value = init.evaluate(new Frame(this.methods, 0));
+			}
+			checkName(name);
+			this.globals.put(name, value);
+		} while (accept(","));
+		endStatement();
+	}
+
+	private void checkName(String name) throws UnsupportedScriptException {
+		if (Builtin.forName(name) != null || FIND_PROXY_FOR_URL.equals(name)) {
+			throw new UnsupportedScriptException("Redefinition of " + name);
+		}
+	}
+
+	private Statement parseBlock() throws UnsupportedScriptException {
+		expect("{");
+		List<Statement> statements = new ArrayList<Statement>();
+		while (!accept("}")) {
+			Statement statement = parseStatement();
+			if (statement != null) {
+				statements.add(statement);
+			}
+		}
+		return new Block(statements.toArray(new Statement[statements.size()]));
+	}
+
+	private Statement parseStatement() throws UnsupportedScriptException {
+		Token t = peek();
+		if (t.is("{")) {
+			return parseBlock();
+		}
+		if (accept(";")) {
+			return null;
+		}
+		if (acceptKeyword("if")) {
+			expect("(");
+			Expression condition = parseExpression();
+			expect(")");
+			Statement then = emptyToBlock(parseStatement());
+			Statement otherwise = null;
+			if (acceptKeyword("else")) {
+				otherwise = emptyToBlock(parseStatement());
+			}
+			return new If(condition, then, otherwise);
+		}
+		if (acceptKeyword("return")) {
+			Token n = peek();
+			Expression value = null;
+			if (!n.is(";") && !n.is("}") && n.type != TokenType.EOF && !n.newlineBefore) {
+				value = parseExpression();
+			}
+			endStatement();
+			return new Return(value);
+		}
+		if (acceptKeyword("var")) {
+			List<Statement> assignments = new ArrayList<Statement>();
+			do {
+				String name = expect(TokenType.IDENTIFIER).text;
+				checkName(name);
+				int slot = declareLocal(name);
+				if (accept("=")) {
+					assignments.add(new ExpressionStatement(new Assignment(slot, parseAssignment())));
+				}
+			} while (accept(","));
+			endStatement();
+			return new Block(assignments.toArray(new Statement[assignments.size()]));
+		}
+		if (t.type == TokenType.KEYWORD && !isExpressionKeyword(t.text)) {
+			throw unsupported(t);
+		}
+		Expression expression = parseExpression();
+		endStatement();
+		return new ExpressionStatement(expression);
+	}
+
+	private static Statement emptyToBlock(Statement statement) {
+		return statement == null ? new Block(new Statement[0]) : statement;
+	}
+
+	// Automatic semicolon insertion for the cases a PAC file will use.
+	private void endStatement() throws UnsupportedScriptException {
+		if (accept(";")) {
+			return;
+		}
+		Token t = peek();
+		if (t.is("}") || t.type == TokenType.EOF || t.newlineBefore) {
+			return;
+		}
+		throw unsupported(t);
+	}
+
+	private Expression parseExpression() throws UnsupportedScriptException {
+		Expression expression = parseAssignment();
+		if (peek().is(",")) {
+			throw unsupported(peek());
+		}
+		return expression;
+	}
+
+	private Expression parseAssignment() throws UnsupportedScriptException {
+		Token t = peek();
+		if (t.type == TokenType.IDENTIFIER && peek(1).is("=")) {
+			Integer slot = this.locals == null ? null : this.locals.get(t.text);
+			if (slot == null) {
+				// Assignments to globals would outlive the call.
+				throw unsupported(t);
+			}
+			this.pos += 2;
+			return new Assignment(slot, parseAssignment());
+		}
+		return parseConditional();
+	}
+
+	private Expression parseConditional() throws UnsupportedScriptException {
+		Expression condition = parseOr();
+		if (accept("?")) {
+			Expression then = parseAssignment();
+			expect(":");
+			Expression otherwise = parseAssignment();
+			return new Conditional(condition, then, otherwise);
+		}
+		return condition;
+	}
+
+	private Expression parseOr() throws UnsupportedScriptException {
+		Expression left = parseAnd();
+		while (accept("||")) {
+			left = new CompiledPacScript.Or(left, parseAnd());
+		}
+		return left;
+	}
+
+	private Expression parseAnd() throws UnsupportedScriptException {
+		Expression left = parseEquality();
+		while (accept("&&")) {
+			left = new CompiledPacScript.And(left, parseEquality());
+		}
+		return left;
+	}
+
+	private Expression parseEquality() throws UnsupportedScriptException {
+		Expression left = parseRelational();
+		while (true) {
+			BinaryOperator operator;
+			if (accept("==")) {
+				operator = BinaryOperator.EQUALS;
+			} else if (accept("!=")) {
+				operator = BinaryOperator.NOT_EQUALS;
+			} else if (accept("===")) {
+				operator = BinaryOperator.STRICT_EQUALS;
+			} else if (accept("!==")) {
+				operator = BinaryOperator.STRICT_NOT_EQUALS;
+			} else {
+				return left;
+			}
+			left = new Binary(operator, left, parseRelational());
+		}
+	}
+
+	private Expression parseRelational() throws UnsupportedScriptException {
+		Expression left = parseAdditive();
+		while (true) {
+			BinaryOperator operator;
+			if (accept("<")) {
+				operator = BinaryOperator.LESS;
+			} else if (accept(">")) {
+				operator = BinaryOperator.GREATER;
+			} else if (accept("<=")) {
+				operator = BinaryOperator.LESS_OR_EQUAL;
+			} else if (accept(">=")) {
+				operator = BinaryOperator.GREATER_OR_EQUAL;
+			} else {
+				return left;
+			}
+			left = new Binary(operator, left, parseAdditive());
+		}
+	}
+
+	private Expression parseAdditive() throws UnsupportedScriptException {
+		Expression left = parseUnary();
+		while (true) {
+			if (accept("+")) {
+				left = new Binary(BinaryOperator.ADD, left, parseUnary());
+			} else if (accept("-")) {
+				left = new Binary(BinaryOperator.SUBTRACT, left, parseUnary());
+			} else {
+				return left;
+			}
+		}
+	}
+
+	private Expression parseUnary() throws UnsupportedScriptException {
+		if (accept("!")) {
+			return new Unary(UnaryOperator.NOT, parseUnary());
+		}
+		if (accept("-")) {
+			return new Unary(UnaryOperator.NEGATE, parseUnary());
+		}
+		if (acceptKeyword("typeof")) {
+			Token t = peek();
+			if (t.type == TokenType.IDENTIFIER && !isKnownName(t.text) && !peek(1).is("(")) {
+				// typeof is used to probe for optional functions, leave that to the engine.
+				throw unsupported(t);
+			}
+			return new Unary(UnaryOperator.TYPEOF, parseUnary());
+		}
+		return parseMember();
+	}
+
+	private Expression parseMember() throws UnsupportedScriptException {
+		Expression target = parsePrimary();
+		while (accept(".")) {
+			Token name = expect(TokenType.IDENTIFIER);
+			StringMember member;
+			int minArgs;
+			int maxArgs;
+			if ("length".equals(name.text)) {
+				target = new StringMemberAccess(StringMember.LENGTH, target, new Expression[0]);
+				continue;
+			} else if ("toLowerCase".equals(name.text)) {
+				member = StringMember.TO_LOWER_CASE;
+				minArgs = 0;
+				maxArgs = 0;
+			} else if ("toUpperCase".equals(name.text)) {
+				member = StringMember.TO_UPPER_CASE;
+				minArgs = 0;
+				maxArgs = 0;
+			} else if ("indexOf".equals(name.text)) {
+				member = StringMember.INDEX_OF;
+				minArgs = 1;
+				maxArgs = 2;
+			} else if ("substring".equals(name.text)) {
+				member = StringMember.SUBSTRING;
+				minArgs = 1;
+				maxArgs = 2;
+			} else {
+				throw unsupported(name);
+			}
+			Expression[] args = parseArguments();
+			if (args.length < minArgs || args.length > maxArgs) {
+				throw unsupported(name);
+			}
+			target = new StringMemberAccess(member, target, args);
+		}
+		return target;
+	}
+
+	private Expression parsePrimary() throws UnsupportedScriptException {
+		Token t = next();
+		switch (t.type) {
+		case STRING:
+			return new Constant(t.text);
+		case NUMBER:
+			return new Constant(t.number);
+		case KEYWORD:
+			if ("true".equals(t.text)) {
+				return new Constant(Boolean.TRUE);
+			}
+			if ("false".equals(t.text)) {
+				return new Constant(Boolean.FALSE);
+			}
+			if ("null".equals(t.text)) {
+				return new Constant(null);
+			}
+			throw unsupported(t);
+		case IDENTIFIER:
+			if (peek().is("(")) {
+				return parseCall(t);
+			}
+			return resolve(t);
+		case PUNCTUATOR:
+			if (t.is("(")) {
+				Expression expression = parseExpression();
+				expect(")");
+				return expression;
+			}
+			throw unsupported(t);
+		default:
+			throw unsupported(t);
+		}
+	}
+
+	private Expression parseCall(Token name) throws UnsupportedScriptException {
+		Builtin builtin = Builtin.forName(name.text);
+		if (builtin == null || isVariable(name.text)) {
+			throw unsupported(name);
+		}
+		Expression[] args = parseArguments();
+		if (args.length != builtin.arity) {
+			throw unsupported(name);
+		}
+		return new Call(builtin, args);
+	}
+
+	private Expression[] parseArguments() throws UnsupportedScriptException {
+		expect("(");
+		List<Expression> args = new ArrayList<Expression>();
+		if (!accept(")")) {
+			do {
+				args.add(parseAssignment());
+			} while (accept(","));
+			expect(")");
+		}
+		return args.toArray(new Expression[args.size()]);
+	}
+
+	private Expression resolve(Token name) throws UnsupportedScriptException {
+		Integer slot = this.locals == null ? null : this.locals.get(name.text);
+		if (slot != null) {
+			return new CompiledPacScript.Variable(slot);
+		}
+		if (this.globals.containsKey(name.text)) {
+			return new Constant(this.globals.get(name.text));
+		}
+		if ("undefined".equals(name.text)) {
+			return new Constant(CompiledPacScript.UNDEFINED);
+		}
+		throw unsupported(name);
+	}
+
+	private boolean isVariable(String name) {
+		return (this.locals != null && this.locals.containsKey(name)) || this.globals.containsKey(name);
+	}
+
+	private boolean isKnownName(String name) {
+		return isVariable(name) || "undefined".equals(name);
+	}
+
+	private static boolean isExpressionKeyword(String keyword) {
+		return "true".equals(keyword) || "false".equals(keyword) || "null".equals(keyword)
+				|| "typeof".equals(keyword);
+	}
+
+	private Token peek() {
+		return peek(0);
+	}
+
+	private Token peek(int offset) {
+		int index = Math.min(this.pos + offset, this.tokens.size() - 1);
+		return this.tokens.get(index);
+	}
+
+	private Token next() {
+		Token t = peek();
+		if (this.pos < this.tokens.size() - 1) {
+			this.pos++;
+		}
+		return t;
+	}
+
+	private boolean accept(String punctuator) {
+		if (peek().is(punctuator)) {
+			this.pos++;
+			return true;
+		}
+		return false;
+	}
+
+	private boolean acceptKeyword(String keyword) {
+		if (peek().isKeyword(keyword)) {
+			this.pos++;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(String punctuator) throws UnsupportedScriptException {
+		if (!accept(punctuator)) {
+			throw unsupported(peek());
+		}
+	}
+
+	private Token expect(TokenType type) throws UnsupportedScriptException {
+		Token t = next();
+		if (t.type != type) {
+			throw unsupported(t);
+		}
+		return t;
+	}
+
+	private static UnsupportedScriptException unsupported(Token t) {
+		return new UnsupportedScriptException(
+				t.type == TokenType.EOF ? "Unexpected end of script" : "Unsupported token '" + t.text + "'");
+	}
+
+	// Lexer
+
+	enum TokenType {
+		IDENTIFIER, KEYWORD, STRING, NUMBER, PUNCTUATOR, EOF
+	}
+
+	static final class Token {
+		final TokenType type;
+		final String text;
+		final Double number;
+		final boolean newlineBefore;
+
+		Token(TokenType type, String text, Double number, boolean newlineBefore) {
+			this.type = type;
+			this.text = text;
+			this.number = number;
+			this.newlineBefore = newlineBefore;
+		}
+
+		boolean is(String punctuator) {
+			return this.type == TokenType.PUNCTUATOR && this.text.equals(punctuator);
+		}
+
+		boolean isKeyword(String keyword) {
+			return this.type == TokenType.KEYWORD && this.text.equals(keyword);
+		}
+	}
+
+	private static final String[] KEYWORDS = { "function", "var", "if", "else", "return", "true", "false", "null",
+			"typeof" };
+
+	// Longest first. Everything else, like / or [, is not supported.
+	private static final String[] PUNCTUATORS = { "===", "!==", "==", "!=", "<=", ">=", "&&", "||", "{", "}",
+			"(", ")", ";", ",", ".", "?", ":", "!", "<", ">", "+", "-", "=" };
+
+	private static final char LINE_SEPARATOR = 0x2028;
+	private static final char PARAGRAPH_SEPARATOR = 0x2029;
+	private static final char NO_BREAK_SPACE = 0xA0;
+	private static final char BYTE_ORDER_MARK = 0xFEFF;
+
+	static List<Token> tokenize(String script) throws UnsupportedScriptException {
+		List<Token> tokens = new ArrayList<Token>();
+		int i = 0;
+		int length = script.length();
+		boolean newline = false;
+		while (i < length) {
+			char c = script.charAt(i);
+			if (c == '\n' || c == '\r' || c == LINE_SEPARATOR || c == PARAGRAPH_SEPARATOR) {
+				newline = true;
+				i++;
+			} else if (Character.isWhitespace(c) || c == NO_BREAK_SPACE || c == BYTE_ORDER_MARK) {
+				i++;
+			} else if (script.startsWith("//", i)) {
+				while (i < length && script.charAt(i) != '\n' && script.charAt(i) != '\r') {
+					i++;
+				}
+			} else if (script.startsWith("/*", i)) {
+				int end = script.indexOf("*/", i + 2);
+				if (end < 0) {
+					throw new UnsupportedScriptException("Unterminated comment");
+				}
+				if (script.substring(i, end).indexOf('\n') >= 0) {
+					newline = true;
+				}
+				i = end + 2;
+			} else if (c == '"' || c == '\'') {
+				StringBuilder value = new StringBuilder();
+				i = readString(script, i, value);
+				tokens.add(new Token(TokenType.STRING, value.toString(), null, newline));
+				newline = false;
+			} else if (isDigit(c) || (c == '.' && i + 1 < length && isDigit(script.charAt(i + 1)))) {
+				int start = i;
+				i = readNumber(script, i);
+				String text = script.substring(start, i);
+				tokens.add(new Token(TokenType.NUMBER, text, parseNumber(text), newline));
+				newline = false;
+			} else if (Character.isJavaIdentifierStart(c)) {
+				int start = i;
+				while (i < length && Character.isJavaIdentifierPart(script.charAt(i))) {
+					i++;
+				}
+				String text = script.substring(start, i);
+				TokenType type = TokenType.IDENTIFIER;
+				for (String keyword : KEYWORDS) {
+					if (keyword.equals(text)) {
+						type = TokenType.KEYWORD;
+					}
+				}
+				tokens.add(new Token(type, text, null, newline));
+				newline = false;
+			} else {
+				String punctuator = null;
+				for (String p : PUNCTUATORS) {
+					if (script.startsWith(p, i)) {
+						punctuator = p;
+						break;
+					}
+				}
+				if (punctuator == null) {
+					throw new UnsupportedScriptException("Unsupported character '" + c + "'");
+				}
+				tokens.add(new Token(TokenType.PUNCTUATOR, punctuator, null, newline));
+				newline = false;
+				i += punctuator.length();
+			}
+		}
+		tokens.add(new Token(TokenType.EOF, "", null, true));
+		return tokens;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static int readString(String script, int start, StringBuilder value) throws UnsupportedScriptException {
+		char quote = script.charAt(start);
+		int i = start + 1;
+		while (i < script.length()) {
+			char c = script.charAt(i++);
+			if (c == quote) {
+				return i;
+			}
+			if (c == '\n' || c == '\r') {
+				break;
+			}
+			if (c != '\\') {
+				value.append(c);
+				continue;
+			}
+			if (i >= script.length()) {
+				break;
+			}
+			char e = script.charAt(i++);
+			switch (e) {
+			case 'n':
+				value.append('\n');
+				break;
+			case 't':
+				value.append('\t');
+				break;
+			case 'r':
+				value.append('\r');
+				break;
+			case 'b':
+				value.append('\b');
+				break;
+			case 'f':
+				value.append('\f');
+				break;
+			case 'v':
+				value.append('\u000B');
+				break;
+			case '0':
+				if (i < script.length() && isDigit(script.charAt(i))) {
+					throw new UnsupportedScriptException("Octal escape sequence");
+				}
+				value.append('\0');
+				break;
+			case 'x':
+			case 'u':
+				int digits = e == 'x' ? 2 : 4;
+				if (i + digits > script.length()) {
+					throw new UnsupportedScriptException("Invalid escape sequence");
+				}
+				try {
+					value.append((char) Integer.parseInt(script.substring(i, i + digits), 16));
+				} catch (NumberFormatException ex) {
+					throw new UnsupportedScriptException("Invalid escape sequence");
+				}
+				i += digits;
+				break;
+			case '\r':
+				if (i < script.length() && script.charAt(i) == '\n') {
+					i++;
+				}
+				break;
+			case '\n':
+				break;
+			default:
+				if (isDigit(e)) {
+					throw new UnsupportedScriptException("Octal escape sequence");
+				}
+				value.append(e);
+			}
+		}
+		throw new UnsupportedScriptException("Unterminated string");
+	}
+
+	private static int readNumber(String script, int start) {
+		int i = start;
+		int length = script.length();
+		if (script.startsWith("0x", i) || script.startsWith("0X", i)) {
+			i += 2;
+			while (i < length && Character.digit(script.charAt(i), 16) >= 0) {
+				i++;
+			}
+			return i;
+		}
+		while (i < length && (isDigit(script.charAt(i)) || script.charAt(i) == '.')) {
+			i++;
+		}
+		if (i < length && (script.charAt(i) == 'e' || script.charAt(i) == 'E')) {
+			i++;
+			if (i < length && (script.charAt(i) == '+' || script.charAt(i) == '-')) {
+				i++;
+			}
+			while (i < length && isDigit(script.charAt(i))) {
+				i++;
+			}
+		}
+		return i;
+	}
+
+	private static Double parseNumber(String text) throws UnsupportedScriptException {
+		try {
+			if (text.startsWith("0x") || text.startsWith("0X")) {
+				return (double) Long.parseLong(text.substring(2), 16);
+			}
+			if (text.length() > 1 && text.charAt(0) == '0' && isDigit(text.charAt(1))) {
+				throw new UnsupportedScriptException("Octal number " + text);
+			}
+			return Double.valueOf(text);
+		} catch (NumberFormatException e) {
+			throw new UnsupportedScriptException("Invalid number " + text);
+		}
+	}
+
+}
@@ -0,0 +1,217 @@
+package jp.co.fusions.win_proxy_selector.selector.pac;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jp.co.fusions.win_proxy_selector.util.Logger;
+import jp.co.fusions.win_proxy_selector.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Stores downloaded PAC scripts together with their cache validators in a
+ * local directory, so that a new process can start with the last known script
+ * instead of waiting for the download.<br>
+ *
+ * Every script URL gets its own file named after the SHA-256 hash of the URL.
+ * Files are written to a temporary file first and then moved into place, and
+ * they carry a checksum of the script. Damaged or foreign files are ignored.
+ * A file is not written again if neither the script nor its validators
+ * changed, e.g. after a 304 response.
+ ****************************************************************************/
+
+class PacScriptDiskCache {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String FILE_SUFFIX = ".pac.cache";
+
+	private static final String KEY_URL = "url";
+	private static final String KEY_CONTENT = "content";
+	private static final String KEY_CHECKSUM = "checksum";
+	private static final String KEY_EXPIRES = "expires";
+	private static final String KEY_ETAG = "etag";
+	private static final String KEY_LAST_MODIFIED = "lastModified";
+
+	private final File directory;
+
+	// The entries last read or written per URL.
+	private final ConcurrentHashMap<String, Entry> stored = new ConcurrentHashMap<String, Entry>();
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param directory
+	 *            the directory to store the scripts in. It is created on the
+	 *            first write.
+	 ************************************************************************/
+
+	PacScriptDiskCache(File directory) {
+		this.directory = directory;
+	}
+
+	/*************************************************************************
+	 * Loads the stored script for the given URL.
+	 *
+	 * @param url
+	 *            the script URL.
+	 * @return the stored entry, null if there is none or it is not usable.
+	 ************************************************************************/
+
+	Entry load(String url) {
+		File file = getFile(url);
+		if (!file.isFile()) {
+			return null;
+		}
+		Properties props = new Properties();
+		try {
+			InputStream in = Files.newInputStream(file.toPath());
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Reading cached PAC script {0} failed with error {1}", file, e);
+			return null;
+		} catch (IllegalArgumentException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Cached PAC script {0} is damaged: {1}", file, e);
+			return null;
+		}
+		String content = props.getProperty(KEY_CONTENT);
+		if (!url.equals(props.getProperty(KEY_URL)) || content == null
+				|| !checksum(content).equals(props.getProperty(KEY_CHECKSUM))) {
+			Logger.log(getClass(), LogLevel.WARNING, "Ignoring damaged cached PAC script {0}", file);
+			return null;
+		}
+		long expireAtMillis = 0;
+		try {
+			expireAtMillis = Long.parseLong(props.getProperty(KEY_EXPIRES, "0"));
+		} catch (NumberFormatException e) {
+			// Treat as unknown expiry.
+		}
+		Logger.log(getClass(), LogLevel.DEBUG, "Loaded cached PAC script for {0} from {1}", url, file);
+		Entry result = new Entry(content, expireAtMillis, props.getProperty(KEY_ETAG),
+			props.getProperty(KEY_LAST_MODIFIED));
+		this.stored.put(url, result);
+		return result;
+	}
+
+	/*************************************************************************
+	 * Stores a script for the given URL. Errors are logged only, the cache is
+	 * an optimization. Nothing is written if the script and its validators
+	 * are the ones stored before, only the expiry may differ then. It is not
+	 * needed, a script from the disk cache is always revalidated.
+	 *
+	 * @param url
+	 *            the script URL.
+	 * @param entry
+	 *            the script to store.
+	 ************************************************************************/
+
+	void store(String url, Entry entry) {
+		Entry last = this.stored.get(url);
+		if (last != null && last.content.equals(entry.content)
+				&& (entry.entityTag == null || entry.entityTag.equals(last.entityTag))
+				&& (entry.lastModified == null || entry.lastModified.equals(last.lastModified))) {
+			return;
+		}
+		Properties props = new Properties();
+		props.setProperty(KEY_URL, url);
+		props.setProperty(KEY_CONTENT, entry.content);
+		props.setProperty(KEY_CHECKSUM, checksum(entry.content));
+		props.setProperty(KEY_EXPIRES, Long.toString(entry.expireAtMillis));
+		if (entry.entityTag != null) {
+			props.setProperty(KEY_ETAG, entry.entityTag);
+		}
+		if (entry.lastModified != null) {
+			props.setProperty(KEY_LAST_MODIFIED, entry.lastModified);
+		}
+
+		Path target = getFile(url).toPath();
+		Path temp = null;
+		try {
+			Files.createDirectories(this.directory.toPath());
+			temp = Files.createTempFile(this.directory.toPath(), target.getFileName().toString(), ".tmp");
+			OutputStream out = Files.newOutputStream(temp);
+			try {
+				props.store(out, null);
+			} finally {
+				out.close();
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			temp = null;
+			this.stored.put(url, entry);
+		} catch (IOException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Writing cached PAC script {0} failed with error {1}", target, e);
+		} finally {
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException e) {
+					// Ignore, nothing more we can do.
+				}
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * @param url
+	 *            the script URL.
+	 * @return the file used for the given URL.
+	 ************************************************************************/
+
+	File getFile(String url) {
+		return new File(this.directory, hash(url) + FILE_SUFFIX);
+	}
+
+	private static String checksum(String content) {
+		return hash(content);
+	}
+
+	private static String hash(String value) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(UTF_8));
+			StringBuilder result = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				result.append(Character.forDigit((b >> 4) & 0xF, 16));
+				result.append(Character.forDigit(b & 0xF, 16));
+			}
+			return result.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*****************************************************************************
+	 * A script with the cache information sent by the server.
+	 ****************************************************************************/
+
+	static final class Entry {
+		final String content;
+		final long expireAtMillis;
+		final String entityTag;
+		final String lastModified;
+
+		Entry(String content, long expireAtMillis, String entityTag, String lastModified) {
+			this.content = content;
+			this.expireAtMillis = expireAtMillis;
+			this.entityTag = entityTag;
+			this.lastModified = lastModified;
+		}
+	}
+
+}
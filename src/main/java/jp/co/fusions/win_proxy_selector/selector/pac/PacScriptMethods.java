@@ -15,13 +15,17 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.StringTokenizer;
 import java.util.TimeZone;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
-import jp.co.fusions.win_proxy_selector.selector.whitelist.IpRangeFilter;
+import jp.co.fusions.win_proxy_selector.util.CachingDnsResolver;
+import jp.co.fusions.win_proxy_selector.util.CidrRange;
+import jp.co.fusions.win_proxy_selector.util.DnsResolver;
 import jp.co.fusions.win_proxy_selector.util.Logger;
 import jp.co.fusions.win_proxy_selector.util.Logger.LogLevel;
+import jp.co.fusions.win_proxy_selector.util.Metrics;
+import jp.co.fusions.win_proxy_selector.util.ProxyUtil;
 
 /***************************************************************************
  * Implementation of PAC JavaScript functions.
@@ -46,14 +50,117 @@ public class PacScriptMethods implements ScriptMethods {
 	private final static List<String> MONTH = Collections.unmodifiableList(
 		Arrays.asList("JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"));
 
+	private static final InetAddress[] UNRESOLVABLE = new InetAddress[0];
+
+	private static final int MAX_CACHED_ARGUMENTS = 256;
+
+	private static volatile DnsResolver defaultDnsResolver = new CachingDnsResolver();
+
 	private Calendar currentTime;
+	private final DnsResolver dnsResolver;
+	private final ThreadLocal<Map<String, InetAddress[]>> evaluationLookups = new ThreadLocal<Map<String, InetAddress[]>>();
+	// Scripts call isInNet, isInNetEx and shExpMatch with a few constant
+	// ranges and expressions only.
+	private final Map<String, CidrRange> ranges = new ConcurrentHashMap<String, CidrRange>();
+	private final Map<String, ShellExpression> expressions = new ConcurrentHashMap<String, ShellExpression>();
 
 	/*************************************************************************
-	 * Constructor
+	 * Constructor using the default DNS resolver.
 	 ************************************************************************/
 
 	public PacScriptMethods() {
+		this(null);
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param dnsResolver
+	 *            the resolver used for host name lookups, null to use the
+	 *            default DNS resolver.
+	 ************************************************************************/
+
+	public PacScriptMethods(DnsResolver dnsResolver) {
 		super();
+		this.dnsResolver = dnsResolver;
+	}
+
+	/*************************************************************************
+	 * Sets the DNS resolver used by all PacScriptMethods created without a
+	 * resolver of their own. By default this is a CachingDnsResolver shared by
+	 * all PAC scripts.
+	 *
+	 * @param resolver
+	 *            the resolver to use, DnsResolver.SYSTEM to disable caching.
+	 ************************************************************************/
+
+	public static void setDefaultDnsResolver(DnsResolver resolver) {
+		if (resolver == null) {
+			throw new IllegalArgumentException("resolver must not be null.");
+		}
+		defaultDnsResolver = resolver;
+	}
+
+	/*************************************************************************
+	 * Gets the DNS resolver used by all PacScriptMethods created without a
+	 * resolver of their own.
+	 *
+	 * @return the default resolver.
+	 ************************************************************************/
+
+	public static DnsResolver getDefaultDnsResolver() {
+		return defaultDnsResolver;
+	}
+
+	/*************************************************************************
+	 * Marks the start of a script evaluation on the current thread. Until
+	 * endEvaluation() is called every host is resolved at most once, so a
+	 * script calling isInNet() for several networks does only one lookup.
+	 ************************************************************************/
+
+	void beginEvaluation() {
+		this.evaluationLookups.set(new HashMap<String, InetAddress[]>());
+	}
+
+	/*************************************************************************
+	 * Marks the end of a script evaluation on the current thread.
+	 ************************************************************************/
+
+	void endEvaluation() {
+		this.evaluationLookups.remove();
+	}
+
+	/*************************************************************************
+	 * Resolves a host with the configured resolver.
+	 *
+	 * @param host
+	 *            the host to resolve.
+	 * @return all addresses of the host.
+	 * @throws UnknownHostException
+	 *             if the host could not be resolved.
+	 ************************************************************************/
+
+	private InetAddress[] resolve(String host) throws UnknownHostException {
+		Map<String, InetAddress[]> lookups = this.evaluationLookups.get();
+		InetAddress[] result = lookups == null ? null : lookups.get(host);
+		if (result == null) {
+			DnsResolver resolver = this.dnsResolver != null ? this.dnsResolver : defaultDnsResolver;
+			long start = Metrics.start();
+			try {
+				result = resolver.resolve(host);
+			} catch (UnknownHostException e) {
+				result = UNRESOLVABLE;
+			} finally {
+				Metrics.stop(Metrics.PAC_DNS_LOOKUP, start);
+			}
+			if (lookups != null) {
+				lookups.put(host, result);
+			}
+		}
+		if (result.length == 0) {
+			throw new UnknownHostException(host);
+		}
+		return result;
 	}
 
 	/*************************************************************************
@@ -106,7 +213,7 @@ public class PacScriptMethods implements ScriptMethods {
 
 	public boolean isResolvable(String host) {
 		try {
-			InetAddress.getByName(host).getHostAddress();
+			resolve(host);
 			return true;
 		} catch (UnknownHostException ex) {
 			Logger.log(JavaxPacScriptParser.class, LogLevel.DEBUG, "Hostname not resolveable {0}.", host);
@@ -135,35 +242,44 @@ public class PacScriptMethods implements ScriptMethods {
 	 ************************************************************************/
 
 	public boolean isInNet(String host, String pattern, String mask) {
-		host = dnsResolve(host);
-		if (host == null || host.length() == 0) {
+		if (host == null || host.length() == 0 || pattern == null || mask == null) {
+			return false;
+		}
+		String key = pattern + '/' + mask;
+		CidrRange range = this.ranges.get(key);
+		if (range == null) {
+			range = CidrRange.ofMask(pattern, mask);
+			if (range == null) {
+				return false;
+			}
+			cache(this.ranges, key, range);
+		}
+		try {
+			InetAddress literal = ProxyUtil.parseIpLiteral(host);
+			return range.contains(literal != null ? literal : resolve(host)[0]);
+		} catch (UnknownHostException e) {
+			Logger.log(JavaxPacScriptParser.class, LogLevel.DEBUG, "DNS name not resolvable {0}.", host);
 			return false;
 		}
-		long lhost = parseIpAddressToLong(host);
-		long lpattern = parseIpAddressToLong(pattern);
-		long lmask = parseIpAddressToLong(mask);
-		return (lhost & lmask) == lpattern;
 	}
 
 	/*************************************************************************
-	 * Convert a string representation of a IP to a long.
+	 * Remembers a parsed argument. The cache is cleared when it grows too
+	 * large, so scripts building arguments dynamically cannot fill memory.
 	 *
-	 * @param address
-	 *            to convert.
-	 * @return the address as long.
+	 * @param cache
+	 *            the cache to use.
+	 * @param key
+	 *            the argument.
+	 * @param value
+	 *            the parsed argument.
 	 ************************************************************************/
 
-	private long parseIpAddressToLong(String address) {
-		long result = 0;
-		String[] parts = address.split("\\.");
-		long shift = 24;
-		for (String part : parts) {
-			long lpart = Long.parseLong(part);
-
-			result |= (lpart << shift);
-			shift -= 8;
+	private static <T> void cache(Map<String, T> cache, String key, T value) {
+		if (cache.size() >= MAX_CACHED_ARGUMENTS) {
+			cache.clear();
 		}
-		return result;
+		cache.put(key, value);
 	}
 
 	/*************************************************************************
@@ -177,7 +293,7 @@ public class PacScriptMethods implements ScriptMethods {
 
 	public String dnsResolve(String host) {
 		try {
-			InetAddress ina = InetAddress.getByName(host);
+			InetAddress ina = resolve(host)[0];
 			return ina.getHostAddress();
 		} catch (UnknownHostException e) {
 			Logger.log(JavaxPacScriptParser.class, LogLevel.DEBUG, "DNS name not resolvable {0}.", host);
@@ -274,7 +390,7 @@ public class PacScriptMethods implements ScriptMethods {
 	/*************************************************************************
 	 * Returns true if the string matches the specified shell expression.
 	 * Actually, currently the patterns are shell expressions, not regular
-	 * expressions.
+	 * expressions. A '*' matches any characters, a '?' exactly one.
 	 *
 	 * @param str
 	 *            is any string to compare (e.g. the URL, or the host name).
@@ -284,29 +400,15 @@ public class PacScriptMethods implements ScriptMethods {
 	 ************************************************************************/
 
 	public boolean shExpMatch(String str, String shexp) {
-		StringTokenizer tokenizer = new StringTokenizer(shexp, "*");
-		int startPos = 0;
-		while (tokenizer.hasMoreTokens()) {
-			String token = tokenizer.nextToken();
-			int temp = str.indexOf(token, startPos);
-
-			// Must start with first token
-			if (startPos == 0 && !shexp.startsWith("*") && temp != 0) {
-				return false;
-			}
-			// Last one ends with last token
-			if (!tokenizer.hasMoreTokens() && !shexp.endsWith("*") && !str.endsWith(token)) {
-				return false;
-			}
-
-			if (temp == -1) {
-				return false;
-			} else {
-				startPos = temp + token.length();
-			}
+		if (str == null || shexp == null) {
+			return false;
 		}
-
-		return true;
+		ShellExpression expression = this.expressions.get(shexp);
+		if (expression == null) {
+			expression = new ShellExpression(shexp);
+			cache(this.expressions, shexp, expression);
+		}
+		return expression.matches(str);
 	}
 
 	/*************************************************************************
@@ -627,9 +729,24 @@ public class PacScriptMethods implements ScriptMethods {
 		if (ipOrHost == null || ipOrHost.length() == 0 || cidr == null || cidr.length() == 0) {
 			return false;
 		}
+		CidrRange range = this.ranges.get(cidr);
+		if (range == null) {
+			range = CidrRange.parse(cidr);
+			if (range == null) {
+				return false;
+			}
+			cache(this.ranges, cidr, range);
+		}
 		try {
-			IpRangeFilter filter = new IpRangeFilter(cidr);
-			return filter.acceptsHost(ipOrHost);
+			InetAddress literal = ProxyUtil.parseIpLiteral(ipOrHost);
+			// Host names are resolved with the cached resolver of the script.
+			InetAddress[] addresses = literal != null ? new InetAddress[] { literal } : resolve(ipOrHost);
+			for (InetAddress address : addresses) {
+				if (range.contains(address)) {
+					return true;
+				}
+			}
+			return false;
 		} catch (Exception e) {
 			return false;
 		}
@@ -645,7 +762,7 @@ public class PacScriptMethods implements ScriptMethods {
 	public String dnsResolveEx(String host) {
 		StringBuilder result = new StringBuilder();
 		try {
-			InetAddress[] list = InetAddress.getAllByName(host);
+			InetAddress[] list = resolve(host);
 			for (InetAddress inetAddress : list) {
 				result.append(inetAddress.getHostAddress());
 				result.append("; ");
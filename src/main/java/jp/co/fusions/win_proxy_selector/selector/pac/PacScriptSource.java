@@ -31,5 +31,18 @@ public interface PacScriptSource {
 
 	boolean isScriptValid();
 
+	/*************************************************************************
+	 * Gets a number that changes whenever the script content changes. This is
+	 * used to invalidate data derived from an older script (e.g. cached
+	 * decisions). Sources that reload their content should override this with
+	 * a cheaper implementation.
+	 * 
+	 * @return the version of the current script content.
+	 ************************************************************************/
+
+	default long getScriptVersion() {
+		String script = getScriptContent();
+		return script == null ? 0 : script.hashCode();
+	}
 
 }
\ No newline at end of file
@@ -0,0 +1,151 @@
+package jp.co.fusions.win_proxy_selector.selector.pac;
+
+/*****************************************************************************
+ * A compiled shell expression as used by the PAC function shExpMatch. A '*'
+ * matches any sequence of characters and a '?' matches exactly one character,
+ * all other characters match themselves.<br>
+ *
+ * Expressions with up to 63 characters besides the stars are matched with a
+ * bit parallel automaton: bit j of the state is set if the first j of these
+ * characters have been matched, a star before character j keeps bit j set.
+ * So a string is matched in one pass without backtracking and without
+ * allocating. Longer expressions are matched segment by segment, where each
+ * segment between two stars is searched at the leftmost possible position.
+ *
+ * Instances are immutable and can be shared between threads.
+ ****************************************************************************/
+
+final class ShellExpression {
+
+	private static final int MAX_STATES = 63;
+
+	private final String expression;
+	private final char[] chars;
+	private final long starLoops;
+	private final long acceptState;
+	private final long[] asciiMasks;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param expression
+	 *            the shell expression.
+	 ************************************************************************/
+
+	ShellExpression(String expression) {
+		this.expression = expression;
+		StringBuilder chars = new StringBuilder(expression.length());
+		long starLoops = 0;
+		for (int i = 0; i < expression.length(); i++) {
+			char c = expression.charAt(i);
+			if (c == '*') {
+				if (chars.length() < MAX_STATES + 1) {
+					starLoops |= 1L << chars.length();
+				}
+			} else {
+				chars.append(c);
+			}
+		}
+		this.chars = chars.toString().toCharArray();
+		if (this.chars.length <= MAX_STATES) {
+			this.starLoops = starLoops;
+			this.acceptState = 1L << this.chars.length;
+			this.asciiMasks = new long[128];
+			for (int c = 0; c < 128; c++) {
+				this.asciiMasks[c] = maskOf((char) c);
+			}
+		} else {
+			this.starLoops = 0;
+			this.acceptState = 0;
+			this.asciiMasks = null;
+		}
+	}
+
+	private long maskOf(char c) {
+		long mask = 0;
+		for (int j = 0; j < this.chars.length; j++) {
+			if (this.chars[j] == c || this.chars[j] == '?') {
+				mask |= 1L << j;
+			}
+		}
+		return mask;
+	}
+
+	/*************************************************************************
+	 * Checks if the whole string matches the expression.
+	 *
+	 * @param value
+	 *            the string to check.
+	 * @return true if it matches.
+	 ************************************************************************/
+
+	boolean matches(String value) {
+		if (this.asciiMasks == null) {
+			return matchSegments(value);
+		}
+		long state = 1;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			long mask = c < 128 ? this.asciiMasks[c] : maskOf(c);
+			state = ((state & mask) << 1) | (state & this.starLoops);
+			if (state == 0) {
+				return false;
+			}
+		}
+		return (state & this.acceptState) != 0;
+	}
+
+	/*************************************************************************
+	 * Matches long expressions. The first segment has to match at the start
+	 * and the last one at the end of the string, the segments in between are
+	 * searched from left to right. Taking the leftmost match for each segment
+	 * leaves the most room for the following ones, so no backtracking is
+	 * needed.
+	 ************************************************************************/
+
+	private boolean matchSegments(String value) {
+		String exp = this.expression;
+		int first = exp.indexOf('*');
+		if (first == -1) {
+			return value.length() == exp.length() && regionMatches(value, 0, exp, 0, exp.length());
+		}
+		int last = exp.lastIndexOf('*');
+		int suffixLength = exp.length() - last - 1;
+		if (value.length() < first + suffixLength || !regionMatches(value, 0, exp, 0, first)
+				|| !regionMatches(value, value.length() - suffixLength, exp, last + 1, suffixLength)) {
+			return false;
+		}
+		int pos = first;
+		int end = value.length() - suffixLength;
+		int segmentStart = first + 1;
+		while (segmentStart <= last) {
+			int segmentEnd = exp.indexOf('*', segmentStart);
+			int length = segmentEnd - segmentStart;
+			if (length > 0) {
+				while (true) {
+					if (pos + length > end) {
+						return false;
+					}
+					if (regionMatches(value, pos, exp, segmentStart, length)) {
+						break;
+					}
+					pos++;
+				}
+				pos += length;
+			}
+			segmentStart = segmentEnd + 1;
+		}
+		return true;
+	}
+
+	private static boolean regionMatches(String value, int valueOffset, String exp, int expOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			char e = exp.charAt(expOffset + i);
+			if (e != '?' && e != value.charAt(valueOffset + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -2,7 +2,6 @@ package jp.co.fusions.win_proxy_selector.selector.pac;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
@@ -12,10 +11,23 @@ import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import jp.co.fusions.win_proxy_selector.selector.fixed.FixedProxySelector;
 import jp.co.fusions.win_proxy_selector.util.Logger;
 import jp.co.fusions.win_proxy_selector.util.Logger.LogLevel;
+import jp.co.fusions.win_proxy_selector.util.Metrics;
 
 /*****************************************************************************
  * Script source that will load the content of a PAC file from an webserver. The
@@ -31,22 +43,134 @@ public class UrlPacScriptSource implements PacScriptSource {
 	private static final int DEFAULT_READ_TIMEOUT = 20 * 1000; // seconds
 	public static final String OVERRIDE_CONNECT_TIMEOUT = "com.btr.proxy.url.connectTimeout";
 	public static final String OVERRIDE_READ_TIMEOUT = "com.btr.proxy.url.readTimeout";
+	public static final String OVERRIDE_CACHE_DIR = "com.btr.proxy.pac.cacheDir";
+	public static final String OVERRIDE_REFRESH_IN_BACKGROUND = "com.btr.proxy.pac.refreshInBackground";
+	public static final String OVERRIDE_MIN_REVALIDATION_INTERVAL = "com.btr.proxy.pac.minRevalidationInterval";
+	private static final int DEFAULT_MIN_REVALIDATION_INTERVAL = 30 * 1000; // seconds
+	private static final long MIN_RETRY_DELAY = 10 * 1000;
+	private static final long MAX_RETRY_DELAY = 15 * 60 * 1000;
+	public static final String OVERRIDE_FILE_CHECK_INTERVAL = "com.btr.proxy.pac.fileCheckInterval";
+	private static final int DEFAULT_FILE_CHECK_INTERVAL = 2 * 1000; // seconds
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
 
 	private final String scriptUrl;
-	private String scriptContent;
-	private long expireAtMillis;
+	private volatile Snapshot snapshot;
+
+	private final boolean refreshInBackground;
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+	private volatile int failedRefreshes;
+	private volatile long nextRefreshMillis;
+	// Why no script could be loaded yet, null once one was loaded.
+	private volatile IOException initialLoadError;
+
+	private static volatile boolean defaultRefreshInBackground = Boolean.getBoolean(OVERRIDE_REFRESH_IN_BACKGROUND);
+
+	private static volatile File defaultCacheDirectory = readCacheDirectoryProperty();
+	private final PacScriptDiskCache diskCache;
+	private boolean diskCacheChecked;
 
 	/*************************************************************************
-	 * Constructor
+	 * Constructor. Expired scripts are refreshed in the background if this is
+	 * enabled with setDefaultRefreshInBackground().
 	 * 
 	 * @param url
 	 *            the URL to download the script from.
 	 ************************************************************************/
 
 	public UrlPacScriptSource(String url) {
+		this(url, isDefaultRefreshInBackground());
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 * 
+	 * @param url
+	 *            the URL to download the script from.
+	 * @param refreshInBackground
+	 *            true to keep serving the expired script while a background
+	 *            task downloads the new one. Failed downloads are retried with
+	 *            exponential backoff. Only the very first load blocks. Until a
+	 *            script was loaded getScriptContent() fails with the error of
+	 *            the first load.
+	 ************************************************************************/
+
+	public UrlPacScriptSource(String url, boolean refreshInBackground) {
+		this(url, refreshInBackground, getDefaultCacheDirectory());
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 * 
+	 * @param url
+	 *            the URL to download the script from.
+	 * @param refreshInBackground
+	 *            true to keep serving the expired script while a background
+	 *            task downloads the new one.
+	 * @param cacheDirectory
+	 *            directory to keep a copy of the downloaded script in, null to
+	 *            not use a disk cache. If a copy exists it is used right away
+	 *            and revalidated in the background.
+	 ************************************************************************/
+
+	public UrlPacScriptSource(String url, boolean refreshInBackground, File cacheDirectory) {
 		super();
-		this.expireAtMillis = 0;
 		this.scriptUrl = url;
+		this.refreshInBackground = refreshInBackground;
+		this.diskCache = cacheDirectory == null ? null : new PacScriptDiskCache(cacheDirectory);
+	}
+
+	/*************************************************************************
+	 * Sets the disk cache directory used by sources created without an
+	 * explicit one. The default can be set with the system property
+	 * OVERRIDE_CACHE_DIR.
+	 * 
+	 * @param directory
+	 *            the cache directory, null to disable the disk cache.
+	 ************************************************************************/
+
+	public static void setDefaultCacheDirectory(File directory) {
+		defaultCacheDirectory = directory;
+	}
+
+	/*************************************************************************
+	 * @return the disk cache directory used by sources created without an
+	 *         explicit one, null if none.
+	 ************************************************************************/
+
+	public static File getDefaultCacheDirectory() {
+		return defaultCacheDirectory;
+	}
+
+	/*************************************************************************
+	 * Sets if sources created without an explicit choice refresh expired
+	 * scripts in the background, this includes the sources created by
+	 * WinProxySelector and ProxyUtil. The default can be set with the system
+	 * property OVERRIDE_REFRESH_IN_BACKGROUND.
+	 * 
+	 * @param refreshInBackground
+	 *            true to refresh in the background.
+	 ************************************************************************/
+
+	public static void setDefaultRefreshInBackground(boolean refreshInBackground) {
+		defaultRefreshInBackground = refreshInBackground;
+	}
+
+	/*************************************************************************
+	 * @return true if sources created without an explicit choice refresh
+	 *         expired scripts in the background.
+	 ************************************************************************/
+
+	public static boolean isDefaultRefreshInBackground() {
+		return defaultRefreshInBackground;
+	}
+
+	private static File readCacheDirectoryProperty() {
+		String prop = System.getProperty(OVERRIDE_CACHE_DIR);
+		if (prop != null && prop.trim().length() > 0) {
+			return new File(prop.trim());
+		}
+		return null;
 	}
 
 	@Override
@@ -60,103 +184,420 @@ public class UrlPacScriptSource implements PacScriptSource {
 	 * @see PacScriptSource#getScriptContent()
 	 ************************************************************************/
 
-	public synchronized String getScriptContent()  {
-		if (this.scriptContent == null
-		        || (this.expireAtMillis > 0 && this.expireAtMillis < System.currentTimeMillis())) {
-			try {
-				// Reset it again with next download we should get a new expire
-				// info
-				this.expireAtMillis = 0;
-
-				if (this.scriptUrl.startsWith("file:/") || this.scriptUrl.indexOf(":/") == -1) {
-					this.scriptContent = readPacFileContent(this.scriptUrl);
-				} else {
-					this.scriptContent = downloadPacContent(this.scriptUrl);
-				}
-			} catch (IOException e) {
-				Logger.log(getClass(), LogLevel.ERROR, "Loading script from: {0} failed with error {1}", this.scriptUrl,
-				        e);
-				this.scriptContent = "";
-				throw new RuntimeException( e );
+	public String getScriptContent()  {
+		Snapshot current = this.snapshot;
+		if (current != null && !current.isExpired(System.currentTimeMillis())) {
+			return current.content;
+		}
+		if (current != null && (this.refreshInBackground || this.refreshing.get())) {
+			startBackgroundRefresh();
+			IOException error = this.initialLoadError;
+			if (error != null) {
+				// Do not silently go DIRECT while no script could be loaded.
+				throw new RuntimeException(error);
+			}
+			return current.content;
+		}
+		return load();
+	}
+
+	/*************************************************************************
+	 * Loads the script while blocking all other callers, which then use the
+	 * script loaded by this call. If a loaded script can not be revalidated it
+	 * is kept, the download is retried after the minimum revalidation interval
+	 * and a file is checked again after the file check interval.
+	 * 
+	 * @return the script content.
+	 ************************************************************************/
+
+	private synchronized String load() {
+		Snapshot current = this.snapshot;
+		if (current == null && this.diskCache != null && !this.diskCacheChecked) {
+			current = loadFromDiskCache();
+		}
+		if (current != null && (!current.isExpired(System.currentTimeMillis()) || this.refreshing.get())) {
+			// Loaded by another thread in the meantime.
+			return current.content;
+		}
+		try {
+			return apply(loadScript(current, !this.refreshInBackground)).content;
+		} catch (IOException e) {
+			if (current != null && current.content.length() > 0) {
+				// Stale if error: keep the last good script and retry later, a
+				// file may be missing for a moment while it is replaced.
+				Logger.log(getClass(), LogLevel.WARNING, "Revalidating script from: {0} failed with error {1}",
+				        this.scriptUrl, e);
+				long retryAtMillis = System.currentTimeMillis() + Math.max(0, isFileUrl()
+					? getTimeOut(OVERRIDE_FILE_CHECK_INTERVAL, DEFAULT_FILE_CHECK_INTERVAL)
+					: getTimeOut(OVERRIDE_MIN_REVALIDATION_INTERVAL, DEFAULT_MIN_REVALIDATION_INTERVAL));
+				this.snapshot = new Snapshot(current.content, current.version, Math.max(1, retryAtMillis),
+					current.entityTag, current.lastModified);
+				return current.content;
+			}
+			Logger.log(getClass(), LogLevel.ERROR, "Loading script from: {0} failed with error {1}", this.scriptUrl,
+			        e);
+			long version = current == null || current.content.length() > 0 ? nextVersion(current) : current.version;
+			// In background mode mark it as expired to retry in the background,
+			// files are checked again after the usual interval.
+			long expireAtMillis = 0;
+			if (isFileUrl()) {
+				expireAtMillis = System.currentTimeMillis()
+					+ getTimeOut(OVERRIDE_FILE_CHECK_INTERVAL, DEFAULT_FILE_CHECK_INTERVAL);
+			} else if (this.refreshInBackground) {
+				expireAtMillis = 1;
+			}
+			this.snapshot = new Snapshot("", version, expireAtMillis, null, null);
+			if (current == null || current.content.length() == 0) {
+				this.initialLoadError = e;
+			}
+			if (this.refreshInBackground) {
+				scheduleRetry();
+			}
+			throw new RuntimeException( e );
+		}
+	}
+
+	/*************************************************************************
+	 * Takes over the copy from the disk cache, if any, and revalidates it in
+	 * the background. Must be called with the lock held.
+	 * 
+	 * @return the new state, null if there was no usable copy.
+	 ************************************************************************/
+
+	private Snapshot loadFromDiskCache() {
+		this.diskCacheChecked = true;
+		if (isFileUrl()) {
+			return null;
+		}
+		PacScriptDiskCache.Entry entry = this.diskCache.load(this.scriptUrl);
+		if (entry == null) {
+			return null;
+		}
+		Snapshot result = apply(entry);
+		startBackgroundRefresh();
+		return result;
+	}
+
+	/*************************************************************************
+	 * Starts a background download of the script unless one is running or a
+	 * failed download is waiting for its retry delay.
+	 ************************************************************************/
+
+	private void startBackgroundRefresh() {
+		if (System.currentTimeMillis() < this.nextRefreshMillis || !this.refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		RefreshExecutor.INSTANCE.execute(new Runnable() {
+			public void run() {
+				refreshInBackground();
 			}
+		});
+	}
+
+	private void refreshInBackground() {
+		try {
+			PacScriptDiskCache.Entry download = loadScript(this.snapshot, false);
+			apply(download);
+			this.failedRefreshes = 0;
+			this.nextRefreshMillis = 0;
+		} catch (IOException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Refreshing script from: {0} failed with error {1}", this.scriptUrl,
+			        e);
+			scheduleRetry();
+		} catch (RuntimeException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Refreshing script from: {0} failed with error {1}", this.scriptUrl,
+			        e);
+			scheduleRetry();
+		} finally {
+			this.refreshing.set(false);
+		}
+	}
+
+	/*************************************************************************
+	 * Delays the next background download exponentially with the number of
+	 * failures.
+	 ************************************************************************/
+
+	private synchronized void scheduleRetry() {
+		long delay = MIN_RETRY_DELAY << Math.min(this.failedRefreshes, 20);
+		this.failedRefreshes++;
+		this.nextRefreshMillis = System.currentTimeMillis() + Math.min(delay, MAX_RETRY_DELAY);
+	}
+
+	/*************************************************************************
+	 * Loads the script from its file or URL.
+	 * 
+	 * @param current
+	 *            the current state used to revalidate the script, may be null.
+	 * @param isolateFromSelectors
+	 *            true to disable the PAC proxy selectors while downloading.
+	 * @return the loaded script.
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+
+	private PacScriptDiskCache.Entry loadScript(Snapshot current, boolean isolateFromSelectors) throws IOException {
+		if (isFileUrl()) {
+			return readPacFile(current);
 		}
-		return this.scriptContent;
+		PacScriptDiskCache.Entry download;
+		long start = Metrics.start();
+		if (current == null) {
+			download = downloadPacContent(this.scriptUrl, null, null, null, isolateFromSelectors);
+		} else {
+			download = downloadPacContent(this.scriptUrl, current.content, current.entityTag, current.lastModified,
+				isolateFromSelectors);
+		}
+		Metrics.stop(Metrics.PAC_DOWNLOAD, start);
+		if (this.diskCache != null) {
+			this.diskCache.store(this.scriptUrl, download);
+		}
+		return download;
+	}
+
+	private boolean isFileUrl() {
+		return this.scriptUrl.startsWith("file:/") || this.scriptUrl.indexOf(":/") == -1;
 	}
 
 	/*************************************************************************
-	 * Reads a PAC script from a local file.
+	 * Publishes a loaded script. The version is only bumped if the content
+	 * really changed.
 	 * 
-	 * @param scriptUrl
-	 * @return the content of the script file.
+	 * @param download
+	 *            the loaded script.
+	 * @return the new state.
+	 ************************************************************************/
+
+	private synchronized Snapshot apply(PacScriptDiskCache.Entry download) {
+		Snapshot current = this.snapshot;
+		Snapshot result;
+		if (current != null && current.content.equals(download.content)) {
+			// Servers may omit the validators on a 304 response.
+			result = new Snapshot(current.content, current.version, download.expireAtMillis,
+				download.entityTag != null ? download.entityTag : current.entityTag,
+				download.lastModified != null ? download.lastModified : current.lastModified);
+		} else {
+			result = new Snapshot(download.content, nextVersion(current), download.expireAtMillis,
+				download.entityTag, download.lastModified);
+		}
+		this.snapshot = result;
+		this.initialLoadError = null;
+		return result;
+	}
+
+	private static long nextVersion(Snapshot current) {
+		return current == null ? 1 : current.version + 1;
+	}
+
+	/*************************************************************************
+	 * getScriptVersion
+	 * 
+	 * @see PacScriptSource#getScriptVersion()
+	 ************************************************************************/
+
+	@Override
+	public long getScriptVersion() {
+		try {
+			// Triggers a reload if the cached content has expired.
+			getScriptContent();
+		} catch (RuntimeException e) {
+			// Already logged, the version has been bumped for the empty script.
+		}
+		Snapshot current = this.snapshot;
+		return current == null ? 0 : current.version;
+	}
+
+	/*************************************************************************
+	 * Reads a PAC script from a local file. The file is only read if its size
+	 * or modification time differs from the one of the current script, these
+	 * are kept in place of an ETag. Files are checked every 2 seconds, see
+	 * OVERRIDE_FILE_CHECK_INTERVAL. Read errors are logged by the caller.
+	 * 
+	 * @param current
+	 *            the current state, may be null.
+	 * @return the script.
 	 * @throws IOException
-	 * @throws URISyntaxException
+	 *             on read error.
 	 ************************************************************************/
 
-	private String readPacFileContent(String scriptUrl) throws IOException {
+	private PacScriptDiskCache.Entry readPacFile(Snapshot current) throws IOException {
 		try {
-			File file = null;
-			if (scriptUrl.indexOf(":/") == -1) {
-				file = new File(scriptUrl);
+			Path path;
+			if (this.scriptUrl.indexOf(":/") == -1) {
+				path = new File(this.scriptUrl).toPath();
 			} else {
-				file = new File(new URL(scriptUrl).toURI());
+				path = new File(new URL(this.scriptUrl).toURI()).toPath();
 			}
-			BufferedReader r = new BufferedReader(new FileReader(file));
-			StringBuilder result = new StringBuilder();
-			try {
-				String line;
-				while ((line = r.readLine()) != null) {
-					result.append(line).append("\n");
-				}
-			} finally {
-				r.close();
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			String fileStamp = attributes.lastModifiedTime().toMillis() + "-" + attributes.size();
+			long expireAtMillis = System.currentTimeMillis()
+				+ getTimeOut(OVERRIDE_FILE_CHECK_INTERVAL, DEFAULT_FILE_CHECK_INTERVAL);
+			if (current != null && fileStamp.equals(current.entityTag)) {
+				return new PacScriptDiskCache.Entry(current.content, expireAtMillis, fileStamp, null);
 			}
-			return result.toString();
-		} catch (Exception e) {
-			System.out.println(System.getProperty("user.dir"));
-			Logger.log(getClass(), LogLevel.ERROR, "File reading error.", e);
+			Logger.log(getClass(), LogLevel.DEBUG, "Reading PAC script file {0}", path);
+			return new PacScriptDiskCache.Entry(decodeFileContent(Files.readAllBytes(path)), expireAtMillis, fileStamp,
+				null);
+		} catch (URISyntaxException e) {
+			throw new IOException(e.getMessage());
+		} catch (IllegalArgumentException e) {
 			throw new IOException(e.getMessage());
 		}
 	}
 
 	/*************************************************************************
-	 * Downloads the script from a webserver.
+	 * Decodes a PAC file as UTF-8, falling back to ISO-8859-1 for files that
+	 * are no valid UTF-8.
+	 * 
+	 * @param data
+	 *            the file content.
+	 * @return the script.
+	 ************************************************************************/
+
+	static String decodeFileContent(byte[] data) {
+		String result;
+		try {
+			result = UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT).decode(ByteBuffer.wrap(data)).toString();
+		} catch (CharacterCodingException e) {
+			result = new String(data, ISO_8859_1);
+		}
+		if (result.length() > 0 && result.charAt(0) == '\uFEFF') {
+			result = result.substring(1);
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * Downloads the script from a webserver. If a script was downloaded before
+	 * and the server sent an ETag or Last-Modified header, the request is made
+	 * conditional and a 304 response keeps the current script.
 	 * 
 	 * @param url
 	 *            the URL to the script file.
+	 * @param currentContent
+	 *            the script loaded before, null if none.
+	 * @param currentEntityTag
+	 *            the ETag of the current script, null if none.
+	 * @param currentLastModified
+	 *            the Last-Modified header of the current script, null if none.
+	 * @param isolateFromSelectors
+	 *            true to disable the PAC proxy selectors and the default
+	 *            ProxySelector while downloading. Not done for background
+	 *            downloads, that would make concurrent lookups go DIRECT.
 	 * @return the script content.
 	 * @throws IOException
 	 *             on read error.
 	 ************************************************************************/
 
-	private String downloadPacContent(String url) throws IOException {
+	private PacScriptDiskCache.Entry downloadPacContent(String url, String currentContent, String currentEntityTag,
+			String currentLastModified, boolean isolateFromSelectors) throws IOException {
 		if (url == null) {
 			throw new IOException("Invalid PAC script URL: null");
 		}
 
-		setPacProxySelectorEnabled(false);
+		if (isolateFromSelectors) {
+			setPacProxySelectorEnabled(false);
+		}
 
 		HttpURLConnection con = null;
 		ProxySelector proxySelector = ProxySelector.getDefault();
 		try {
-			ProxySelector.setDefault(new FixedProxySelector(Proxy.NO_PROXY));
+			if (isolateFromSelectors) {
+				ProxySelector.setDefault(new FixedProxySelector(Proxy.NO_PROXY));
+			}
 			con = setupHTTPConnection(url);
-			if (con.getResponseCode() != 200) {
-				throw new IOException("Server returned: " + con.getResponseCode() + " " + con.getResponseMessage());
+			boolean revalidate = currentContent != null && currentContent.length() > 0
+				&& (currentEntityTag != null || currentLastModified != null);
+			if (revalidate) {
+				if (currentEntityTag != null) {
+					con.setRequestProperty("If-None-Match", currentEntityTag);
+				}
+				if (currentLastModified != null) {
+					con.setRequestProperty("If-Modified-Since", currentLastModified);
+				}
+			}
+			int responseCode = con.getResponseCode();
+			if (revalidate && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				Logger.log(getClass(), LogLevel.DEBUG, "PAC script not modified: {0}", url);
+				return new PacScriptDiskCache.Entry(currentContent, getExpiration(con), con.getHeaderField("ETag"),
+					con.getHeaderField("Last-Modified"));
+			}
+			if (responseCode != 200) {
+				throw new IOException("Server returned: " + responseCode + " " + con.getResponseMessage());
 			}
-			// Read expire date.
-			this.expireAtMillis = con.getExpiration();
 
 			BufferedReader r = getReader(con);
 			String result = readAllContent(r);
 			r.close();
-			return result;
+			// Read expire date.
+			return new PacScriptDiskCache.Entry(result, getExpiration(con), con.getHeaderField("ETag"),
+				con.getHeaderField("Last-Modified"));
 		} finally {
-			setPacProxySelectorEnabled(true);
+			if (isolateFromSelectors) {
+				setPacProxySelectorEnabled(true);
+			}
 			if (con != null) {
 				con.disconnect();
 			}
-			ProxySelector.setDefault(proxySelector);
+			if (isolateFromSelectors) {
+				ProxySelector.setDefault(proxySelector);
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the time the downloaded script expires. Cache-Control max-age takes
+	 * precedence over the Expires header. The script is kept for at least the
+	 * minimum revalidation interval (30 seconds, see
+	 * OVERRIDE_MIN_REVALIDATION_INTERVAL), so no-cache or max-age=0 do not
+	 * cause a request for every proxy lookup.
+	 * 
+	 * @param con
+	 *            the connection to read the headers from.
+	 * @return the expiration time in milliseconds, 0 if the script does not
+	 *         expire.
+	 ************************************************************************/
+
+	private long getExpiration(HttpURLConnection con) {
+		long minExpireAtMillis = System.currentTimeMillis()
+			+ Math.max(0, getTimeOut(OVERRIDE_MIN_REVALIDATION_INTERVAL, DEFAULT_MIN_REVALIDATION_INTERVAL));
+		long maxAge = parseMaxAge(con.getHeaderField("Cache-Control"));
+		if (maxAge >= 0) {
+			// Must be positive, 0 means that the script never expires.
+			return Math.max(1, Math.max(minExpireAtMillis, System.currentTimeMillis() + maxAge * 1000));
+		}
+		long expiration = con.getExpiration();
+		return expiration == 0 ? 0 : Math.max(minExpireAtMillis, expiration);
+	}
+
+	/*************************************************************************
+	 * Parses the max-age directive of a Cache-Control header.
+	 * 
+	 * @param cacheControl
+	 *            the header value, may be null.
+	 * @return the max-age in seconds, 0 for no-cache and -1 if not present.
+	 ************************************************************************/
+
+	static long parseMaxAge(String cacheControl) {
+		if (cacheControl == null) {
+			return -1;
+		}
+		long result = -1;
+		for (String directive : cacheControl.split(",")) {
+			String d = directive.trim().toLowerCase(Locale.ROOT);
+			if (d.equals("no-cache") || d.equals("no-store")) {
+				return 0;
+			}
+			if (d.startsWith("max-age=")) {
+				try {
+					result = Math.max(0, Long.parseLong(d.substring("max-age=".length()).replace("\"", "").trim()));
+				} catch (NumberFormatException e) {
+					Logger.log(UrlPacScriptSource.class, LogLevel.DEBUG, "Invalid Cache-Control header: {0}", cacheControl);
+				}
+			}
 		}
+		return result;
 	}
 
 	/*************************************************************************
@@ -302,4 +743,42 @@ public class UrlPacScriptSource implements PacScriptSource {
 		}
 	}
 
+	/*****************************************************************************
+	 * Immutable state of the loaded script. Readers fetch it without locking.
+	 ****************************************************************************/
+
+	private static final class Snapshot {
+		final String content;
+		final long version;
+		final long expireAtMillis;
+		final String entityTag;
+		final String lastModified;
+
+		Snapshot(String content, long version, long expireAtMillis, String entityTag, String lastModified) {
+			this.content = content;
+			this.version = version;
+			this.expireAtMillis = expireAtMillis;
+			this.entityTag = entityTag;
+			this.lastModified = lastModified;
+		}
+
+		boolean isExpired(long now) {
+			return this.expireAtMillis > 0 && this.expireAtMillis < now;
+		}
+	}
+
+	/*****************************************************************************
+	 * Lazily created executor for the background downloads.
+	 ****************************************************************************/
+
+	private static final class RefreshExecutor {
+		static final ExecutorService INSTANCE = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "PacScriptRefresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
 }
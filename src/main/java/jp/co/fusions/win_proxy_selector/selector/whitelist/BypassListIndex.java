@@ -0,0 +1,118 @@
+package jp.co.fusions.win_proxy_selector.selector.whitelist;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import jp.co.fusions.win_proxy_selector.util.UriFilter;
+
+/*****************************************************************************
+ * Compiled form of a bypass list as returned by the DefaultWhiteListParser. It
+ * accepts the same URIs as the list of filters it was built from, but checks
+ * all host name patterns with one HostPatternIndex lookup and all IP ranges
+ * with one IpRangeIndex lookup instead of trying the filters one by one.
+ * Filters of other types are still checked one by one.
+ ****************************************************************************/
+
+final class BypassListIndex implements UriFilter {
+
+	private final HostPatternIndex anyProtocol;
+	private final Map<String, HostPatternIndex> byProtocol = new HashMap<String, HostPatternIndex>();
+	private final IpRangeIndex ipRanges;
+	private final List<UriFilter> otherFilters = new ArrayList<UriFilter>();
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param filters
+	 *            the filters to compile.
+	 ************************************************************************/
+
+	BypassListIndex(List<UriFilter> filters) {
+		List<IpRangeFilter> ranges = new ArrayList<IpRangeFilter>();
+		List<String> anyProtocolPatterns = new ArrayList<String>();
+		Map<String, List<String>> protocolPatterns = new HashMap<String, List<String>>();
+		for (UriFilter filter : filters) {
+			if (filter instanceof HostnameFilter) {
+				HostnameFilter hostFilter = (HostnameFilter) filter;
+				String protocol = hostFilter.getProtocolFilter();
+				List<String> patterns = anyProtocolPatterns;
+				if (protocol != null) {
+					patterns = protocolPatterns.get(protocol);
+					if (patterns == null) {
+						patterns = new ArrayList<String>();
+						protocolPatterns.put(protocol, patterns);
+					}
+				}
+				patterns.add(hostFilter.getPattern());
+			} else if (filter instanceof IpRangeFilter && ((IpRangeFilter) filter).usesDefaultResolver()
+					&& ((IpRangeFilter) filter).getRange() != null) {
+				ranges.add((IpRangeFilter) filter);
+			} else {
+				this.otherFilters.add(filter);
+			}
+		}
+		this.anyProtocol = new HostPatternIndex(anyProtocolPatterns);
+		for (Map.Entry<String, List<String>> entry : protocolPatterns.entrySet()) {
+			this.byProtocol.put(entry.getKey(), new HostPatternIndex(entry.getValue()));
+		}
+		this.ipRanges = new IpRangeIndex(ranges);
+	}
+
+	/*************************************************************************
+	 * accept
+	 *
+	 * @see UriFilter#accept(java.net.URI)
+	 ************************************************************************/
+
+	public boolean accept(URI uri) {
+		if (uri == null) {
+			return false;
+		}
+		for (UriFilter filter : this.otherFilters) {
+			if (filter.accept(uri)) {
+				return true;
+			}
+		}
+		if (uri.getAuthority() != null && acceptsHostName(uri)) {
+			return true;
+		}
+		return !this.ipRanges.isEmpty() && uri.getHost() != null && acceptsAddress(uri.getHost());
+	}
+
+	private boolean acceptsHostName(URI uri) {
+		String host = HostnameFilter.hostOf(uri);
+		if (this.anyProtocol.matches(host)) {
+			return true;
+		}
+		if (this.byProtocol.isEmpty()) {
+			return false;
+		}
+		String scheme = uri.getScheme();
+		if (scheme == null) {
+			// Protocol filters do not apply without scheme.
+			for (HostPatternIndex index : this.byProtocol.values()) {
+				if (index.matches(host)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		HostPatternIndex index = this.byProtocol.get(scheme.toLowerCase(Locale.ROOT));
+		return index != null && index.matches(host);
+	}
+
+	private boolean acceptsAddress(String host) {
+		for (InetAddress address : IpRangeFilter.getAddresses(host, IpRangeFilter.getDefaultResolver())) {
+			if (this.ipRanges.contains(address.getAddress())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,237 @@
+package jp.co.fusions.win_proxy_selector.selector.whitelist;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*****************************************************************************
+ * Matches a host name against many host patterns at once. The patterns use
+ * the syntax of the HostnameFilter, where '*' matches any characters.<br>
+ *
+ * Patterns without wildcard are kept in a hash set and patterns of the form
+ * <code>*.example.com</code> in a trie of reversed domain labels, so these
+ * are matched in time proportional to the length of the host name. All other
+ * wildcard patterns are combined into a single automaton that processes the
+ * host name in one pass.<br>
+ *
+ * The index is built completely in the constructor and not changed
+ * afterwards, so it can be shared between threads.
+ ****************************************************************************/
+
+final class HostPatternIndex {
+
+	private final Set<String> exactHosts = new HashSet<String>();
+	private final Label suffixes = new Label();
+	private final WildcardAutomaton wildcards;
+	private final boolean matchAll;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param patterns
+	 *            the lower case host patterns.
+	 ************************************************************************/
+
+	HostPatternIndex(List<String> patterns) {
+		List<String> wildcardPatterns = new ArrayList<String>();
+		boolean all = false;
+		for (String pattern : patterns) {
+			int star = pattern.indexOf('*');
+			if (star == -1) {
+				this.exactHosts.add(pattern);
+			} else if (pattern.startsWith("*.") && pattern.indexOf('*', 1) == -1) {
+				addSuffix(pattern.substring(2));
+			} else if (pattern.replace("*", "").length() == 0) {
+				all = true;
+			} else {
+				wildcardPatterns.add(pattern);
+			}
+		}
+		this.matchAll = all;
+		this.wildcards = wildcardPatterns.isEmpty() ? null : new WildcardAutomaton(wildcardPatterns);
+	}
+
+	private void addSuffix(String suffix) {
+		Label node = this.suffixes;
+		int end = suffix.length();
+		while (true) {
+			int dot = suffix.lastIndexOf('.', end - 1);
+			node = node.child(suffix.substring(dot + 1, end));
+			if (dot < 0) {
+				break;
+			}
+			end = dot;
+		}
+		node.subdomains = true;
+	}
+
+	/*************************************************************************
+	 * Checks if any pattern matches the given host.
+	 *
+	 * @param host
+	 *            the lower case host name.
+	 * @return true if a pattern matches.
+	 ************************************************************************/
+
+	boolean matches(String host) {
+		if (this.matchAll || this.exactHosts.contains(host) || matchesSuffix(host)) {
+			return true;
+		}
+		return this.wildcards != null && this.wildcards.matches(host);
+	}
+
+	private boolean matchesSuffix(String host) {
+		// "*.example.com" matches every host ending with ".example.com".
+		Label node = this.suffixes;
+		int end = host.length();
+		while (node.children != null) {
+			int dot = host.lastIndexOf('.', end - 1);
+			node = node.children.get(host.substring(dot + 1, end));
+			if (node == null || dot < 0) {
+				return false;
+			}
+			if (node.subdomains) {
+				return true;
+			}
+			end = dot;
+		}
+		return false;
+	}
+
+	/*****************************************************************************
+	 * Node of the reversed label trie.
+	 ****************************************************************************/
+
+	private static final class Label {
+		Map<String, Label> children;
+		boolean subdomains;
+
+		Label child(String label) {
+			if (this.children == null) {
+				this.children = new HashMap<String, Label>();
+			}
+			Label result = this.children.get(label);
+			if (result == null) {
+				result = new Label();
+				this.children.put(label, result);
+			}
+			return result;
+		}
+	}
+
+	/*****************************************************************************
+	 * Nondeterministic automaton for a set of '*' patterns, simulated with bit
+	 * sets (shift-and). State j of a pattern means that its first j characters
+	 * have been matched. The states of all patterns are laid out one after the
+	 * other, the last state of each pattern is its accepting state.
+	 ****************************************************************************/
+
+	static final class WildcardAutomaton {
+		private final int words;
+		private final long[] start;
+		private final long[] stars;
+		private final long[] accept;
+		private final long[][] asciiMasks = new long[128][];
+		private final Map<Character, long[]> otherMasks = new HashMap<Character, long[]>();
+
+		WildcardAutomaton(List<String> patterns) {
+			int states = 0;
+			for (String pattern : patterns) {
+				states += pattern.length() + 1;
+			}
+			this.words = (states + 63) / 64;
+			this.start = new long[this.words];
+			this.stars = new long[this.words];
+			this.accept = new long[this.words];
+			int base = 0;
+			for (String pattern : patterns) {
+				set(this.start, base);
+				for (int i = 0; i < pattern.length(); i++) {
+					char c = pattern.charAt(i);
+					if (c == '*') {
+						set(this.stars, base + i);
+					} else {
+						set(maskFor(c), base + i);
+					}
+				}
+				set(this.accept, base + pattern.length());
+				base += pattern.length() + 1;
+			}
+			closure(this.start);
+		}
+
+		private long[] maskFor(char c) {
+			long[] mask = c < 128 ? this.asciiMasks[c] : this.otherMasks.get(c);
+			if (mask == null) {
+				mask = new long[this.words];
+				if (c < 128) {
+					this.asciiMasks[c] = mask;
+				} else {
+					this.otherMasks.put(c, mask);
+				}
+			}
+			return mask;
+		}
+
+		boolean matches(String value) {
+			long[] current = this.start.clone();
+			long[] next = new long[this.words];
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				long[] mask = c < 128 ? this.asciiMasks[c] : this.otherMasks.get(c);
+				// Character transitions move on by one state, stars stay.
+				long carry = 0;
+				boolean active = false;
+				for (int w = 0; w < this.words; w++) {
+					long moved = mask == null ? 0 : current[w] & mask[w];
+					next[w] = (moved << 1) | carry | (current[w] & this.stars[w]);
+					carry = moved >>> 63;
+					active |= next[w] != 0;
+				}
+				if (!active) {
+					return false;
+				}
+				closure(next);
+				long[] swap = current;
+				current = next;
+				next = swap;
+			}
+			for (int w = 0; w < this.words; w++) {
+				if ((current[w] & this.accept[w]) != 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/*************************************************************************
+		 * A star may also match nothing, so an active star state activates the
+		 * following state as well.
+		 ************************************************************************/
+
+		private void closure(long[] states) {
+			boolean changed = true;
+			while (changed) {
+				changed = false;
+				long carry = 0;
+				for (int w = 0; w < this.words; w++) {
+					long moved = states[w] & this.stars[w];
+					long added = ((moved << 1) | carry) & ~states[w];
+					carry = moved >>> 63;
+					if (added != 0) {
+						states[w] |= added;
+						changed = true;
+					}
+				}
+			}
+		}
+
+		private static void set(long[] bits, int index) {
+			bits[index >> 6] |= 1L << (index & 63);
+		}
+	}
+
+}
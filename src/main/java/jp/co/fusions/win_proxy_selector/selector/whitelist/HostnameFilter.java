@@ -1,6 +1,8 @@
 package jp.co.fusions.win_proxy_selector.selector.whitelist;
 
 import java.net.URI;
+import java.util.Locale;
+import java.util.regex.Pattern;
 
 import jp.co.fusions.win_proxy_selector.util.UriFilter;
 /**
@@ -19,6 +21,7 @@ final class HostnameFilter implements UriFilter {
 
 	private String matchTo;
 	private String protocolFilter;
+	private final Pattern regex;
 
 	/*************************************************************************
 	 * Constructor
@@ -29,11 +32,29 @@ final class HostnameFilter implements UriFilter {
 
 	HostnameFilter(String matchTo) {
 		super();
-		this.matchTo = matchTo.toLowerCase();
+		this.matchTo = matchTo.toLowerCase(Locale.ROOT);
 
 		extractProtocolFilter();
 
-		this.matchTo = toRegex(this.matchTo);
+		this.regex = Pattern.compile(toRegex(this.matchTo));
+	}
+
+	/*************************************************************************
+	 * @return the lower case host pattern without protocol, '*' matches any
+	 *         characters.
+	 ************************************************************************/
+
+	String getPattern() {
+		return this.matchTo;
+	}
+
+	/*************************************************************************
+	 * @return the lower case protocol this filter is restricted to, null for
+	 *         any protocol.
+	 ************************************************************************/
+
+	String getProtocolFilter() {
+		return this.protocolFilter;
 	}
 
 	/*************************************************************************
@@ -63,6 +84,18 @@ final class HostnameFilter implements UriFilter {
 			return false;
 		}
 
+		return this.regex.matcher(hostOf(uri)).matches();
+	}
+
+	/*************************************************************************
+	 * Extracts the host name matched by host filters from the given URI.
+	 * 
+	 * @param uri
+	 *            the URI, must have an authority.
+	 * @return the lower case authority without port.
+	 ************************************************************************/
+
+	static String hostOf(URI uri) {
 		String host = uri.getAuthority();
 
 		// Strip away port take special care for IP6.
@@ -71,8 +104,7 @@ final class HostnameFilter implements UriFilter {
 		if (index != -1 && index2 < index) {
 			host = host.substring(0, index);
 		}
-
-		return host.toLowerCase().matches(this.matchTo);
+		return host.toLowerCase(Locale.ROOT);
 	}
 	private String toRegex(String string){
 		StringBuilder b = new StringBuilder();
@@ -4,25 +4,31 @@ import java.net.InetAddress;
 import java.net.URI;
 import java.net.UnknownHostException;
 
+import jp.co.fusions.win_proxy_selector.util.CachingDnsResolver;
+import jp.co.fusions.win_proxy_selector.util.CidrRange;
+import jp.co.fusions.win_proxy_selector.util.DnsResolver;
+import jp.co.fusions.win_proxy_selector.util.ProxyUtil;
 import jp.co.fusions.win_proxy_selector.util.UriFilter;
 
 /*****************************************************************************
  * Filters an URI by inspecting it's IP address is in a given range. The range
  * as must be defined in CIDR notation. e.g. 192.0.2.1/24,
  *
+ * By default only URIs with an IP literal as host are matched, host names are
+ * never resolved. Resolving host names and matching their addresses can be
+ * enabled with setResolveHostNames(true) or per filter with a DnsResolver.
+ *
  * @author Markus Bernhardt, Copyright 2016
  * @author Bernd Rosstauscher, Copyright 2009
  ****************************************************************************/
 
 public final class IpRangeFilter implements UriFilter {
-	private static final int IPv4_BIT_LENGTH = 32;
-	private static final int IPv6_BIT_LENGTH = 128;
-	private static final int IPv4_BYTE_LENGTH = IPv4_BIT_LENGTH / 8;
-	private static final int IPv6_BYTE_LENGTH = IPv6_BIT_LENGTH / 8;
 
-	private String originalMatchTo;
-	private byte[] matchTo;
-	private int numOfBits;
+	private static volatile DnsResolver defaultResolver;
+
+	private final CidrRange range;
+	private final DnsResolver resolver;
+	private final boolean explicitResolver;
 
 	/*************************************************************************
 	 * Constructor
@@ -32,30 +38,102 @@ public final class IpRangeFilter implements UriFilter {
 	 ************************************************************************/
 
 	public IpRangeFilter(String matchTo) {
-		this.originalMatchTo = matchTo;
+		this.range = CidrRange.parse(matchTo);
+		this.resolver = null;
+		this.explicitResolver = false;
 	}
-	private void prepare(){
-		String[] parts = this.originalMatchTo.split("/");
-		if (parts.length != 2) {
-			return;
-		}
 
-		try {
-			InetAddress address = InetAddress.getByName(parts[0].trim());
-			this.matchTo = address.getAddress();
-		} catch (UnknownHostException e) {
-			return;
-		}
+	/*************************************************************************
+	 * Constructor
+	 * 
+	 * @param matchTo
+	 *            the match subnet in CIDR notation.
+	 * @param resolver
+	 *            the resolver used to look up host names, null to match IP
+	 *            literals only.
+	 ************************************************************************/
+
+	public IpRangeFilter(String matchTo, DnsResolver resolver) {
+		this.range = CidrRange.parse(matchTo);
+		this.resolver = resolver;
+		this.explicitResolver = true;
+	}
 
+	/*************************************************************************
+	 * Enables or disables resolving host names for the filters created
+	 * without an explicit resolver. When enabled the host names are resolved
+	 * with a dedicated CachingDnsResolver and a host matches if any of its
+	 * addresses is in the range. Disabled by default, as this costs a DNS
+	 * lookup for every checked URI.
+	 * 
+	 * @param resolve
+	 *            true to resolve host names.
+	 ************************************************************************/
 
-		this.numOfBits = Integer.parseInt(parts[1].trim());
-		// In case of IPv4, convert to IPv4-mapped IPv6 address
-		if (this.matchTo.length == IPv4_BYTE_LENGTH){
-			this.matchTo = toIPv6(this.matchTo);
-			if (!parts[0].contains(":")){
-				this.numOfBits = this.numOfBits + (IPv6_BIT_LENGTH - IPv4_BIT_LENGTH);
+	public static void setResolveHostNames(boolean resolve) {
+		defaultResolver = resolve ? new CachingDnsResolver() : null;
+	}
+
+	/*************************************************************************
+	 * @return true if filters created without an explicit resolver resolve
+	 *         host names.
+	 ************************************************************************/
+
+	public static boolean isResolveHostNames() {
+		return defaultResolver != null;
+	}
+
+	/*************************************************************************
+	 * @return the resolver used by this filter, null if only IP literals are
+	 *         matched.
+	 ************************************************************************/
+
+	DnsResolver getResolver() {
+		return this.explicitResolver ? this.resolver : defaultResolver;
+	}
+
+	/*************************************************************************
+	 * @return the resolver used by filters created without an explicit
+	 *         resolver, null if host names are not resolved.
+	 ************************************************************************/
+
+	static DnsResolver getDefaultResolver() {
+		return defaultResolver;
+	}
+
+	/*************************************************************************
+	 * @return true if this filter uses the resolver configured with
+	 *         setResolveHostNames().
+	 ************************************************************************/
+
+	boolean usesDefaultResolver() {
+		return !this.explicitResolver;
+	}
+
+	/*************************************************************************
+	 * Gets the addresses of a host to match against IP ranges.
+	 * 
+	 * @param host
+	 *            an IP literal or host name.
+	 * @param resolver
+	 *            the resolver for host names, null to not resolve names.
+	 * @return the addresses, empty if the host is no literal and could not be
+	 *         resolved.
+	 ************************************************************************/
+
+	static InetAddress[] getAddresses(String host, DnsResolver resolver) {
+		InetAddress literal = ProxyUtil.parseIpLiteral(host);
+		if (literal != null) {
+			return new InetAddress[] { literal };
+		}
+		if (resolver != null && host != null && host.length() > 0) {
+			try {
+				return resolver.resolve(host);
+			} catch (UnknownHostException e) {
+				// In this case we can not get the IP do not match.
 			}
 		}
+		return new InetAddress[0];
 	}
 
 	/*************************************************************************
@@ -71,54 +149,42 @@ public final class IpRangeFilter implements UriFilter {
 
 		return acceptsHost(uri.getHost());
 	}
-	public boolean acceptsHost(String host) {
-		if (this.matchTo == null){
-			prepare();
-		}
 
-		try {
-			InetAddress address = InetAddress.getByName(host);
-			byte[] addr = address.getAddress();
-
-			// We want to compare in IPv6-basis
-			if (addr.length != this.matchTo.length) {
-				if (addr.length == IPv4_BYTE_LENGTH){
-					addr = toIPv6(addr);
-				} else {
-					return false;
-				}
-			}
+	/*************************************************************************
+	 * @return the parsed range, null if the range is invalid.
+	 ************************************************************************/
 
-			int bit = 0;
-			for (int nibble = 0; nibble < addr.length; nibble++) {
-				for (int nibblePos = 7; nibblePos >= 0; nibblePos--) {
-					if (bit >= this.numOfBits) {
-						return true;
-					}
-					int mask = 1 << nibblePos;
-					if ((this.matchTo[nibble] & mask) != (addr[nibble] & mask)) {
-						return false;
-					}
-					bit++;
-				}
-			}
-			return true;
+	CidrRange getRange() {
+		return this.range;
+	}
 
-		} catch (UnknownHostException e) {
-			// In this case we can not get the IP do not match.
-			return false;
+	/*************************************************************************
+	 * Checks if the given host is in the range. Host names are only resolved
+	 * if a resolver is configured.
+	 * 
+	 * @param host
+	 *            an IP literal or host name.
+	 * @return true if the host is in the range.
+	 ************************************************************************/
+
+	public boolean acceptsHost(String host) {
+		for (InetAddress address : getAddresses(host, getResolver())) {
+			if (acceptsAddress(address)) {
+				return true;
+			}
 		}
+		return false;
 	}
-	private byte[] toIPv6(byte[] ipv4Address){
-		byte ipv4asIpv6Address[] = new byte[IPv6_BYTE_LENGTH];
-		int last = IPv6_BYTE_LENGTH - 1;
-		ipv4asIpv6Address[last-5] = (byte)0xff;
-		ipv4asIpv6Address[last-4] = (byte)0xff;
-		ipv4asIpv6Address[last-3] = ipv4Address[0];
-		ipv4asIpv6Address[last-2] = ipv4Address[1];
-		ipv4asIpv6Address[last-1] = ipv4Address[2];
-		ipv4asIpv6Address[last] = ipv4Address[3];
-
-		return ipv4asIpv6Address;
+
+	/*************************************************************************
+	 * Checks if the given address is in the range.
+	 * 
+	 * @param address
+	 *            the address to check.
+	 * @return true if the address is in the range.
+	 ************************************************************************/
+
+	public boolean acceptsAddress(InetAddress address) {
+		return this.range != null && this.range.contains(address);
 	}
 }
@@ -0,0 +1,117 @@
+package jp.co.fusions.win_proxy_selector.selector.whitelist;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import jp.co.fusions.win_proxy_selector.util.CidrRange;
+
+/*****************************************************************************
+ * A set of IP ranges as sorted, non overlapping intervals of IPv6 addresses.
+ * IPv4 ranges and addresses are mapped into IPv6 like in the IpRangeFilter.
+ * An address is looked up with a binary search, so the cost grows with the
+ * logarithm of the number of ranges only.<br>
+ *
+ * Addresses are held as two longs with the high and the low 64 bits.
+ ****************************************************************************/
+
+final class IpRangeIndex {
+
+	private final long[] startHigh;
+	private final long[] startLow;
+	private final long[] endHigh;
+	private final long[] endLow;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param ranges
+	 *            the ranges to index.
+	 ************************************************************************/
+
+	IpRangeIndex(List<IpRangeFilter> ranges) {
+		List<long[]> intervals = new ArrayList<long[]>(ranges.size());
+		for (IpRangeFilter filter : ranges) {
+			CidrRange range = filter.getRange();
+			intervals.add(new long[] { range.getFirstHigh(), range.getFirstLow(), range.getLastHigh(), range.getLastLow() });
+		}
+		Collections.sort(intervals, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return compareAddress(a[0], a[1], b[0], b[1]);
+			}
+		});
+
+		// Merge overlapping intervals.
+		List<long[]> merged = new ArrayList<long[]>(intervals.size());
+		for (long[] interval : intervals) {
+			long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+			if (last != null && compareAddress(interval[0], interval[1], last[2], last[3]) <= 0) {
+				if (compareAddress(interval[2], interval[3], last[2], last[3]) > 0) {
+					last[2] = interval[2];
+					last[3] = interval[3];
+				}
+			} else {
+				merged.add(interval);
+			}
+		}
+
+		int size = merged.size();
+		this.startHigh = new long[size];
+		this.startLow = new long[size];
+		this.endHigh = new long[size];
+		this.endLow = new long[size];
+		for (int i = 0; i < size; i++) {
+			long[] interval = merged.get(i);
+			this.startHigh[i] = interval[0];
+			this.startLow[i] = interval[1];
+			this.endHigh[i] = interval[2];
+			this.endLow[i] = interval[3];
+		}
+	}
+
+	/*************************************************************************
+	 * @return true if no range is indexed.
+	 ************************************************************************/
+
+	boolean isEmpty() {
+		return this.startHigh.length == 0;
+	}
+
+	/*************************************************************************
+	 * Checks if an address is in one of the ranges.
+	 *
+	 * @param address
+	 *            an IPv4 or IPv6 address.
+	 * @return true if it is in a range.
+	 ************************************************************************/
+
+	boolean contains(byte[] address) {
+		if (address.length != 4 && address.length != 16) {
+			return false;
+		}
+		long high = CidrRange.high(address);
+		long low = CidrRange.low(address);
+
+		// Find the last interval starting at or before the address.
+		int lowIndex = 0;
+		int highIndex = this.startHigh.length - 1;
+		int found = -1;
+		while (lowIndex <= highIndex) {
+			int mid = (lowIndex + highIndex) >>> 1;
+			if (compareAddress(this.startHigh[mid], this.startLow[mid], high, low) <= 0) {
+				found = mid;
+				lowIndex = mid + 1;
+			} else {
+				highIndex = mid - 1;
+			}
+		}
+		return found != -1 && compareAddress(high, low, this.endHigh[found], this.endLow[found]) <= 0;
+	}
+
+	private static int compareAddress(long high1, long low1, long high2, long low2) {
+		int result = Long.compareUnsigned(high1, high2);
+		return result != 0 ? result : Long.compareUnsigned(low1, low2);
+	}
+
+}
@@ -7,6 +7,7 @@ import java.net.SocketAddress;
 import java.net.URI;
 import java.util.List;
 
+import jp.co.fusions.win_proxy_selector.util.Metrics;
 import jp.co.fusions.win_proxy_selector.util.ProxyUtil;
 import jp.co.fusions.win_proxy_selector.util.UriFilter;
 
@@ -23,13 +24,15 @@ import jp.co.fusions.win_proxy_selector.util.UriFilter;
 public class ProxyBypassListSelector extends ProxySelector {
 
 	private ProxySelector delegate;
-	private List<UriFilter> whiteListFilter;
+	private UriFilter whiteListFilter;
 
 	/*************************************************************************
 	 * Constructor
 	 * 
 	 * @param whiteListFilter
-	 *            a list of filters for whitelist URLs.
+	 *            a list of filters for whitelist URLs. The filters created by
+	 *            the DefaultWhiteListParser are compiled into an index, so the
+	 *            lookup cost does not grow with the length of the list.
 	 * @param proxySelector
 	 *            the proxy selector to use.
 	 ************************************************************************/
@@ -44,7 +47,7 @@ public class ProxyBypassListSelector extends ProxySelector {
 		}
 
 		this.delegate = proxySelector;
-		this.whiteListFilter = whiteListFilter;
+		this.whiteListFilter = new BypassListIndex(whiteListFilter);
 	}
 
 	/*************************************************************************
@@ -82,12 +85,12 @@ public class ProxyBypassListSelector extends ProxySelector {
 	public List<Proxy> select(URI uri) {
 
 		// If in white list, use DIRECT connection.
-		for (UriFilter filter : this.whiteListFilter) {
-			if (filter.accept(uri)) {
-				return ProxyUtil.noProxyList();
-			}
+		if (this.whiteListFilter.accept(uri)) {
+			Metrics.increment(Metrics.BYPASS_HIT);
+			return ProxyUtil.noProxyList();
 		}
 
+		Metrics.increment(Metrics.BYPASS_MISS);
 		return this.delegate.select(uri);
 	}
 
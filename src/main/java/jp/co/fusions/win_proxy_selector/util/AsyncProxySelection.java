@@ -0,0 +1,227 @@
+package jp.co.fusions.win_proxy_selector.util;
+
+import java.lang.reflect.Method;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import jp.co.fusions.win_proxy_selector.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Runs ProxySelector.select() on a dedicated, bounded executor so that callers
+ * like event loop based HTTP clients do not block on WPAD detection, PAC
+ * downloads or DNS lookups done by the PAC script.
+ *
+ * If the selection does not finish within the timeout the returned future is
+ * completed with a default decision (DIRECT unless configured otherwise). The
+ * selection itself keeps running and warms up the caches for later calls.
+ *
+ * On Java runtimes supporting virtual threads these are used for the
+ * executor, else a pool of daemon threads.
+ ****************************************************************************/
+
+public final class AsyncProxySelection {
+
+	public static final String OVERRIDE_MAX_THREADS = "com.btr.proxy.async.maxThreads";
+	public static final String OVERRIDE_TIMEOUT = "com.btr.proxy.async.timeout";
+
+	public static final long DEFAULT_TIMEOUT_MILLIS = 10 * 1000;
+	private static final int QUEUE_CAPACITY = 1000;
+
+	private static volatile long defaultTimeoutMillis = readLongProperty(OVERRIDE_TIMEOUT, DEFAULT_TIMEOUT_MILLIS);
+	private static volatile List<Proxy> defaultDecision;
+
+	private AsyncProxySelection() {
+		super();
+	}
+
+	/*************************************************************************
+	 * Selects the proxies for the given URI asynchronously with the default
+	 * timeout and default decision.
+	 *
+	 * @param selector
+	 *            the selector to use.
+	 * @param uri
+	 *            the URI to select the proxies for.
+	 * @return a future completed with the proxy list.
+	 ************************************************************************/
+
+	public static CompletableFuture<List<Proxy>> selectAsync(ProxySelector selector, URI uri) {
+		return selectAsync(selector, uri, defaultTimeoutMillis, getDefaultDecision());
+	}
+
+	/*************************************************************************
+	 * Selects the proxies for the given URI asynchronously.
+	 *
+	 * @param selector
+	 *            the selector to use.
+	 * @param uri
+	 *            the URI to select the proxies for.
+	 * @param timeoutMillis
+	 *            the time to wait for the selector in milliseconds, 0 to wait
+	 *            without limit.
+	 * @param timeoutDecision
+	 *            the result used if the selector did not answer in time or the
+	 *            executor is overloaded.
+	 * @return a future completed with the proxy list or exceptionally with
+	 *         the exception thrown by the selector.
+	 ************************************************************************/
+
+	public static CompletableFuture<List<Proxy>> selectAsync(final ProxySelector selector, final URI uri,
+			long timeoutMillis, final List<Proxy> timeoutDecision) {
+		if (uri == null) {
+			throw new IllegalArgumentException("URI must not be null.");
+		}
+		final CompletableFuture<List<Proxy>> result = new CompletableFuture<List<Proxy>>();
+		try {
+			Holder.EXECUTOR.execute(new Runnable() {
+				public void run() {
+					try {
+						result.complete(selector.select(uri));
+					} catch (Throwable e) {
+						result.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Logger.log(AsyncProxySelection.class, LogLevel.WARNING, "Too many pending proxy selections, using default for {0}", uri);
+			result.complete(timeoutDecision);
+			return result;
+		}
+
+		if (timeoutMillis > 0 && !result.isDone()) {
+			final ScheduledFuture<?> timeout = Holder.TIMER.schedule(new Runnable() {
+				public void run() {
+					if (result.complete(timeoutDecision)) {
+						Logger.log(AsyncProxySelection.class, LogLevel.DEBUG, "Proxy selection timed out, using default for {0}", uri);
+					}
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+			result.whenComplete(new BiConsumer<List<Proxy>, Throwable>() {
+				public void accept(List<Proxy> proxies, Throwable e) {
+					timeout.cancel(false);
+				}
+			});
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * Sets the timeout used by selectAsync(ProxySelector, URI).
+	 *
+	 * @param timeoutMillis
+	 *            the timeout in milliseconds, 0 to wait without limit.
+	 ************************************************************************/
+
+	public static void setDefaultTimeoutMillis(long timeoutMillis) {
+		defaultTimeoutMillis = timeoutMillis;
+	}
+
+	/*************************************************************************
+	 * @return the timeout used by selectAsync(ProxySelector, URI).
+	 ************************************************************************/
+
+	public static long getDefaultTimeoutMillis() {
+		return defaultTimeoutMillis;
+	}
+
+	/*************************************************************************
+	 * Sets the decision used by selectAsync(ProxySelector, URI) if the
+	 * selection does not finish in time.
+	 *
+	 * @param decision
+	 *            the proxy list to use, null for DIRECT.
+	 ************************************************************************/
+
+	public static void setDefaultDecision(List<Proxy> decision) {
+		defaultDecision = decision;
+	}
+
+	/*************************************************************************
+	 * @return the decision used by selectAsync(ProxySelector, URI) if the
+	 *         selection does not finish in time.
+	 ************************************************************************/
+
+	public static List<Proxy> getDefaultDecision() {
+		List<Proxy> decision = defaultDecision;
+		return decision == null ? ProxyUtil.noProxyList() : decision;
+	}
+
+	private static long readLongProperty(String name, long defaultValue) {
+		String prop = System.getProperty(name);
+		if (prop != null && prop.trim().length() > 0) {
+			try {
+				return Long.parseLong(prop.trim());
+			} catch (NumberFormatException e) {
+				Logger.log(AsyncProxySelection.class, LogLevel.DEBUG, "Invalid override property : {0}={1}", name, prop);
+				// In this case use the default value.
+			}
+		}
+		return defaultValue;
+	}
+
+	/*************************************************************************
+	 * Creates a factory for virtual threads if the runtime supports them.
+	 *
+	 * @return the factory, null if virtual threads are not available.
+	 ************************************************************************/
+
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/*************************************************************************
+	 * Lazily created executors.
+	 ************************************************************************/
+
+	private static final class Holder {
+		static final ExecutorService EXECUTOR = createExecutor();
+		static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+			daemonThreadFactory("proxy-select-timeout"));
+
+		private static ExecutorService createExecutor() {
+			ThreadFactory factory = virtualThreadFactory();
+			int defaultThreads = factory != null ? 256 : Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+			int maxThreads = (int) Math.max(1, readLongProperty(OVERRIDE_MAX_THREADS, defaultThreads));
+			if (factory == null) {
+				factory = daemonThreadFactory("proxy-select");
+			} else {
+				Logger.log(AsyncProxySelection.class, LogLevel.DEBUG, "Using virtual threads for async proxy selection.");
+			}
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY), factory);
+			executor.allowCoreThreadTimeOut(true);
+			return executor;
+		}
+
+		private static ThreadFactory daemonThreadFactory(final String prefix) {
+			final AtomicInteger count = new AtomicInteger();
+			return new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			};
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+package jp.co.fusions.win_proxy_selector.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*****************************************************************************
+ * A DnsResolver caching the results of another resolver. Successful lookups
+ * and failed lookups are cached with separate time to live values, so an
+ * unresolvable host does not cost a resolver timeout on every request.
+ *
+ * Concurrent lookups of the same host are coalesced: the first thread does
+ * the lookup, the others wait for its result.
+ ****************************************************************************/
+
+public class CachingDnsResolver implements DnsResolver {
+
+	public static final long DEFAULT_POSITIVE_TTL_MILLIS = 60 * 1000;
+	public static final long DEFAULT_NEGATIVE_TTL_MILLIS = 30 * 1000;
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+	private final DnsResolver delegate;
+	private final long positiveTtlNanos;
+	private final long negativeTtlNanos;
+	private final int maxEntries;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong lookupCount = new AtomicLong();
+
+	/*************************************************************************
+	 * Constructor caching the system resolver with the default settings.
+	 ************************************************************************/
+
+	public CachingDnsResolver() {
+		this(DnsResolver.SYSTEM, DEFAULT_POSITIVE_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param delegate
+	 *            the resolver doing the actual lookups.
+	 * @param positiveTtlMillis
+	 *            how long a resolved host is cached in milliseconds.
+	 * @param negativeTtlMillis
+	 *            how long a failed lookup is cached in milliseconds, 0 to not
+	 *            cache failures.
+	 * @param maxEntries
+	 *            the maximum number of cached hosts.
+	 ************************************************************************/
+
+	public CachingDnsResolver(DnsResolver delegate, long positiveTtlMillis, long negativeTtlMillis, int maxEntries) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries must be positive.");
+		}
+		this.delegate = delegate;
+		this.positiveTtlNanos = TimeUnit.MILLISECONDS.toNanos(positiveTtlMillis);
+		this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+		this.maxEntries = maxEntries;
+	}
+
+	/*************************************************************************
+	 * resolve
+	 *
+	 * @see DnsResolver#resolve(java.lang.String)
+	 ************************************************************************/
+
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		if (host == null) {
+			this.lookupCount.incrementAndGet();
+			return this.delegate.resolve(host);
+		}
+		String key = host.toLowerCase(Locale.ROOT);
+		while (true) {
+			Entry entry = this.entries.get(key);
+			if (entry != null && (!entry.task.isDone() || entry.expiresAtNanos - System.nanoTime() > 0)) {
+				return entry.get();
+			}
+			Entry fresh = new Entry(host);
+			boolean installed = entry == null ? this.entries.putIfAbsent(key, fresh) == null
+					: this.entries.replace(key, entry, fresh);
+			if (installed) {
+				prune(fresh);
+				fresh.task.run();
+				return fresh.get();
+			}
+			// Another thread started a lookup in the meantime, use that one.
+		}
+	}
+
+	private void prune(Entry keep) {
+		if (this.entries.size() <= this.maxEntries) {
+			return;
+		}
+		long now = System.nanoTime();
+		Iterator<Entry> it = this.entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.task.isDone() && entry.expiresAtNanos - now <= 0) {
+				it.remove();
+			}
+		}
+		it = this.entries.values().iterator();
+		while (this.entries.size() > this.maxEntries && it.hasNext()) {
+			if (it.next() != keep) {
+				it.remove();
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Drops all cached lookups.
+	 ************************************************************************/
+
+	public void clear() {
+		this.entries.clear();
+	}
+
+	/*************************************************************************
+	 * @return the number of lookups passed on to the underlying resolver.
+	 ************************************************************************/
+
+	public long getLookupCount() {
+		return this.lookupCount.get();
+	}
+
+	private final class Entry implements Callable<InetAddress[]> {
+		final String host;
+		final FutureTask<InetAddress[]> task;
+		volatile long expiresAtNanos;
+
+		Entry(String host) {
+			this.host = host;
+			this.task = new FutureTask<InetAddress[]>(this);
+		}
+
+		public InetAddress[] call() throws UnknownHostException {
+			lookupCount.incrementAndGet();
+			long now = System.nanoTime();
+			// Other errors are not cached at all.
+			this.expiresAtNanos = now;
+			try {
+				InetAddress[] result = delegate.resolve(this.host);
+				this.expiresAtNanos = now + positiveTtlNanos;
+				return result;
+			} catch (UnknownHostException e) {
+				this.expiresAtNanos = now + negativeTtlNanos;
+				throw e;
+			}
+		}
+
+		InetAddress[] get() throws UnknownHostException {
+			try {
+				return this.task.get().clone();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new UnknownHostException(this.host);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof UnknownHostException) {
+					// Do not share the exception instance between threads.
+					UnknownHostException copy = new UnknownHostException(cause.getMessage());
+					copy.initCause(cause);
+					throw copy;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw new IllegalStateException(cause);
+			}
+		}
+	}
+
+}
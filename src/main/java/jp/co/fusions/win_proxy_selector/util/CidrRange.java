@@ -0,0 +1,191 @@
+package jp.co.fusions.win_proxy_selector.util;
+
+import java.net.InetAddress;
+
+/*****************************************************************************
+ * An IP network as 128 bit address and mask, both held as two longs. IPv4
+ * networks and addresses are mapped into IPv6 (::ffff:a.b.c.d), so a check is
+ * two mask and compare operations for both address families.<br>
+ *
+ * Instances are immutable and can be shared between threads.
+ ****************************************************************************/
+
+public final class CidrRange {
+
+	private static final long IPV4_MAPPED_PREFIX = 0xFFFF00000000L;
+
+	private final long networkHigh;
+	private final long networkLow;
+	private final long maskHigh;
+	private final long maskLow;
+
+	private CidrRange(long networkHigh, long networkLow, long maskHigh, long maskLow) {
+		this.networkHigh = networkHigh;
+		this.networkLow = networkLow;
+		this.maskHigh = maskHigh;
+		this.maskLow = maskLow;
+	}
+
+	/*************************************************************************
+	 * Parses a range in CIDR notation like 192.0.2.0/24 or 2001:db8::/32.
+	 * The prefix length of an IPv4 range refers to the IPv4 address. If the
+	 * address is written as IPv4-mapped IPv6 address, the prefix length refers
+	 * to the IPv6 address like for every IPv6 range, so ::ffff:192.0.2.0/120
+	 * is the same range as 192.0.2.0/24.
+	 *
+	 * @param cidr
+	 *            the range.
+	 * @return the range, null if the given string is no valid range.
+	 ************************************************************************/
+
+	public static CidrRange parse(String cidr) {
+		if (cidr == null) {
+			return null;
+		}
+		int slash = cidr.indexOf('/');
+		if (slash == -1 || cidr.indexOf('/', slash + 1) != -1) {
+			return null;
+		}
+		String ip = cidr.substring(0, slash).trim();
+		InetAddress network = ProxyUtil.parseIpLiteral(ip);
+		int prefix;
+		try {
+			prefix = Integer.parseInt(cidr.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (network == null || prefix < 0) {
+			return null;
+		}
+		if (network.getAddress().length == 4 && ip.indexOf(':') == -1) {
+			prefix += 96;
+		}
+		if (prefix > 128) {
+			return null;
+		}
+		long maskHigh = prefix >= 64 ? -1L : prefix == 0 ? 0 : -1L << (64 - prefix);
+		long maskLow = prefix <= 64 ? 0 : prefix == 128 ? -1L : -1L << (128 - prefix);
+		byte[] address = network.getAddress();
+		return new CidrRange(high(address) & maskHigh, low(address) & maskLow, maskHigh, maskLow);
+	}
+
+	/*************************************************************************
+	 * Creates an IPv4 range from an address and a mask in dot separated
+	 * format, like the arguments of the PAC function isInNet. The mask may
+	 * be non contiguous. Note that the address is not masked: if it has bits
+	 * set outside the mask, no address matches.
+	 *
+	 * @param address
+	 *            the IPv4 address pattern.
+	 * @param mask
+	 *            the IPv4 mask.
+	 * @return the range, null if one of the arguments is no IPv4 literal.
+	 ************************************************************************/
+
+	public static CidrRange ofMask(String address, String mask) {
+		InetAddress network = ProxyUtil.parseIpLiteral(address);
+		InetAddress netmask = ProxyUtil.parseIpLiteral(mask);
+		if (network == null || netmask == null || network.getAddress().length != 4
+				|| netmask.getAddress().length != 4) {
+			return null;
+		}
+		return new CidrRange(0, low(network.getAddress()), -1L, IPV4_MAPPED_PREFIX | low(netmask.getAddress()));
+	}
+
+	/*************************************************************************
+	 * Checks if an address is in this range.
+	 *
+	 * @param address
+	 *            the address.
+	 * @return true if it is in the range.
+	 ************************************************************************/
+
+	public boolean contains(InetAddress address) {
+		byte[] bytes = address.getAddress();
+		return contains(high(bytes), low(bytes));
+	}
+
+	/*************************************************************************
+	 * Checks if an address is in this range.
+	 *
+	 * @param high
+	 *            the upper 64 bits of the IPv6 address.
+	 * @param low
+	 *            the lower 64 bits of the IPv6 address.
+	 * @return true if it is in the range.
+	 ************************************************************************/
+
+	public boolean contains(long high, long low) {
+		return (high & this.maskHigh) == this.networkHigh && (low & this.maskLow) == this.networkLow;
+	}
+
+	/*************************************************************************
+	 * @return the upper 64 bits of the first address in the range.
+	 ************************************************************************/
+
+	public long getFirstHigh() {
+		return this.networkHigh;
+	}
+
+	/*************************************************************************
+	 * @return the lower 64 bits of the first address in the range.
+	 ************************************************************************/
+
+	public long getFirstLow() {
+		return this.networkLow;
+	}
+
+	/*************************************************************************
+	 * @return the upper 64 bits of the last address in the range. Only
+	 *         meaningful for ranges with a contiguous mask.
+	 ************************************************************************/
+
+	public long getLastHigh() {
+		return this.networkHigh | ~this.maskHigh;
+	}
+
+	/*************************************************************************
+	 * @return the lower 64 bits of the last address in the range. Only
+	 *         meaningful for ranges with a contiguous mask.
+	 ************************************************************************/
+
+	public long getLastLow() {
+		return this.networkLow | ~this.maskLow;
+	}
+
+	/*************************************************************************
+	 * Gets the upper 64 bits of an address as IPv6 address.
+	 *
+	 * @param address
+	 *            an IPv4 or IPv6 address.
+	 * @return the upper 64 bits, 0 for IPv4 addresses.
+	 ************************************************************************/
+
+	public static long high(byte[] address) {
+		return address.length == 16 ? toLong(address, 0) : 0;
+	}
+
+	/*************************************************************************
+	 * Gets the lower 64 bits of an address as IPv6 address.
+	 *
+	 * @param address
+	 *            an IPv4 or IPv6 address.
+	 * @return the lower 64 bits, IPv4 addresses are mapped into IPv6.
+	 ************************************************************************/
+
+	public static long low(byte[] address) {
+		if (address.length == 4) {
+			return IPV4_MAPPED_PREFIX | (toLong(address, 0) >>> 32);
+		}
+		return toLong(address, 8);
+	}
+
+	private static long toLong(byte[] bytes, int offset) {
+		long result = 0;
+		for (int i = 0; i < 8; i++) {
+			result = (result << 8) | (offset + i < bytes.length ? bytes[offset + i] & 0xFF : 0);
+		}
+		return result;
+	}
+
+}
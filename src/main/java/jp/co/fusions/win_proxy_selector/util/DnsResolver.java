@@ -0,0 +1,35 @@
+package jp.co.fusions.win_proxy_selector.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/*****************************************************************************
+ * Resolves host names to IP addresses. Used by the PAC script methods so that
+ * name lookups can be cached or replaced.
+ ****************************************************************************/
+
+public interface DnsResolver {
+
+	/*************************************************************************
+	 * Resolver doing a lookup with the system resolver on every call.
+	 ************************************************************************/
+
+	public static final DnsResolver SYSTEM = new DnsResolver() {
+		public InetAddress[] resolve(String host) throws UnknownHostException {
+			return InetAddress.getAllByName(host);
+		}
+	};
+
+	/*************************************************************************
+	 * Resolves a host name or IP literal.
+	 *
+	 * @param host
+	 *            the host to resolve.
+	 * @return all addresses of the host, the preferred one first.
+	 * @throws UnknownHostException
+	 *             if the host could not be resolved.
+	 ************************************************************************/
+
+	public InetAddress[] resolve(String host) throws UnknownHostException;
+
+}
@@ -0,0 +1,205 @@
+package jp.co.fusions.win_proxy_selector.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jp.co.fusions.win_proxy_selector.util.Metrics.MetricsBackEnd;
+
+/*****************************************************************************
+ * Metrics backend keeping all values in memory, meant for tests and for
+ * looking at a running application without a metrics library:
+ *
+ * <pre>
+ * InMemoryMetrics metrics = new InMemoryMetrics();
+ * Metrics.setBackend(metrics);
+ * ...
+ * long p99 = metrics.getTimer(Metrics.PAC_EVALUATION).getPercentileNanos(99);
+ * </pre>
+ ****************************************************************************/
+
+public class InMemoryMetrics implements MetricsBackEnd {
+
+	private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+
+	/*************************************************************************
+	 * increment
+	 *
+	 * @see MetricsBackEnd#increment(java.lang.String)
+	 ************************************************************************/
+
+	@Override
+	public void increment(String name) {
+		AtomicLong counter = this.counters.get(name);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = this.counters.putIfAbsent(name, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	/*************************************************************************
+	 * record
+	 *
+	 * @see MetricsBackEnd#record(java.lang.String, long)
+	 ************************************************************************/
+
+	@Override
+	public void record(String name, long nanos) {
+		Timer timer = this.timers.get(name);
+		if (timer == null) {
+			Timer created = new Timer();
+			timer = this.timers.putIfAbsent(name, created);
+			if (timer == null) {
+				timer = created;
+			}
+		}
+		timer.record(nanos);
+	}
+
+	/*************************************************************************
+	 * Gets the value of a counter.
+	 *
+	 * @param name
+	 *            the name of the counter.
+	 * @return the number of counted events.
+	 ************************************************************************/
+
+	public long getCount(String name) {
+		AtomicLong counter = this.counters.get(name);
+		return counter == null ? 0 : counter.get();
+	}
+
+	/*************************************************************************
+	 * Gets a timer.
+	 *
+	 * @param name
+	 *            the name of the timer.
+	 * @return the timer, null if nothing was recorded for the name.
+	 ************************************************************************/
+
+	public Timer getTimer(String name) {
+		return this.timers.get(name);
+	}
+
+	/*************************************************************************
+	 * Removes all counters and timers.
+	 ************************************************************************/
+
+	public void reset() {
+		this.counters.clear();
+		this.timers.clear();
+	}
+
+	/*****************************************************************************
+	 * Durations recorded under one name. The durations are counted in
+	 * buckets with a relative width of about 3 percent (32 buckets per power
+	 * of two), like an HdrHistogram with two significant digits, so the
+	 * memory needed does not grow with the number of values.
+	 ****************************************************************************/
+
+	public static final class Timer {
+		private static final int SUB_BUCKET_BITS = 5;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long nanos) {
+			long value = Math.max(0, nanos);
+			this.buckets.incrementAndGet(bucketOf(value));
+			this.count.incrementAndGet();
+			this.total.addAndGet(value);
+			long current = this.max.get();
+			while (value > current && !this.max.compareAndSet(current, value)) {
+				current = this.max.get();
+			}
+		}
+
+		static int bucketOf(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int shift = exponent - SUB_BUCKET_BITS;
+			return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+		}
+
+		static long highestValueOf(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int shift = bucket / SUB_BUCKETS - 1;
+			long top = bucket % SUB_BUCKETS + SUB_BUCKETS;
+			return ((top + 1) << shift) - 1;
+		}
+
+		/*************************************************************************
+		 * @return the number of recorded durations.
+		 ************************************************************************/
+
+		public long getCount() {
+			return this.count.get();
+		}
+
+		/*************************************************************************
+		 * @return the sum of all recorded durations in nanoseconds.
+		 ************************************************************************/
+
+		public long getTotalNanos() {
+			return this.total.get();
+		}
+
+		/*************************************************************************
+		 * @return the longest recorded duration in nanoseconds.
+		 ************************************************************************/
+
+		public long getMaxNanos() {
+			return this.max.get();
+		}
+
+		/*************************************************************************
+		 * @return the mean duration in nanoseconds, 0 if nothing was recorded.
+		 ************************************************************************/
+
+		public double getMeanNanos() {
+			long n = this.count.get();
+			return n == 0 ? 0 : (double) this.total.get() / n;
+		}
+
+		/*************************************************************************
+		 * Gets a percentile of the recorded durations. The result is the upper
+		 * bound of the bucket holding the percentile, but never larger than
+		 * the longest duration.
+		 *
+		 * @param percentile
+		 *            the percentile between 0 and 100, e.g. 99.9.
+		 * @return the duration in nanoseconds, 0 if nothing was recorded.
+		 ************************************************************************/
+
+		public long getPercentileNanos(double percentile) {
+			long n = this.count.get();
+			if (n == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * n));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += this.buckets.get(i);
+				if (seen >= rank) {
+					return Math.min(highestValueOf(i), getMaxNanos());
+				}
+			}
+			return getMaxNanos();
+		}
+	}
+
+}
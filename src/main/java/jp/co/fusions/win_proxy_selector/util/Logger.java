@@ -1,5 +1,7 @@
 package jp.co.fusions.win_proxy_selector.util;
 
+import java.util.function.Supplier;
+
 /*****************************************************************************
  * Simple logging support for the framework. You need to add a logging listener
  * that needs to send the logging events to a backend.
@@ -36,9 +38,24 @@ public class Logger {
 
     public void log(Class<?> clazz, LogLevel loglevel, String msg, Object... params);
 
+    /*************************************************************************
+     * Checks if events of the given class and level are logged at all. The
+     * Logger does not build parameters or invoke log() for disabled levels.
+     * 
+     * @param clazz
+     *          the class that sends the log message.
+     * @param loglevel
+     *          the logging level.
+     * @return true if the event would be logged, the default is true.
+     ************************************************************************/
+
+    public default boolean isEnabled(Class<?> clazz, LogLevel loglevel) {
+      return true;
+    }
+
   }
 
-  private static LogBackEnd backend;
+  private static volatile LogBackEnd backend;
 
   /*************************************************************************
    * Gets the currently attached logging backend.
@@ -61,6 +78,128 @@ public class Logger {
     Logger.backend = backend;
   }
 
+  /*************************************************************************
+   * Checks if a message of the given class and level would be logged. Use
+   * this to guard building expensive messages.
+   * 
+   * @param clazz
+   *          the class that sends the log message.
+   * @param loglevel
+   *          the logging level.
+   * @return true if a backend is attached and accepts the level.
+   ************************************************************************/
+
+  public static boolean isEnabled(Class<?> clazz, LogLevel loglevel) {
+    LogBackEnd current = backend;
+    return current != null && current.isEnabled(clazz, loglevel);
+  }
+
+  /*************************************************************************
+   * Logs a message without parameters.
+   * 
+   * @param clazz
+   *          the class that sends the log message.
+   * @param loglevel
+   *          the logging level.
+   * @param msg
+   *          the message.
+   ************************************************************************/
+
+  public static void log(Class<?> clazz, LogLevel loglevel, String msg) {
+    LogBackEnd current = backend;
+    if (current != null && current.isEnabled(clazz, loglevel)) {
+      current.log(clazz, loglevel, msg);
+    }
+  }
+
+  /*************************************************************************
+   * Logs a message with one parameter.
+   * 
+   * @param clazz
+   *          the class that sends the log message.
+   * @param loglevel
+   *          the logging level.
+   * @param msg
+   *          the message format string.
+   * @param param
+   *          the message parameter for the format string.
+   ************************************************************************/
+
+  public static void log(Class<?> clazz, LogLevel loglevel, String msg, Object param) {
+    LogBackEnd current = backend;
+    if (current != null && current.isEnabled(clazz, loglevel)) {
+      current.log(clazz, loglevel, msg, param);
+    }
+  }
+
+  /*************************************************************************
+   * Logs a message with two parameters.
+   * 
+   * @param clazz
+   *          the class that sends the log message.
+   * @param loglevel
+   *          the logging level.
+   * @param msg
+   *          the message format string.
+   * @param param1
+   *          the first message parameter.
+   * @param param2
+   *          the second message parameter.
+   ************************************************************************/
+
+  public static void log(Class<?> clazz, LogLevel loglevel, String msg, Object param1, Object param2) {
+    LogBackEnd current = backend;
+    if (current != null && current.isEnabled(clazz, loglevel)) {
+      current.log(clazz, loglevel, msg, param1, param2);
+    }
+  }
+
+  /*************************************************************************
+   * Logs a message with three parameters.
+   * 
+   * @param clazz
+   *          the class that sends the log message.
+   * @param loglevel
+   *          the logging level.
+   * @param msg
+   *          the message format string.
+   * @param param1
+   *          the first message parameter.
+   * @param param2
+   *          the second message parameter.
+   * @param param3
+   *          the third message parameter.
+   ************************************************************************/
+
+  public static void log(Class<?> clazz, LogLevel loglevel, String msg, Object param1, Object param2,
+      Object param3) {
+    LogBackEnd current = backend;
+    if (current != null && current.isEnabled(clazz, loglevel)) {
+      current.log(clazz, loglevel, msg, param1, param2, param3);
+    }
+  }
+
+  /*************************************************************************
+   * Logs a message with a parameter that is expensive to build. The
+   * supplier is only invoked if the level is enabled.
+   * 
+   * @param clazz
+   *          the class that sends the log message.
+   * @param loglevel
+   *          the logging level.
+   * @param msg
+   *          the message format string.
+   * @param param
+   *          supplies the message parameter for the format string.
+   ************************************************************************/
+
+  public static void log(Class<?> clazz, LogLevel loglevel, String msg, Supplier<?> param) {
+    LogBackEnd current = backend;
+    if (current != null && current.isEnabled(clazz, loglevel)) {
+      current.log(clazz, loglevel, msg, param == null ? null : param.get());
+    }
+  }
+
   /*************************************************************************
    * Logs a message.
    * 
@@ -75,8 +214,9 @@ public class Logger {
    ************************************************************************/
 
   public static void log(Class<?> clazz, LogLevel loglevel, String msg, Object... params) {
-    if (backend != null) {
-      backend.log(clazz, loglevel, msg, params);
+    LogBackEnd current = backend;
+    if (current != null && current.isEnabled(clazz, loglevel)) {
+      current.log(clazz, loglevel, msg, params);
     }
   }
 
@@ -0,0 +1,162 @@
+package jp.co.fusions.win_proxy_selector.util;
+
+/*****************************************************************************
+ * Simple instrumentation support for the framework. The selectors report
+ * counters and timings to an attached backend, which forwards them to a
+ * metrics library. Without a backend nothing is measured, a disabled
+ * measurement costs one volatile read.<br>
+ *
+ * Timings are measured like this:
+ *
+ * <pre>
+ * long start = Metrics.start();
+ * ...
+ * Metrics.stop(Metrics.PAC_EVALUATION, start);
+ * </pre>
+ ****************************************************************************/
+
+public final class Metrics {
+
+	/**
+	 * Returned by start() if no backend is attached. System.nanoTime() can
+	 * return any value, start() never returns this one while measuring.
+	 */
+	public static final long NOT_STARTED = Long.MIN_VALUE;
+
+	/** Timer for reading the IE proxy configuration. */
+	public static final String WIN_IE_CONFIG_READ = "win.ieConfig.read";
+
+	/** Timer for reading the WinHttp proxy configuration. */
+	public static final String WIN_HTTP_CONFIG_READ = "win.winHttpConfig.read";
+
+	/** Timer for the WPAD detection of the PAC script URL. */
+	public static final String WIN_WPAD_DETECT = "win.wpad.detect";
+
+	/** Timer for downloading or reading a PAC script. */
+	public static final String PAC_DOWNLOAD = "pac.download";
+
+	/** Timer for loading a PAC script into a JavaScript engine. */
+	public static final String PAC_ENGINE_SETUP = "pac.engine.setup";
+
+	/** Timer for evaluating a PAC script for one URL. */
+	public static final String PAC_EVALUATION = "pac.evaluation";
+
+	/** Counter for decisions found in the PacDecisionCache. */
+	public static final String PAC_CACHE_HIT = "pac.cache.hit";
+
+	/** Counter for decisions not found in the PacDecisionCache. */
+	public static final String PAC_CACHE_MISS = "pac.cache.miss";
+
+	/** Timer for DNS lookups made by the PAC script functions. */
+	public static final String PAC_DNS_LOOKUP = "pac.dns.lookup";
+
+	/** Counter for URIs that bypass the proxy because of the bypass list. */
+	public static final String BYPASS_HIT = "bypass.hit";
+
+	/** Counter for URIs that are not in the bypass list. */
+	public static final String BYPASS_MISS = "bypass.miss";
+
+	/** Counter for proxies marked as failed by the fallback selector. */
+	public static final String FALLBACK_PROXY_FAILED = "fallback.proxyFailed";
+
+	/*****************************************************************************
+	 * Interface for a metrics backend that can be attached.
+	 ****************************************************************************/
+
+	public interface MetricsBackEnd {
+
+		/*************************************************************************
+		 * Invoked for every counted event.
+		 *
+		 * @param name
+		 *            the name of the counter.
+		 ************************************************************************/
+
+		public void increment(String name);
+
+		/*************************************************************************
+		 * Invoked for every timed operation.
+		 *
+		 * @param name
+		 *            the name of the timer.
+		 * @param nanos
+		 *            the duration in nanoseconds.
+		 ************************************************************************/
+
+		public void record(String name, long nanos);
+
+	}
+
+	private static volatile MetricsBackEnd backend;
+
+	private Metrics() {
+	}
+
+	/*************************************************************************
+	 * Gets the currently attached metrics backend.
+	 *
+	 * @return the backend, null if none is attached.
+	 ************************************************************************/
+
+	public static MetricsBackEnd getBackend() {
+		return backend;
+	}
+
+	/*************************************************************************
+	 * Attaches a new metrics backend replacing the existing one.
+	 *
+	 * @param backend
+	 *            the backend to set, null to stop measuring.
+	 ************************************************************************/
+
+	public static void setBackend(MetricsBackEnd backend) {
+		Metrics.backend = backend;
+	}
+
+	/*************************************************************************
+	 * Counts an event.
+	 *
+	 * @param name
+	 *            the name of the counter.
+	 ************************************************************************/
+
+	public static void increment(String name) {
+		MetricsBackEnd current = backend;
+		if (current != null) {
+			current.increment(name);
+		}
+	}
+
+	/*************************************************************************
+	 * Starts a timing.
+	 *
+	 * @return the start time to pass to stop(), NOT_STARTED if no backend is
+	 *         attached.
+	 ************************************************************************/
+
+	public static long start() {
+		if (backend == null) {
+			return NOT_STARTED;
+		}
+		long now = System.nanoTime();
+		return now == NOT_STARTED ? now + 1 : now;
+	}
+
+	/*************************************************************************
+	 * Ends a timing and records the duration. Nothing is recorded if no
+	 * backend was attached when the timing was started.
+	 *
+	 * @param name
+	 *            the name of the timer.
+	 * @param start
+	 *            the value returned by start().
+	 ************************************************************************/
+
+	public static void stop(String name, long start) {
+		MetricsBackEnd current = backend;
+		if (current != null && start != NOT_STARTED) {
+			current.record(name, System.nanoTime() - start);
+		}
+	}
+
+}
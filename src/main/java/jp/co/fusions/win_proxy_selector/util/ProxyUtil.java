@@ -2,10 +2,12 @@ package jp.co.fusions.win_proxy_selector.util;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.URL;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -124,6 +126,60 @@ public class ProxyUtil {
 		}
 		return hostOrIP;
 	}
+
+	/*************************************************************************
+	 * Parses an IPv4 or IPv6 address literal. Unlike InetAddress.getByName()
+	 * this never sends anything to the resolver.
+	 * 
+	 * @param hostOrIP
+	 *            a host name or IP literal, IPv6 literals may be in brackets.
+	 * @return the address, null if the given string is no IP literal.
+	 ************************************************************************/
+
+	public static InetAddress parseIpLiteral(String hostOrIP) {
+		String ip = cleanIPv6(hostOrIP);
+		if (ip == null || ip.length() == 0) {
+			return null;
+		}
+		try {
+			byte[] ipv4 = parseIpv4(ip);
+			if (ipv4 != null) {
+				return InetAddress.getByAddress(ipv4);
+			}
+			if (ip.indexOf(':') != -1) {
+				// The brackets make sure this is never sent to DNS.
+				return InetAddress.getByName("[" + ip + "]");
+			}
+		} catch (UnknownHostException e) {
+			// Not a valid literal.
+		}
+		return null;
+	}
+
+	private static byte[] parseIpv4(String ip) {
+		byte[] result = new byte[4];
+		int part = 0;
+		int value = -1;
+		for (int i = 0; i <= ip.length(); i++) {
+			char c = i < ip.length() ? ip.charAt(i) : '.';
+			if (c == '.') {
+				if (value == -1 || part == 4) {
+					return null;
+				}
+				result[part++] = (byte) value;
+				value = -1;
+			} else if (c >= '0' && c <= '9') {
+				value = (value == -1 ? 0 : value * 10) + (c - '0');
+				if (value > 255) {
+					return null;
+				}
+			} else {
+				return null;
+			}
+		}
+		return part == 4 ? result : null;
+	}
+
 	/*************************************************************************
 	 * Installs the proxy exclude list on the given selector.
 	 *
@@ -0,0 +1,83 @@
+package jp.co.fusions.win_proxy_selector.util;
+
+import java.text.MessageFormat;
+
+import org.slf4j.LoggerFactory;
+
+import jp.co.fusions.win_proxy_selector.util.Logger.LogBackEnd;
+import jp.co.fusions.win_proxy_selector.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Logging backend that forwards to SLF4J, using the class that logs as logger
+ * name. Levels are checked with SLF4J before a message is formatted, so
+ * disabled messages cost a level check only. Requires slf4j-api on the class
+ * path:
+ *
+ * <pre>
+ * Logger.setBackend(new Slf4jLogBackEnd());
+ * </pre>
+ ****************************************************************************/
+
+public class Slf4jLogBackEnd implements LogBackEnd {
+
+	/*************************************************************************
+	 * isEnabled
+	 *
+	 * @see LogBackEnd#isEnabled(java.lang.Class, LogLevel)
+	 ************************************************************************/
+
+	@Override
+	public boolean isEnabled(Class<?> clazz, LogLevel loglevel) {
+		org.slf4j.Logger logger = LoggerFactory.getLogger(clazz);
+		switch (loglevel) {
+		case ERROR:
+			return logger.isErrorEnabled();
+		case WARNING:
+			return logger.isWarnEnabled();
+		case INFO:
+			return logger.isInfoEnabled();
+		case TRACE:
+			return logger.isTraceEnabled();
+		default:
+			return logger.isDebugEnabled();
+		}
+	}
+
+	/*************************************************************************
+	 * log
+	 *
+	 * @see LogBackEnd#log(java.lang.Class, LogLevel, java.lang.String,
+	 *      java.lang.Object[])
+	 ************************************************************************/
+
+	@Override
+	public void log(Class<?> clazz, LogLevel loglevel, String msg, Object... params) {
+		if (!isEnabled(clazz, loglevel)) {
+			return;
+		}
+		org.slf4j.Logger logger = LoggerFactory.getLogger(clazz);
+		String message = params == null || params.length == 0 ? msg : MessageFormat.format(msg, params);
+		Throwable throwable = null;
+		if (params != null && params.length > 0 && params[params.length - 1] instanceof Throwable) {
+			throwable = (Throwable) params[params.length - 1];
+		}
+		switch (loglevel) {
+		case ERROR:
+			logger.error(message, throwable);
+			break;
+		case WARNING:
+			logger.warn(message, throwable);
+			break;
+		case INFO:
+			logger.info(message, throwable);
+			break;
+		case TRACE:
+			logger.trace(message, throwable);
+			break;
+		default:
+			logger.debug(message, throwable);
+			break;
+		}
+	}
+
+}
@@ -1,5 +1,7 @@
 package jp.co.fusions.win_proxy_selector.win;
 
+import java.util.Objects;
+
 /*****************************************************************************
  * Proxy settings container used for the native methods. Will contain the
  * Internet Explorer proxy settings as reported by windows WinHTTP API.
@@ -68,4 +70,22 @@ final class IEProxyConfig {
 		return this.proxyBypass;
 	}
 
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof IEProxyConfig)) {
+			return false;
+		}
+		IEProxyConfig other = (IEProxyConfig) obj;
+		return this.autoDetect == other.autoDetect && Objects.equals(this.autoConfigUrl, other.autoConfigUrl)
+			&& Objects.equals(this.proxy, other.proxy) && Objects.equals(this.proxyBypass, other.proxyBypass);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(this.autoDetect, this.autoConfigUrl, this.proxy, this.proxyBypass);
+	}
+
 }
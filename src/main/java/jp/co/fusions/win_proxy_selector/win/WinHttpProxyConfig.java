@@ -1,5 +1,7 @@
 package jp.co.fusions.win_proxy_selector.win;
 
+import java.util.Objects;
+
 final class WinHttpProxyConfig {
 
 	/*****************************************************************************
@@ -55,4 +57,22 @@ final class WinHttpProxyConfig {
 		return this.proxyBypass;
 	}
 
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof WinHttpProxyConfig)) {
+			return false;
+		}
+		WinHttpProxyConfig other = (WinHttpProxyConfig) obj;
+		return this.accessType == other.accessType && Objects.equals(this.proxy, other.proxy)
+			&& Objects.equals(this.proxyBypass, other.proxyBypass);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(this.accessType, this.proxy, this.proxyBypass);
+	}
+
 }
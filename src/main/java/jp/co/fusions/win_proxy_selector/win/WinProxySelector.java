@@ -6,12 +6,22 @@ import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import jp.co.fusions.win_proxy_selector.selector.misc.ListProxySelector;
 import jp.co.fusions.win_proxy_selector.selector.misc.ProtocolDispatchSelector;
+import jp.co.fusions.win_proxy_selector.util.AsyncProxySelection;
 import jp.co.fusions.win_proxy_selector.util.Logger;
 import jp.co.fusions.win_proxy_selector.util.Logger.LogLevel;
+import jp.co.fusions.win_proxy_selector.util.Metrics;
 import jp.co.fusions.win_proxy_selector.util.ProxyUtil;
 import jp.co.fusions.win_proxy_selector.win.jna.WinDef.DWORD;
 import jp.co.fusions.win_proxy_selector.win.jna.WinHttp;
@@ -31,53 +41,339 @@ import jp.co.fusions.win_proxy_selector.win.jna.WinHttpProxyInfo;
 
 public class WinProxySelector extends ProxySelector {
 
+	// Refreshes in a row in which WPAD finds no PAC URL before a previously
+	// detected one is dropped.
+	private static final int MAX_WPAD_MISSES = 3;
+
 	private final ProxySelector fallbackSelector;
-	private ProxySelector impl;
+	private final ProxySelector interimSelector;
+	private volatile ProxySelector impl;
+
+	// Serializes detection and building, which may take long. The monitor of
+	// this is only held to swap impl.
+	private final Object detectLock = new Object();
+
+	// The settings impl was built from, guarded by detectLock.
+	private DetectedSettings settings;
+	private int wpadMisses;
+	private Map<String, ProxySelector> pacSelectors = new HashMap<String, ProxySelector>();
+	// PAC selectors dropped by the last rebuild, kept warm in case they come back.
+	private Map<String, ProxySelector> retiredPacSelectors = new HashMap<String, ProxySelector>();
+	private ScheduledExecutorService refreshExecutor;
+
+	/*************************************************************************
+	 * Constructor. The Windows proxy settings are detected on the first call
+	 * to select(), which blocks until detection is done.
+	 *
+	 * @param fallbackSelector
+	 *            the selector used if no proxy settings are detected.
+	 ************************************************************************/
 
 	public WinProxySelector(ProxySelector fallbackSelector) {
 		this.fallbackSelector = fallbackSelector;
+		this.interimSelector = null;
+	}
+
+	/*************************************************************************
+	 * Constructor. Starts detecting the Windows proxy settings on a background
+	 * thread right away. Until this is done select() answers with the interim
+	 * selector instead of waiting for WPAD detection and the PAC download.
+	 *
+	 * @param fallbackSelector
+	 *            the selector used if no proxy settings are detected.
+	 * @param interimSelector
+	 *            the selector used while the settings are detected, e.g.
+	 *            the fallback selector or NoProxySelector for DIRECT.
+	 ************************************************************************/
+
+	public WinProxySelector(ProxySelector fallbackSelector, ProxySelector interimSelector) {
+		if (interimSelector == null) {
+			throw new IllegalArgumentException("interimSelector must not be null.");
+		}
+		this.fallbackSelector = fallbackSelector;
+		this.interimSelector = interimSelector;
+		Thread warmUp = new Thread(new Runnable() {
+			public void run() {
+				initialize();
+			}
+		}, "WinProxySelector-init");
+		warmUp.setDaemon(true);
+		warmUp.start();
 	}
 
 	@Override
 	public List<Proxy> select(URI uri) {
-		if (impl == null){
-			impl = createImpl();
+		ProxySelector current = impl;
+		if (current == null) {
+			if (interimSelector != null) {
+				return interimSelector.select(uri);
+			}
+			current = getImpl();
 		}
-		return impl.select(uri);
+		return current.select(uri);
+	}
+
+	/*************************************************************************
+	 * Selects the proxies for the given URI without blocking the calling
+	 * thread. Detecting the settings, downloading a PAC script and evaluating
+	 * it are done on the executor of AsyncProxySelection, which also defines
+	 * the timeout and the decision used if this takes too long.
+	 *
+	 * @param uri
+	 *            the URI to select the proxies for.
+	 * @return a future completed with the proxy list.
+	 ************************************************************************/
+
+	public CompletableFuture<List<Proxy>> selectAsync(URI uri) {
+		return AsyncProxySelection.selectAsync(this, uri);
 	}
 
 	@Override
 	public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
-		if (impl == null) return;
-		impl.connectFailed(uri, sa, ioe);
+		ProxySelector current = impl;
+		if (current == null) {
+			if (interimSelector != null) {
+				interimSelector.connectFailed(uri, sa, ioe);
+			}
+			return;
+		}
+		current.connectFailed(uri, sa, ioe);
 	}
 
-	private ProxySelector createImpl() {
+	/*************************************************************************
+	 * Checks if the Windows proxy settings have been detected.
+	 *
+	 * @return true if select() uses the detected settings.
+	 ************************************************************************/
 
-		Logger.log(getClass(), LogLevel.TRACE, "Detecting Windows proxy settings");
+	public boolean isInitialized() {
+		return impl != null;
+	}
 
+	/*************************************************************************
+	 * Re-reads the Windows proxy settings and swaps in a new selector chain if
+	 * they changed since the chain was built. With auto-detection enabled the
+	 * PAC URL found by WPAD is compared as well, it changes e.g. when a VPN
+	 * connects. PAC selectors of unchanged PAC URLs are reused, so their
+	 * scripts, engines and caches stay warm. select() keeps using the current
+	 * chain while the new one is built.<br>
+	 *
+	 * A PAC URL found by WPAD before is kept until WPAD finds nothing in a few
+	 * refreshes in a row, so a transient detection failure does not drop the
+	 * PAC selector.
+	 ************************************************************************/
 
-		List<ProxySelector> selectors = new ArrayList<>();
+	public void refresh() {
+		synchronized (detectLock) {
+			DetectedSettings newSettings = keepDetectedPacUrl(detectSettings());
+			if (impl != null && newSettings.equals(settings)) {
+				Logger.log(getClass(), LogLevel.TRACE, "Windows proxy settings unchanged.");
+				return;
+			}
+			Logger.log(getClass(), LogLevel.INFO, "Windows proxy settings changed, rebuilding proxy selector.");
+			ProxySelector newImpl = createImpl(newSettings);
+			synchronized (this) {
+				impl = newImpl;
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Starts to call refresh() periodically on a background thread, so changes
+	 * like a VPN connection or a new PAC URL are picked up without restart.
+	 * A refresh schedule started before is replaced.
+	 *
+	 * @param intervalMillis
+	 *            the delay between two refreshes in milliseconds.
+	 ************************************************************************/
+
+	public synchronized void startAutoRefresh(long intervalMillis) {
+		if (intervalMillis <= 0) {
+			throw new IllegalArgumentException("intervalMillis must be positive.");
+		}
+		stopAutoRefresh();
+		refreshExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "WinProxySelector-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refreshExecutor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					refresh();
+				} catch (Throwable e) {
+					// Keep the current chain and try again next time.
+					Logger.log(WinProxySelector.class, LogLevel.ERROR, "Refreshing Windows proxy settings failed.", e);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/*************************************************************************
+	 * Stops the periodic refresh started with startAutoRefresh().
+	 ************************************************************************/
+
+	public synchronized void stopAutoRefresh() {
+		if (refreshExecutor != null) {
+			refreshExecutor.shutdownNow();
+			refreshExecutor = null;
+		}
+	}
 
+	private ProxySelector getImpl() {
+		synchronized (detectLock) {
+			if (impl == null) {
+				ProxySelector newImpl = createImpl(detectSettings());
+				synchronized (this) {
+					if (impl == null) {
+						impl = newImpl;
+					}
+				}
+			}
+			return impl;
+		}
+	}
+
+	/*************************************************************************
+	 * Reads the IE and WinHttp proxy configuration and, if auto-detection is
+	 * enabled, detects the PAC URL with WPAD. Must be called with detectLock
+	 * held.
+	 *
+	 * @return the detected settings.
+	 ************************************************************************/
+
+	private DetectedSettings detectSettings() {
 		IEProxyConfig ieProxyConfig = readIEProxyConfig();
+		String autoDetectedPacUrl = null;
+		if (ieProxyConfig == null || !ieProxyConfig.isAutoDetect()) {
+			Logger.log(getClass(), LogLevel.TRACE, "Auto-detecting not requested.");
+		} else {
+			Logger.log(getClass(), LogLevel.TRACE, "Auto-detecting script URL.");
+			// This will take some time.
+			DWORD dwAutoDetectFlags = new DWORD(WinHttp.WINHTTP_AUTO_DETECT_TYPE_DHCP | WinHttp.WINHTTP_AUTO_DETECT_TYPE_DNS_A);
+			long start = Metrics.start();
+			autoDetectedPacUrl = WinHttpHelpers.detectAutoProxyConfigUrl(dwAutoDetectFlags);
+			Metrics.stop(Metrics.WIN_WPAD_DETECT, start);
+		}
+		return new DetectedSettings(ieProxyConfig, readWinHttpProxyConfig(), autoDetectedPacUrl);
+	}
+
+	/*************************************************************************
+	 * Replaces a missing WPAD result with the PAC URL detected before, unless
+	 * WPAD found nothing too often in a row. Must be called with detectLock
+	 * held.
+	 *
+	 * @param newSettings
+	 *            the detected settings.
+	 * @return the settings to build the chain from.
+	 ************************************************************************/
+
+	private DetectedSettings keepDetectedPacUrl(DetectedSettings newSettings) {
+		IEProxyConfig ieProxyConfig = newSettings.ieProxyConfig;
+		boolean autoDetect = ieProxyConfig != null && ieProxyConfig.isAutoDetect();
+		if (!autoDetect || newSettings.autoDetectedPacUrl != null || settings == null
+			|| settings.autoDetectedPacUrl == null) {
+			wpadMisses = 0;
+			return newSettings;
+		}
+		wpadMisses++;
+		if (wpadMisses >= MAX_WPAD_MISSES) {
+			Logger.log(getClass(), LogLevel.INFO, "WPAD found no PAC URL {0} times in a row, dropping {1}",
+				wpadMisses, settings.autoDetectedPacUrl);
+			wpadMisses = 0;
+			return newSettings;
+		}
+		Logger.log(getClass(), LogLevel.DEBUG, "WPAD found no PAC URL, keeping {0}", settings.autoDetectedPacUrl);
+		return new DetectedSettings(ieProxyConfig, newSettings.winHttpProxyConfig, settings.autoDetectedPacUrl);
+	}
+
+	private void initialize() {
+		try {
+			getImpl();
+			Logger.log(getClass(), LogLevel.TRACE, "Windows proxy settings detected in background.");
+		} catch (Throwable e) {
+			// Do not stay on the interim answer forever.
+			Logger.log(getClass(), LogLevel.ERROR, "Detecting Windows proxy settings failed.", e);
+			synchronized (this) {
+				if (impl == null) {
+					impl = new ListProxySelector(new ArrayList<ProxySelector>(), fallbackSelector);
+				}
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Builds the selector chain for the given settings. Must be called with
+	 * detectLock held.
+	 *
+	 * @param newSettings
+	 *            the detected settings.
+	 * @return the new selector chain.
+	 ************************************************************************/
+
+	private ProxySelector createImpl(DetectedSettings newSettings) {
+
+		Logger.log(getClass(), LogLevel.TRACE, "Detecting Windows proxy settings");
+
+		IEProxyConfig ieProxyConfig = newSettings.ieProxyConfig;
+		WinHttpProxyConfig winHttpProxyConfig = newSettings.winHttpProxyConfig;
+		List<ProxySelector> selectors = new ArrayList<>();
+		Map<String, ProxySelector> newPacSelectors = new HashMap<String, ProxySelector>();
+
 		if (ieProxyConfig == null) {
 			Logger.log(getClass(), LogLevel.TRACE, "ieProxyConfig is null.");
 		} else {
-			addIfNotNull(selectors, createAutoDetectableProxySelectors(ieProxyConfig));
-			addIfNotNull(selectors, createAutoConfigProxySelectors(ieProxyConfig));
+			addIfNotNull(selectors, createAutoDetectableProxySelectors(newSettings.autoDetectedPacUrl, newPacSelectors));
+			addIfNotNull(selectors, createAutoConfigProxySelectors(ieProxyConfig, newPacSelectors));
 			addIfNotNull(selectors, createFixedProxySelector(ieProxyConfig));
 		}
 
-		WinHttpProxyConfig winHttpProxyConfig = readWinHttpProxyConfig();
 		if (winHttpProxyConfig == null) {
 			Logger.log(getClass(), LogLevel.TRACE, "winHttpProxyConfig is null.");
 		} else {
 			addIfNotNull(selectors, createWinHttpProxySelector(winHttpProxyConfig));
 		}
 
+		Map<String, ProxySelector> dropped = new HashMap<String, ProxySelector>(pacSelectors);
+		dropped.keySet().removeAll(newPacSelectors.keySet());
+		this.settings = newSettings;
+		this.pacSelectors = newPacSelectors;
+		this.retiredPacSelectors = dropped;
 		return new ListProxySelector(selectors, fallbackSelector);
 	}
 
+	/*************************************************************************
+	 * Gets the PAC selector for the given URL, reusing the one of the current
+	 * chain or the one dropped by the last rebuild if there is one.
+	 *
+	 * @param pacUrl
+	 *            the URL of the PAC script.
+	 * @param newPacSelectors
+	 *            collects the PAC selectors of the chain being built.
+	 * @return the selector, null if the script could not be loaded.
+	 ************************************************************************/
+
+	private ProxySelector getPacSelector(String pacUrl, Map<String, ProxySelector> newPacSelectors) {
+		ProxySelector selector = newPacSelectors.get(pacUrl);
+		if (selector == null) {
+			selector = pacSelectors.get(pacUrl);
+		}
+		if (selector == null) {
+			selector = retiredPacSelectors.get(pacUrl);
+		}
+		if (selector == null) {
+			selector = ProxyUtil.buildPacSelectorForUrl(pacUrl);
+		} else {
+			Logger.log(getClass(), LogLevel.TRACE, "Reusing PAC selector for {0}", pacUrl);
+		}
+		if (selector != null) {
+			newPacSelectors.put(pacUrl, selector);
+		}
+		return selector;
+	}
+
 	private void addIfNotNull(List<ProxySelector> l, ProxySelector selector) {
 		if (selector == null) return;
 		l.add(selector);
@@ -93,7 +389,9 @@ public class WinProxySelector extends ProxySelector {
 
 		// Retrieve the IE proxy configuration.
 		WinHttpCurrentUserIEProxyConfig winHttpCurrentUserIeProxyConfig = new WinHttpCurrentUserIEProxyConfig();
+		long start = Metrics.start();
 		boolean successful = WinHttp.INSTANCE.WinHttpGetIEProxyConfigForCurrentUser(winHttpCurrentUserIeProxyConfig);
+		Metrics.stop(Metrics.WIN_IE_CONFIG_READ, start);
 		if (!successful) {
 			return null;
 		}
@@ -113,7 +411,9 @@ public class WinProxySelector extends ProxySelector {
 
 		// Retrieve the WinHttp proxy configuration.
 		WinHttpProxyInfo winHttpProxyInfo = new WinHttpProxyInfo();
+		long start = Metrics.start();
 		boolean successful = WinHttp.INSTANCE.WinHttpGetDefaultProxyConfiguration(winHttpProxyInfo);
+		Metrics.stop(Metrics.WIN_HTTP_CONFIG_READ, start);
 		if (!successful) {
 			return null;
 		}
@@ -125,17 +425,8 @@ public class WinProxySelector extends ProxySelector {
 			winHttpProxyInfo.lpszProxyBypass != null ? winHttpProxyInfo.lpszProxyBypass.getValue() : null);
 	}
 
-	private ProxySelector createAutoDetectableProxySelectors(IEProxyConfig ieProxyConfig) {
-
-		if (!ieProxyConfig.isAutoDetect()) {
-			Logger.log(getClass(), LogLevel.TRACE, "Auto-detecting not requested.");
-			return null;
-		}
-
-		Logger.log(getClass(), LogLevel.TRACE, "Auto-detecting script URL.");
-		// This will take some time.
-		DWORD dwAutoDetectFlags = new DWORD(WinHttp.WINHTTP_AUTO_DETECT_TYPE_DHCP | WinHttp.WINHTTP_AUTO_DETECT_TYPE_DNS_A);
-		String pacUrl = WinHttpHelpers.detectAutoProxyConfigUrl(dwAutoDetectFlags);
+	private ProxySelector createAutoDetectableProxySelectors(String pacUrl,
+		Map<String, ProxySelector> newPacSelectors) {
 
 		if (pacUrl == null) {
 			Logger.log(getClass(), LogLevel.TRACE, "PAC url not auto-detectable.");
@@ -144,11 +435,12 @@ public class WinProxySelector extends ProxySelector {
 		Logger.log(getClass(), LogLevel.INFO, "IE uses script: " + pacUrl);
 
 		Logger.log(getClass(), LogLevel.TRACE, "Created Auto-detecting proxy selector.");
-		return ProxyUtil.buildPacSelectorForUrl(pacUrl);
+		return getPacSelector(pacUrl, newPacSelectors);
 
 	}
 
-	private ProxySelector createAutoConfigProxySelectors(IEProxyConfig ieProxyConfig) {
+	private ProxySelector createAutoConfigProxySelectors(IEProxyConfig ieProxyConfig,
+		Map<String, ProxySelector> newPacSelectors) {
 
 		String pacUrl = ieProxyConfig.getAutoConfigUrl();
 		if (pacUrl == null || pacUrl.trim().length() == 0) {
@@ -166,7 +458,7 @@ public class WinProxySelector extends ProxySelector {
 		}
 
 		Logger.log(getClass(), LogLevel.TRACE, "Created Auto-config proxy selector.");
-		return ProxyUtil.buildPacSelectorForUrl(pacUrl);
+		return getPacSelector(pacUrl, newPacSelectors);
 	}
 
 
@@ -212,4 +504,37 @@ public class WinProxySelector extends ProxySelector {
 
 		return ProxyUtil.setByPassListOnSelector(bypassList, ps);
 	}
+
+	/*****************************************************************************
+	 * The Windows proxy settings a selector chain is built from.
+	 ****************************************************************************/
+
+	private static final class DetectedSettings {
+		final IEProxyConfig ieProxyConfig;
+		final WinHttpProxyConfig winHttpProxyConfig;
+		final String autoDetectedPacUrl;
+
+		DetectedSettings(IEProxyConfig ieProxyConfig, WinHttpProxyConfig winHttpProxyConfig,
+			String autoDetectedPacUrl) {
+			this.ieProxyConfig = ieProxyConfig;
+			this.winHttpProxyConfig = winHttpProxyConfig;
+			this.autoDetectedPacUrl = autoDetectedPacUrl;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof DetectedSettings)) {
+				return false;
+			}
+			DetectedSettings other = (DetectedSettings) obj;
+			return Objects.equals(ieProxyConfig, other.ieProxyConfig)
+				&& Objects.equals(winHttpProxyConfig, other.winHttpProxyConfig)
+				&& Objects.equals(autoDetectedPacUrl, other.autoDetectedPacUrl);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(ieProxyConfig, winHttpProxyConfig, autoDetectedPacUrl);
+		}
+	}
 }
@@ -0,0 +1,150 @@
+package jp.co.fusions.win_proxy_selector.selector.misc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import jp.co.fusions.win_proxy_selector.TestUtil;
+
+/*****************************************************************************
+ * Unit tests for the LatencyOrderingSelector
+ ****************************************************************************/
+
+public class LatencyOrderingSelectorTest {
+
+	private List<Proxy> proxies;
+	private LatencyOrderingSelector selector;
+
+	/*************************************************************************
+	 * Setup before tests.
+	 ************************************************************************/
+	@Before
+	public void setup() {
+		this.proxies = Arrays.asList(TestUtil.HTTP_TEST_PROXY, TestUtil.HTTPS_TEST_PROXY,
+		        TestUtil.FTP_TEST_PROXY, Proxy.NO_PROXY, TestUtil.SOCKS_TEST_PROXY);
+		this.selector = new LatencyOrderingSelector(new ProxySelector() {
+			@Override
+			public List<Proxy> select(URI uri) {
+				return LatencyOrderingSelectorTest.this.proxies;
+			}
+
+			@Override
+			public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+				// Not used on the delegate
+			}
+		});
+		this.selector.setExplorationInterval(0);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testUnmeasuredListIsUnchanged() {
+		assertSame(this.proxies, this.selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testFastestProxyFirst() {
+		report(TestUtil.HTTP_TEST_PROXY, 300);
+		report(TestUtil.FTP_TEST_PROXY, 20);
+		report(TestUtil.SOCKS_TEST_PROXY, 1);
+
+		List<Proxy> result = this.selector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(Arrays.asList(TestUtil.FTP_TEST_PROXY, TestUtil.HTTPS_TEST_PROXY,
+		        TestUtil.HTTP_TEST_PROXY, Proxy.NO_PROXY, TestUtil.SOCKS_TEST_PROXY), result);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testOrderedListIsUnchanged() {
+		report(TestUtil.HTTP_TEST_PROXY, 10);
+		report(TestUtil.FTP_TEST_PROXY, 20);
+		assertSame(this.proxies, this.selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testUnmeasuredProxyIsExplored() {
+		report(TestUtil.HTTP_TEST_PROXY, 10);
+		report(TestUtil.FTP_TEST_PROXY, 20);
+		this.selector.setExplorationInterval(1);
+
+		List<Proxy> result = this.selector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(Arrays.asList(TestUtil.HTTPS_TEST_PROXY, TestUtil.HTTP_TEST_PROXY,
+		        TestUtil.FTP_TEST_PROXY, Proxy.NO_PROXY, TestUtil.SOCKS_TEST_PROXY), result);
+
+		report(TestUtil.HTTPS_TEST_PROXY, 15);
+		assertSame(this.proxies, this.selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testMissingAnswerIsPassedThrough() {
+		report(TestUtil.HTTP_TEST_PROXY, 10);
+		this.proxies = null;
+		assertNull(this.selector.select(TestUtil.HTTP_TEST_URI));
+
+		this.proxies = Collections.emptyList();
+		assertSame(this.proxies, this.selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testMovingAverage() {
+		report(TestUtil.HTTP_TEST_PROXY, 100);
+		report(TestUtil.HTTP_TEST_PROXY, 200);
+		assertEquals(130, this.selector.getAverageLatencyMs(TestUtil.HTTP_TEST_PROXY.address()), 0.001);
+		assertEquals(-1, this.selector.getAverageLatencyMs(TestUtil.HTTPS_TEST_PROXY.address()), 0.001);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws InterruptedException
+	 *             if the test wait period was interrupted
+	 ************************************************************************/
+	@Test
+	public void testOldAndFailedMeasurementsAreIgnored() throws InterruptedException {
+		report(TestUtil.HTTP_TEST_PROXY, 300);
+		report(TestUtil.HTTPS_TEST_PROXY, 10);
+		assertEquals(TestUtil.HTTPS_TEST_PROXY, this.selector.select(TestUtil.HTTP_TEST_URI).get(0));
+
+		this.selector.connectFailed(TestUtil.HTTP_TEST_URI, TestUtil.HTTPS_TEST_PROXY.address(),
+		        new IOException("TEST"));
+		assertSame(this.proxies, this.selector.select(TestUtil.HTTP_TEST_URI));
+
+		report(TestUtil.HTTPS_TEST_PROXY, 10);
+		this.selector.setMaxSampleAgeMs(50);
+		Thread.sleep(100);
+		assertSame(this.proxies, this.selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	private void report(Proxy proxy, long latencyMs) {
+		this.selector.connectSucceeded(TestUtil.HTTP_TEST_URI, proxy.address(), latencyMs);
+	}
+
+}
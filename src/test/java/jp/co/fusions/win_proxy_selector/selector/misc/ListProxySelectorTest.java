@@ -0,0 +1,164 @@
+package jp.co.fusions.win_proxy_selector.selector.misc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import jp.co.fusions.win_proxy_selector.TestUtil;
+import jp.co.fusions.win_proxy_selector.selector.fixed.FixedProxySelector;
+
+/*****************************************************************************
+ * Unit tests for the ListProxySelector
+ ****************************************************************************/
+
+public class ListProxySelectorTest {
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void answersShouldBeMergedWithoutDuplicates() {
+		List<ProxySelector> selectors = new ArrayList<ProxySelector>();
+		selectors.add(new FixedProxySelector(TestUtil.HTTP_TEST_PROXY));
+		selectors.add(new ChangingSelector(Arrays.asList(TestUtil.HTTPS_TEST_PROXY, TestUtil.HTTP_TEST_PROXY)));
+		ListProxySelector selector = new ListProxySelector(selectors, new FixedProxySelector(TestUtil.FTP_TEST_PROXY));
+
+		assertEquals(Arrays.asList(TestUtil.HTTP_TEST_PROXY, TestUtil.HTTPS_TEST_PROXY, Proxy.NO_PROXY),
+			selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void fallbackShouldBeUsedWithoutAnswers() {
+		List<ProxySelector> selectors = new ArrayList<ProxySelector>();
+		selectors.add(new ChangingSelector(null));
+		ListProxySelector selector = new ListProxySelector(selectors, new FixedProxySelector(TestUtil.FTP_TEST_PROXY));
+
+		assertEquals(Arrays.asList(TestUtil.FTP_TEST_PROXY, Proxy.NO_PROXY), selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void stableAnswersShouldReuseTheMergedList() {
+		ChangingSelector changing = new ChangingSelector(Collections.singletonList(TestUtil.HTTP_TEST_PROXY));
+		List<ProxySelector> selectors = new ArrayList<ProxySelector>();
+		selectors.add(new FixedProxySelector(TestUtil.SOCKS_TEST_PROXY));
+		selectors.add(changing);
+		ListProxySelector selector = new ListProxySelector(selectors, null);
+
+		List<Proxy> first = selector.select(TestUtil.HTTP_TEST_URI);
+		assertSame(first, selector.select(TestUtil.HTTP_TEST_URI));
+
+		// An equal answer in a new list is recognized as well.
+		changing.answer = new ArrayList<Proxy>(changing.answer);
+		assertSame(first, selector.select(TestUtil.HTTP_TEST_URI));
+
+		changing.answer = Collections.singletonList(TestUtil.HTTPS_TEST_PROXY);
+		assertEquals(Arrays.asList(TestUtil.SOCKS_TEST_PROXY, TestUtil.HTTPS_TEST_PROXY, Proxy.NO_PROXY),
+			selector.select(TestUtil.HTTP_TEST_URI));
+
+		changing.answer = Collections.singletonList(TestUtil.HTTP_TEST_PROXY);
+		assertSame(first, selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void changesInAReusedListShouldBeSeen() {
+		List<Proxy> reused = new ArrayList<Proxy>();
+		reused.add(TestUtil.HTTP_TEST_PROXY);
+		List<ProxySelector> selectors = new ArrayList<ProxySelector>();
+		selectors.add(new ChangingSelector(reused));
+		ListProxySelector selector = new ListProxySelector(selectors, null);
+
+		assertEquals(Arrays.asList(TestUtil.HTTP_TEST_PROXY, Proxy.NO_PROXY), selector.select(TestUtil.HTTP_TEST_URI));
+
+		reused.set(0, TestUtil.HTTPS_TEST_PROXY);
+		assertEquals(Arrays.asList(TestUtil.HTTPS_TEST_PROXY, Proxy.NO_PROXY), selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void childCallingBackShouldNotChangeTheAnswers() {
+		final List<ProxySelector> selectors = new ArrayList<ProxySelector>();
+		final ListProxySelector[] outer = new ListProxySelector[1];
+		selectors.add(new FixedProxySelector(TestUtil.HTTP_TEST_PROXY));
+		selectors.add(new ChangingSelector(null) {
+			private boolean nested;
+
+			@Override
+			public List<Proxy> select(URI uri) {
+				if (this.nested) {
+					return Collections.singletonList(TestUtil.SOCKS_TEST_PROXY);
+				}
+				this.nested = true;
+				try {
+					outer[0].select(uri);
+				} finally {
+					this.nested = false;
+				}
+				return Collections.singletonList(TestUtil.HTTPS_TEST_PROXY);
+			}
+		});
+		outer[0] = new ListProxySelector(selectors, null);
+
+		outer[0].select(TestUtil.HTTP_TEST_URI);
+		assertEquals(Arrays.asList(TestUtil.HTTP_TEST_PROXY, TestUtil.HTTPS_TEST_PROXY, Proxy.NO_PROXY),
+			outer[0].select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void laterChangesOfTheSelectorListShouldBeIgnored() {
+		List<ProxySelector> selectors = new ArrayList<ProxySelector>();
+		selectors.add(new FixedProxySelector(TestUtil.HTTP_TEST_PROXY));
+		selectors.add(new FixedProxySelector(TestUtil.HTTPS_TEST_PROXY));
+		ListProxySelector selector = new ListProxySelector(selectors, null);
+		List<Proxy> first = selector.select(TestUtil.HTTP_TEST_URI);
+
+		selectors.remove(1);
+		assertSame(first, selector.select(TestUtil.HTTP_TEST_URI));
+		selectors.add(new FixedProxySelector(TestUtil.FTP_TEST_PROXY));
+		selectors.add(new FixedProxySelector(TestUtil.SOCKS_TEST_PROXY));
+		assertSame(first, selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	private static class ChangingSelector extends ProxySelector {
+		volatile List<Proxy> answer;
+
+		ChangingSelector(List<Proxy> answer) {
+			this.answer = answer;
+		}
+
+		@Override
+		public List<Proxy> select(URI uri) {
+			return this.answer;
+		}
+
+		@Override
+		public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+			// Not used
+		}
+	}
+
+}
@@ -1,14 +1,19 @@
 package jp.co.fusions.win_proxy_selector.selector.misc;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -92,6 +97,62 @@ public class ProxyListFallbackSelectorTest {
         assertEquals(TestUtil.HTTPS_TEST_PROXY, result.get(1));
     }
 
+    /*************************************************************************
+     * Test method
+     ************************************************************************/
+    @Test
+    public void testFilteredListIsReused() {
+        this.selector.connectFailed(TestUtil.HTTP_TEST_URI, TestUtil.HTTP_TEST_PROXY.address(),
+                new IOException("TEST"));
+
+        List<Proxy> result = this.selector.select(TestUtil.HTTP_TEST_URI);
+        assertSame(result, this.selector.select(TestUtil.HTTP_TEST_URI));
+
+        this.selector.connectFailed(TestUtil.HTTPS_TEST_URI, TestUtil.HTTPS_TEST_PROXY.address(),
+                new IOException("TEST"));
+        result = this.selector.select(TestUtil.HTTP_TEST_URI);
+        assertEquals(1, result.size());
+        assertEquals(Proxy.NO_PROXY, result.get(0));
+    }
+
+    /*************************************************************************
+     * Test method
+     * 
+     * @throws InterruptedException
+     *             if the test wait period was interrupted
+     ************************************************************************/
+    @Test
+    public void testHalfOpenProxyGetsLimitedTrials() throws InterruptedException {
+        this.selector.setRetryAfterMs(50);
+        this.selector.connectFailed(TestUtil.HTTP_TEST_URI, TestUtil.HTTP_TEST_PROXY.address(),
+                new IOException("TEST"));
+        // Late failures of requests started before do not extend the delay.
+        this.selector.connectFailed(TestUtil.HTTP_TEST_URI, TestUtil.HTTP_TEST_PROXY.address(),
+                new IOException("TEST"));
+        assertEquals(1, this.selector.select(TestUtil.HTTP_TEST_URI).size());
+
+        Thread.sleep(150);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(2, this.selector.select(TestUtil.HTTP_TEST_URI).size());
+        }
+        List<Proxy> result = this.selector.select(TestUtil.HTTP_TEST_URI);
+        assertEquals(1, result.size());
+        assertEquals(TestUtil.HTTPS_TEST_PROXY, result.get(0));
+    }
+
+    /*************************************************************************
+     * Test method
+     ************************************************************************/
+    @Test
+    public void testBackoffGrowsWithFailureScore() {
+        ProxyListFallbackSelector.Health health = this.selector.new Health(TestUtil.HTTP_TEST_PROXY.address());
+        long single = health.backoffMillis(1);
+        assertTrue(single >= 4000 && single <= 6000);
+        long third = health.backoffMillis(3);
+        assertTrue(third >= 16000 && third <= 24000);
+        assertEquals(1000 * 60 * 10, health.backoffMillis(100));
+    }
+
     /*************************************************************************
      * Test method
      * 
@@ -122,4 +183,58 @@ public class ProxyListFallbackSelectorTest {
         assertEquals(TestUtil.HTTPS_TEST_PROXY, result.get(1));
     }
 
+    /*************************************************************************
+     * Test method
+     ************************************************************************/
+    @Test
+    public void testChangesInAReusedListAreSeen() {
+        final List<Proxy> reused = new ArrayList<Proxy>(
+                Arrays.asList(TestUtil.HTTP_TEST_PROXY, TestUtil.HTTPS_TEST_PROXY));
+        ProxyListFallbackSelector selector = new ProxyListFallbackSelector(new ProxySelector() {
+            @Override
+            public List<Proxy> select(URI uri) {
+                return reused;
+            }
+
+            @Override
+            public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+                // Not used on the delegate
+            }
+        });
+        selector.connectFailed(TestUtil.HTTP_TEST_URI, TestUtil.HTTP_TEST_PROXY.address(),
+                new IOException("TEST"));
+        assertEquals(Arrays.asList(TestUtil.HTTPS_TEST_PROXY), selector.select(TestUtil.HTTP_TEST_URI));
+
+        reused.set(1, TestUtil.FTP_TEST_PROXY);
+        assertEquals(Arrays.asList(TestUtil.FTP_TEST_PROXY), selector.select(TestUtil.HTTP_TEST_URI));
+    }
+
+    /*************************************************************************
+     * Test method
+     ************************************************************************/
+    @Test
+    public void testRestoredProxyIsForgotten() {
+        this.selector.connectFailed(TestUtil.HTTP_TEST_URI, TestUtil.HTTP_TEST_PROXY.address(),
+                new IOException("TEST"));
+        ProxyListFallbackSelector.Health health = this.selector.getHealth(TestUtil.HTTP_TEST_PROXY.address());
+
+        // Half-open after the backoff, restored after the trial period.
+        long now = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        health.sweep(now);
+        now += TimeUnit.SECONDS.toNanos(11);
+        health.sweep(now);
+        assertEquals(2, this.selector.select(TestUtil.HTTP_TEST_URI).size());
+
+        // The record is kept while the failure score matters.
+        health.sweep(now + TimeUnit.MINUTES.toNanos(1));
+        assertSame(health, this.selector.getHealth(TestUtil.HTTP_TEST_PROXY.address()));
+        health.sweep(now + TimeUnit.MINUTES.toNanos(10));
+        assertNull(this.selector.getHealth(TestUtil.HTTP_TEST_PROXY.address()));
+
+        // A new failure creates a new record.
+        this.selector.connectFailed(TestUtil.HTTP_TEST_URI, TestUtil.HTTP_TEST_PROXY.address(),
+                new IOException("TEST"));
+        assertEquals(1, this.selector.select(TestUtil.HTTP_TEST_URI).size());
+    }
+
 }
@@ -0,0 +1,155 @@
+package jp.co.fusions.win_proxy_selector.selector.pac;
+
+import java.io.File;
+import java.net.MalformedURLException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import jp.co.fusions.win_proxy_selector.TestUtil;
+
+/*****************************************************************************
+ * Tests for the PAC parser compiling scripts to Java.
+ ****************************************************************************/
+
+public class JavaPacScriptParserTest {
+
+  /*************************************************************************
+   * Test method
+   *
+   * @throws ProxyEvaluationException
+   *           on proxy detection error.
+   * @throws MalformedURLException
+   *           on URL erros
+   ************************************************************************/
+  @Test
+  public void simpleScriptsShouldBeCompiled() throws ProxyEvaluationException, MalformedURLException {
+    JavaPacScriptParser p = new JavaPacScriptParser(new UrlPacScriptSource(toUrl("test1.pac")), 1);
+    Assert.assertEquals("PROXY http_proxy.unit-test.invalid:8090",
+        p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+    Assert.assertTrue(p.isCompiled());
+    Assert.assertNull(p.getEnginePool());
+
+    p = new JavaPacScriptParser(new UrlPacScriptSource(toUrl("test2.pac")), 1);
+    Assert.assertEquals("DIRECT", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+    Assert.assertTrue(p.isCompiled());
+  }
+
+  /*************************************************************************
+   * Test method
+   *
+   * @throws ProxyEvaluationException
+   *           on proxy detection error.
+   * @throws MalformedURLException
+   *           on URL erros
+   ************************************************************************/
+  @Test
+  public void methodsShouldReturnJsTypes() throws ProxyEvaluationException, MalformedURLException {
+    JavaPacScriptParser p = new JavaPacScriptParser(new UrlPacScriptSource(toUrl("testReturnTypes.pac")), 1);
+    Assert.assertEquals("number boolean string",
+        p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+    Assert.assertTrue(p.isCompiled());
+  }
+
+  /*************************************************************************
+   * Test method
+   *
+   * @throws ProxyEvaluationException
+   *           on proxy detection error.
+   ************************************************************************/
+  @Test
+  public void compiledScriptShouldFollowJavaScriptSemantics() throws ProxyEvaluationException {
+    JavaPacScriptParser p = new JavaPacScriptParser(new StringSource(
+        "// Proxy configuration\n"
+      + "var proxy = 'PROXY proxy.' + \"corp\" + ':' + (8000 + 80);\n"
+      + "function FindProxyForURL(url, host) {\n"
+      + "  host = host.toLowerCase()\n"
+      + "  if (isPlainHostName(host) || dnsDomainIs(host, '.intranet')) return 'DIRECT';\n"
+      + "  if (shExpMatch(host, '*.example.com')) {\n"
+      + "    scheme = url.substring(0, url.indexOf(':'));\n"
+      + "    return scheme == 'https' ? 'PROXY secure:443' : proxy;\n"
+      + "  } else if (host.length == '5' && !(host === 'local')) {\n"
+      + "    return 'SOCKS ' + host + ':' + dnsDomainLevels(host);\n"
+      + "  }\n"
+      + "  var scheme;\n"
+      + "  return (null || undefined) == null && 0 < '1' ? proxy + '; DIRECT' : 'DIRECT';\n"
+      + "}\n"), 1);
+    Assert.assertEquals("DIRECT", p.evaluate("http://Server/", "Server"));
+    Assert.assertEquals("DIRECT", p.evaluate("http://a.b.intranet/", "a.b.Intranet"));
+    Assert.assertEquals("PROXY secure:443", p.evaluate("https://www.example.com/", "www.example.com"));
+    Assert.assertEquals("PROXY proxy.corp:8080", p.evaluate("http://www.example.com/", "www.example.com"));
+    Assert.assertEquals("SOCKS ab.cd:1", p.evaluate("http://ab.cd/", "ab.cd"));
+    Assert.assertEquals("PROXY proxy.corp:8080; DIRECT", p.evaluate("http://other.org/", "other.org"));
+    Assert.assertTrue(p.isCompiled());
+  }
+
+  /*************************************************************************
+   * Test method
+   *
+   * @throws ProxyEvaluationException
+   *           on proxy detection error.
+   * @throws MalformedURLException
+   *           on URL erros
+   ************************************************************************/
+  @Test
+  public void unsupportedScriptsShouldUseJavaScriptEngine() throws ProxyEvaluationException, MalformedURLException {
+    JavaPacScriptParser p = new JavaPacScriptParser(new UrlPacScriptSource(toUrl("testWeekDay.pac")), 1);
+    Assert.assertEquals("DIRECT", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+    Assert.assertFalse(p.isCompiled());
+    Assert.assertNotNull(p.getEnginePool());
+
+    p = new JavaPacScriptParser(new StringSource(
+        "function FindProxyForURL(url, host) { return 'PROXY p:' + (host.length - 0.5); }"), 1);
+    Assert.assertTrue(p.isCompiled());
+    // The number formatting is left to the JavaScript engine.
+    Assert.assertEquals("PROXY p:4.5", p.evaluate("http://abcde/", "abcde"));
+  }
+
+  /*************************************************************************
+   * Test method
+   *
+   * @throws ProxyEvaluationException
+   *           on proxy detection error.
+   * @throws MalformedURLException
+   *           on URL erros
+   ************************************************************************/
+  @Test(expected = Exception.class)
+  public void shouldNotExecuteCodeInPac() throws ProxyEvaluationException, MalformedURLException {
+    PacScriptParser p = new JavaPacScriptParser(new UrlPacScriptSource(toUrl("testRemoteCodeExecution.pac")), 1);
+    p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host.does.not.matter");
+  }
+
+  /*************************************************************************
+   * Helper method to build the url to the given test file
+   *
+   * @param testFile
+   *          the name of the test file.
+   * @return the URL.
+   * @throws MalformedURLException
+   ************************************************************************/
+
+  private String toUrl(String testFile) throws MalformedURLException {
+    return new File(TestUtil.TEST_DATA_FOLDER + "pac", testFile).toURI().toURL().toString();
+  }
+
+  private static final class StringSource implements PacScriptSource {
+    private final String script;
+
+    StringSource(String script) {
+      this.script = script;
+    }
+
+    public String getName() {
+      return "test";
+    }
+
+    public String getScriptContent() {
+      return this.script;
+    }
+
+    public boolean isScriptValid() {
+      return true;
+    }
+  }
+
+}
@@ -2,7 +2,13 @@ package jp.co.fusions.win_proxy_selector.selector.pac;
 
 import java.io.File;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -146,6 +152,82 @@ public class JavaxPacScriptParserTest {
     p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host.does.not.matter");
   }
 
+  /*************************************************************************
+   * Test method
+   * 
+   * @
+   *           on proxy detection error.
+   ************************************************************************/
+  @Test
+  public void scriptShouldBeReloadedWhenContentChanges() throws ProxyEvaluationException {
+    final String[] content = { "function FindProxyForURL(url, host) { return \"PROXY \" + host + \":8080\"; }" };
+    PacScriptSource source = new PacScriptSource() {
+      public String getName() {
+        return "test";
+      }
+
+      public String getScriptContent() {
+        return content[0];
+      }
+
+      public boolean isScriptValid() {
+        return true;
+      }
+    };
+    PacScriptParser p = new JavaxPacScriptParser(source);
+    Assert.assertEquals("PROXY host1:8080", p.evaluate("http://host1/", "host1"));
+    Assert.assertEquals("PROXY host2:8080", p.evaluate("http://host2/", "host2"));
+
+    content[0] = "function FindProxyForURL(url, host) { return \"DIRECT\"; }\n"
+        + "function FindProxyForURLEx(url, host) { return \"PROXY ex:\" + url.length; }";
+    Assert.assertEquals("PROXY ex:13", p.evaluate("http://host1/", "host1"));
+  }
+
+  /*************************************************************************
+   * Test method
+   * 
+   * @throws Exception
+   *           on evaluation error.
+   ************************************************************************/
+  @Test
+  public void concurrentEvaluationsShouldUsePooledEngines() throws Exception {
+    PacScriptSource source = new PacScriptSource() {
+      public String getName() {
+        return "test";
+      }
+
+      public String getScriptContent() {
+        return "function FindProxyForURL(url, host) { var h = host; return \"PROXY \" + h + \":8080\"; }";
+      }
+
+      public boolean isScriptValid() {
+        return true;
+      }
+    };
+    final JavaxPacScriptParser p = new JavaxPacScriptParser(source, 2);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (int i = 0; i < 40; i++) {
+        final String host = "host" + i;
+        results.add(executor.submit(new Callable<Boolean>() {
+          public Boolean call() throws Exception {
+            return ("PROXY " + host + ":8080").equals(p.evaluate("http://" + host + "/", host));
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        Assert.assertTrue(result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    PacEnginePool pool = p.getEnginePool();
+    Assert.assertTrue(pool.getCreatedCount() <= 2);
+    Assert.assertEquals(40, pool.getBorrowCount());
+    Assert.assertEquals(pool.getCreatedCount(), pool.getIdleCount());
+  }
+
   /*************************************************************************
    * Helper method to build the url to the given test file
    * 
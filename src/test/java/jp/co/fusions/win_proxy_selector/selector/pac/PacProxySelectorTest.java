@@ -1,6 +1,9 @@
 package jp.co.fusions.win_proxy_selector.selector.pac;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
@@ -11,11 +14,13 @@ import java.net.Proxy.Type;
 import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.List;
 
 import org.junit.Test;
 
 import jp.co.fusions.win_proxy_selector.TestUtil;
+import jp.co.fusions.win_proxy_selector.util.ProxyUtil;
 
 /*****************************************************************************
  * Tests for the Pac script parser and proxy selector.
@@ -105,10 +110,10 @@ public class PacProxySelectorTest {
 		PacProxySelector pacProxySelector = new PacProxySelector(new UrlPacScriptSource(toUrl("testMultiProxy.pac")));
 		List<Proxy> result = pacProxySelector.select(TestUtil.HTTP_TEST_URI);
 		assertEquals(4, result.size());
-        assertEquals(new Proxy(Type.HTTP, new InetSocketAddress("my-proxy.com", 80)), result.get(0));
-        assertEquals(new Proxy(Type.HTTP, new InetSocketAddress("my-proxy2.com", 8080)), result.get(1));
-        assertEquals(new Proxy(Type.HTTP, new InetSocketAddress("my-proxy3.com", 8080)), result.get(2));
-        assertEquals(new Proxy(Type.HTTP, new InetSocketAddress("my-proxy4.com", 80)), result.get(3));
+        assertEquals(new Proxy(Type.HTTP, InetSocketAddress.createUnresolved("my-proxy.com", 80)), result.get(0));
+        assertEquals(new Proxy(Type.HTTP, InetSocketAddress.createUnresolved("my-proxy2.com", 8080)), result.get(1));
+        assertEquals(new Proxy(Type.HTTP, InetSocketAddress.createUnresolved("my-proxy3.com", 8080)), result.get(2));
+        assertEquals(new Proxy(Type.HTTP, InetSocketAddress.createUnresolved("my-proxy4.com", 80)), result.get(3));
 	}
 
 	/*************************************************************************
@@ -180,6 +185,102 @@ public class PacProxySelectorTest {
 
 	}
 
+	/*************************************************************************
+	 * Test method for the decision cache.
+	 ************************************************************************/
+	@Test
+	public void testDecisionCache() throws URISyntaxException {
+		final String[] content = { "function FindProxyForURL(url, host) { return \"PROXY \" + host + \":8080\"; }" };
+		final long[] version = { 1 };
+		PacScriptSource source = new PacScriptSource() {
+			public String getName() {
+				return "test";
+			}
+
+			public String getScriptContent() {
+				return content[0];
+			}
+
+			public boolean isScriptValid() {
+				return true;
+			}
+
+			public long getScriptVersion() {
+				return version[0];
+			}
+		};
+		PacDecisionCache cache = new PacDecisionCache(2, 60 * 1000, false);
+		PacProxySelector pacProxySelector = new PacProxySelector(source, cache);
+
+		List<Proxy> first = pacProxySelector.select(new URI("http://host1/a"));
+		List<Proxy> second = pacProxySelector.select(new URI("http://HOST1/b"));
+		assertEquals(new Proxy(Type.HTTP, InetSocketAddress.createUnresolved("host1", 8080)), first.get(0));
+		assertSame(first, second);
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+
+		// Size is capped
+		pacProxySelector.select(new URI("http://host2/"));
+		pacProxySelector.select(new URI("http://host3/"));
+		assertEquals(2, cache.size());
+
+		// New script version invalidates the cached decisions
+		content[0] = "function FindProxyForURL(url, host) { return \"DIRECT\"; }";
+		version[0]++;
+		assertEquals(Proxy.NO_PROXY, pacProxySelector.select(new URI("http://host3/")).get(0));
+		assertEquals(1, cache.size());
+	}
+
+	/*************************************************************************
+	 * Test method for the decision cache configured by system property.
+	 * 
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void testDecisionCacheProperty() throws MalformedURLException {
+		assertNull(new PacProxySelector(new UrlPacScriptSource(toUrl("test1.pac"))).getDecisionCache());
+		System.setProperty(PacDecisionCache.OVERRIDE_DECISION_CACHE, "url");
+		try {
+			PacDecisionCache cache = new PacProxySelector(new UrlPacScriptSource(toUrl("test1.pac")))
+			        .getDecisionCache();
+			assertTrue(cache.isKeyByUrl());
+			assertEquals(PacDecisionCache.DEFAULT_MAX_ENTRIES, cache.getMaxEntries());
+		} finally {
+			System.clearProperty(PacDecisionCache.OVERRIDE_DECISION_CACHE);
+		}
+	}
+
+	/*************************************************************************
+	 * Test method for the size limit of a striped decision cache.
+	 ************************************************************************/
+	@Test
+	public void testDecisionCacheSizeIsCapped() {
+		PacDecisionCache cache = new PacDecisionCache(100, 60 * 1000, false);
+		List<Proxy> proxies = ProxyUtil.noProxyList();
+		for (int i = 0; i < 1000; i++) {
+			cache.put("http://host" + i, 1, proxies);
+		}
+		assertTrue(cache.size() <= 100);
+		assertSame(proxies, cache.get("http://host999", 1));
+	}
+
+	/*************************************************************************
+	 * Test method for a lookup with an outdated script version.
+	 ************************************************************************/
+	@Test
+	public void testOlderVersionDoesNotClearDecisionCache() {
+		PacDecisionCache cache = new PacDecisionCache(100, 60 * 1000, false);
+		List<Proxy> proxies = ProxyUtil.noProxyList();
+		cache.put("http://host1", 2, proxies);
+
+		assertNull(cache.get("http://host1", 1));
+		cache.put("http://host2", 1, proxies);
+		assertNull(cache.get("http://host2", 1));
+		assertEquals(1, cache.size());
+		assertSame(proxies, cache.get("http://host1", 2));
+	}
+
 	/*************************************************************************
 	 * Helper method to build the url to the given test file
 	 * 
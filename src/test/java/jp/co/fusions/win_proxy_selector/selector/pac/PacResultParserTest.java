@@ -0,0 +1,79 @@
+package jp.co.fusions.win_proxy_selector.selector.pac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Proxy.Type;
+import java.util.List;
+
+import org.junit.Test;
+
+/*****************************************************************************
+ * Unit tests for the PAC result parser.
+ ****************************************************************************/
+
+public class PacResultParserTest {
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+
+	@Test
+	public void resultWithSeveralEntriesShouldBeParsed() {
+		List<Proxy> result = PacResultParser.parse(" PROXY p1.unit-test.invalid:8080;SOCKS5 s1.unit-test.invalid ; ;direct");
+		assertEquals(3, result.size());
+		assertEquals(new Proxy(Type.HTTP, InetSocketAddress.createUnresolved("p1.unit-test.invalid", 8080)),
+			result.get(0));
+		assertEquals(new Proxy(Type.SOCKS, InetSocketAddress.createUnresolved("s1.unit-test.invalid", 80)),
+			result.get(1));
+		assertSame(Proxy.NO_PROXY, result.get(2));
+		assertTrue(((InetSocketAddress) result.get(0).address()).isUnresolved());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+
+	@Test
+	public void repeatedResultsShouldBeShared() {
+		String pacResult = "PROXY p1.unit-test.invalid:8080; DIRECT";
+		List<Proxy> first = PacResultParser.parse(pacResult);
+		assertSame(first, PacResultParser.parse(new String(pacResult)));
+		try {
+			first.clear();
+		} catch (UnsupportedOperationException e) {
+			// Expected
+		}
+		assertEquals(2, first.size());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+
+	@Test
+	public void emptyResultShouldGiveEmptyList() {
+		assertEquals(0, PacResultParser.parse("").size());
+		assertEquals(0, PacResultParser.parse(" ; ").size());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+
+	@Test
+	public void entriesWithInvalidPortShouldBeSkipped() {
+		List<Proxy> result = PacResultParser.parse("PROXY p1.unit-test.invalid:80a; PROXY p2.unit-test.invalid:8080");
+		assertEquals(1, result.size());
+		assertEquals(new Proxy(Type.HTTP, InetSocketAddress.createUnresolved("p2.unit-test.invalid", 8080)),
+			result.get(0));
+
+		result = PacResultParser.parse("PROXY p1.unit-test.invalid:99999; PROXY p2.unit-test.invalid:");
+		assertEquals(1, result.size());
+		assertSame(Proxy.NO_PROXY, result.get(0));
+	}
+
+}
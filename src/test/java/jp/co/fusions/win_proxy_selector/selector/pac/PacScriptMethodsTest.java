@@ -10,10 +10,12 @@ import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
 import jp.co.fusions.win_proxy_selector.TestUtil;
+import jp.co.fusions.win_proxy_selector.util.DnsResolver;
 
 /*****************************************************************************
  * Tests for the global PAC script methods that are used as context inside of
@@ -233,6 +235,31 @@ public class PacScriptMethodsTest {
 		assertEquals(false, buildParser().shExpMatch("202.310.65.6", "*.65"));
 	}
 
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testShExpMatchWildcards() {
+		PacScriptMethods methods = buildParser();
+		assertEquals(true, methods.shExpMatch("aa", "*a*a"));
+		assertEquals(false, methods.shExpMatch("abcabc", "abc"));
+		assertEquals(false, methods.shExpMatch("abc", "abcabc"));
+		assertEquals(true, methods.shExpMatch("host1.unit-test.invalid", "host?.unit-test.*"));
+		assertEquals(false, methods.shExpMatch("host.unit-test.invalid", "host?.unit-test.*"));
+		assertEquals(true, methods.shExpMatch("", "*"));
+		assertEquals(false, methods.shExpMatch("a", ""));
+
+		StringBuilder longName = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			longName.append("label").append(i).append('.');
+		}
+		String host = longName + "unit-test.invalid";
+		assertEquals(true, methods.shExpMatch(host, longName + "*.invalid"));
+		assertEquals(true, methods.shExpMatch(host, "label0.*label1?.*label19.*"));
+		assertEquals(false, methods.shExpMatch(host, longName + "*.invalid.com"));
+		assertEquals(false, methods.shExpMatch(longName + "a", longName + "?a"));
+	}
+
 	/*************************************************************************
 	 * Test method
 	 ************************************************************************/
@@ -282,4 +309,37 @@ public class PacScriptMethodsTest {
 		assertEquals(false, buildParser().timeRange(12, 50, 00, 9, 30, 00, "GMT"));
 	}
 
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void hostsShouldBeResolvedOncePerEvaluation() {
+		final AtomicInteger lookups = new AtomicInteger();
+		PacScriptMethods methods = new PacScriptMethods(new DnsResolver() {
+			public InetAddress[] resolve(String host) throws UnknownHostException {
+				lookups.incrementAndGet();
+				if (!"host1.unit-test.invalid".equals(host)) {
+					throw new UnknownHostException(host);
+				}
+				return new InetAddress[] { InetAddress.getByAddress(host, new byte[] { 10, 1, 2, 3 }) };
+			}
+		});
+
+		methods.beginEvaluation();
+		try {
+			assertFalse(methods.isInNet("host1.unit-test.invalid", "192.168.0.0", "255.255.0.0"));
+			assertTrue(methods.isInNet("host1.unit-test.invalid", "10.0.0.0", "255.0.0.0"));
+			assertEquals("10.1.2.3", methods.dnsResolve("host1.unit-test.invalid"));
+			assertFalse(methods.isResolvable("intranet"));
+			assertEquals("", methods.dnsResolve("intranet"));
+		} finally {
+			methods.endEvaluation();
+		}
+		assertEquals(2, lookups.get());
+
+		// Outside of an evaluation every call asks the resolver.
+		methods.dnsResolve("host1.unit-test.invalid");
+		assertEquals(3, lookups.get());
+	}
+
 }
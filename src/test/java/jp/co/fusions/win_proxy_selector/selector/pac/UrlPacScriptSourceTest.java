@@ -1,9 +1,33 @@
 package jp.co.fusions.win_proxy_selector.selector.pac;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import jp.co.fusions.win_proxy_selector.TestUtil;
+
 import jp.co.fusions.win_proxy_selector.selector.pac.UrlPacScriptSource;
 
 /*****************************************************************************
@@ -59,4 +83,477 @@ public class UrlPacScriptSourceTest {
 		assertEquals(1000, timeout);
 	}
 
+	/*************************************************************************
+	 * Unit Test
+	 ************************************************************************/
+	@Test
+	public void testCacheControlParser() {
+		assertEquals(-1, UrlPacScriptSource.parseMaxAge(null));
+		assertEquals(-1, UrlPacScriptSource.parseMaxAge("public"));
+		assertEquals(300, UrlPacScriptSource.parseMaxAge("public, max-age=300"));
+		assertEquals(0, UrlPacScriptSource.parseMaxAge("no-cache, max-age=300"));
+		assertEquals(-1, UrlPacScriptSource.parseMaxAge("max-age=abc"));
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void unchangedScriptShouldBeRevalidated() throws Exception {
+		final String[] script = { "function FindProxyForURL(url, host) { return \"DIRECT\"; }\n" };
+		final AtomicInteger fullResponses = new AtomicInteger();
+		final AtomicInteger notModifiedResponses = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/proxy.pac", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String etag = "\"" + script[0].hashCode() + "\"";
+				exchange.getResponseHeaders().set("Cache-Control", "max-age=0");
+				exchange.getResponseHeaders().set("ETag", etag);
+				if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					notModifiedResponses.incrementAndGet();
+					exchange.sendResponseHeaders(304, -1);
+				} else {
+					fullResponses.incrementAndGet();
+					byte[] body = script[0].getBytes("ISO-8859-1");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				}
+				exchange.close();
+			}
+		});
+		server.start();
+		System.setProperty(UrlPacScriptSource.OVERRIDE_MIN_REVALIDATION_INTERVAL, "0");
+		try {
+			UrlPacScriptSource source = new UrlPacScriptSource(
+				"http://127.0.0.1:" + server.getAddress().getPort() + "/proxy.pac");
+			assertEquals(script[0], source.getScriptContent());
+			long version = source.getScriptVersion();
+
+			waitUntilExpired();
+			assertEquals(script[0], source.getScriptContent());
+			assertEquals(version, source.getScriptVersion());
+			assertEquals(1, fullResponses.get());
+			assertTrue(notModifiedResponses.get() >= 1);
+
+			script[0] = "function FindProxyForURL(url, host) { return \"PROXY p:80\"; }\n";
+			waitUntilExpired();
+			assertEquals(script[0], source.getScriptContent());
+			assertEquals(2, fullResponses.get());
+			assertTrue(source.getScriptVersion() > version);
+		} finally {
+			System.clearProperty(UrlPacScriptSource.OVERRIDE_MIN_REVALIDATION_INTERVAL);
+			server.stop(0);
+		}
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void failedRevalidationShouldKeepTheScript() throws Exception {
+		final String oldScript = "function FindProxyForURL(url, host) { return \"PROXY p:80\"; }\n";
+		final String newScript = "function FindProxyForURL(url, host) { return \"PROXY q:80\"; }\n";
+		final AtomicInteger requests = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/proxy.pac", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				int request = requests.incrementAndGet();
+				if (request == 2) {
+					exchange.sendResponseHeaders(500, -1);
+					exchange.close();
+					return;
+				}
+				exchange.getResponseHeaders().set("Cache-Control", "max-age=0");
+				byte[] body = (request == 1 ? oldScript : newScript).getBytes("ISO-8859-1");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+				exchange.close();
+			}
+		});
+		server.start();
+		System.setProperty(UrlPacScriptSource.OVERRIDE_MIN_REVALIDATION_INTERVAL, "0");
+		try {
+			UrlPacScriptSource source = new UrlPacScriptSource(
+				"http://127.0.0.1:" + server.getAddress().getPort() + "/proxy.pac");
+			assertEquals(oldScript, source.getScriptContent());
+
+			// The server fails once, the old script is kept.
+			waitUntilExpired();
+			assertEquals(oldScript, source.getScriptContent());
+			assertEquals(2, requests.get());
+
+			// The download is retried, the failure did not bump the version.
+			waitUntilExpired();
+			assertEquals(newScript, source.getScriptContent());
+			assertEquals(3, requests.get());
+			assertEquals(2, source.getScriptVersion());
+		} finally {
+			System.clearProperty(UrlPacScriptSource.OVERRIDE_MIN_REVALIDATION_INTERVAL);
+			server.stop(0);
+		}
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void uncacheableScriptShouldNotBeRevalidatedOnEveryCall() throws Exception {
+		final String script = "function FindProxyForURL(url, host) { return \"DIRECT\"; }\n";
+		final AtomicInteger requests = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/proxy.pac", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+				byte[] body = script.getBytes("ISO-8859-1");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+				exchange.close();
+			}
+		});
+		server.start();
+		try {
+			UrlPacScriptSource source = new UrlPacScriptSource(
+				"http://127.0.0.1:" + server.getAddress().getPort() + "/proxy.pac");
+			for (int i = 0; i < 5; i++) {
+				assertEquals(script, source.getScriptContent());
+				waitUntilExpired();
+			}
+			assertEquals(1, requests.get());
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void expiredScriptShouldBeRefreshedInBackground() throws Exception {
+		final String oldScript = "function FindProxyForURL(url, host) { return \"DIRECT\"; }\n";
+		final String newScript = "function FindProxyForURL(url, host) { return \"PROXY p:80\"; }\n";
+		final AtomicInteger requests = new AtomicInteger();
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		final CountDownLatch refreshStarted = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/proxy.pac", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				int running = inFlight.incrementAndGet();
+				while (true) {
+					int max = maxInFlight.get();
+					if (running <= max || maxInFlight.compareAndSet(max, running)) {
+						break;
+					}
+				}
+				try {
+					String script = oldScript;
+					if (requests.incrementAndGet() > 1) {
+						refreshStarted.countDown();
+						try {
+							release.await(5, TimeUnit.SECONDS);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						script = newScript;
+					}
+					exchange.getResponseHeaders().set("Cache-Control", "max-age=0");
+					byte[] body = script.getBytes("ISO-8859-1");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+					exchange.close();
+				} finally {
+					inFlight.decrementAndGet();
+				}
+			}
+		});
+		server.start();
+		System.setProperty(UrlPacScriptSource.OVERRIDE_MIN_REVALIDATION_INTERVAL, "0");
+		try {
+			UrlPacScriptSource source = new UrlPacScriptSource(
+				"http://127.0.0.1:" + server.getAddress().getPort() + "/proxy.pac", true);
+			assertEquals(oldScript, source.getScriptContent());
+
+			waitUntilExpired();
+			assertEquals(oldScript, source.getScriptContent());
+			assertTrue(refreshStarted.await(5, TimeUnit.SECONDS));
+			// The refresh is blocked on the server, the old script is served.
+			for (int i = 0; i < 5; i++) {
+				assertEquals(oldScript, source.getScriptContent());
+			}
+			release.countDown();
+			long deadline = System.currentTimeMillis() + 5000;
+			String content = source.getScriptContent();
+			while (!newScript.equals(content) && System.currentTimeMillis() < deadline) {
+				Thread.yield();
+				content = source.getScriptContent();
+			}
+			assertEquals(newScript, content);
+			// Only one refresh was running at a time.
+			assertTrue(requests.get() >= 2);
+			assertEquals(1, maxInFlight.get());
+		} finally {
+			System.clearProperty(UrlPacScriptSource.OVERRIDE_MIN_REVALIDATION_INTERVAL);
+			server.stop(0);
+		}
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void failedFirstLoadShouldNotBeHiddenInBackgroundMode() throws Exception {
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/proxy.pac";
+		server.stop(0);
+		UrlPacScriptSource source = new UrlPacScriptSource(url, true, null);
+		for (int i = 0; i < 2; i++) {
+			try {
+				source.getScriptContent();
+				fail("No script could be loaded.");
+			} catch (RuntimeException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+		}
+		assertFalse(source.isScriptValid());
+	}
+
+	/*************************************************************************
+	 * Waits until the clock has moved on, so that scripts loaded before with
+	 * an expiry or check interval of 0 are expired.
+	 ************************************************************************/
+
+	private static void waitUntilExpired() {
+		long loaded = System.currentTimeMillis();
+		while (System.currentTimeMillis() <= loaded) {
+			Thread.yield();
+		}
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 ************************************************************************/
+	@Test
+	public void backgroundRefreshDefaultShouldBeConfigurable() {
+		assertFalse(UrlPacScriptSource.isDefaultRefreshInBackground());
+		UrlPacScriptSource.setDefaultRefreshInBackground(true);
+		try {
+			assertTrue(UrlPacScriptSource.isDefaultRefreshInBackground());
+		} finally {
+			UrlPacScriptSource.setDefaultRefreshInBackground(false);
+		}
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void loadedScriptShouldBeReadWithoutLocking() throws Exception {
+		final UrlPacScriptSource source = new UrlPacScriptSource(
+			new File(TestUtil.TEST_DATA_FOLDER + "pac", "test1.pac").toURI().toURL().toString());
+		final String script = source.getScriptContent();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			// Writers hold the lock, readers must not need it.
+			synchronized (source) {
+				Future<String> result = executor.submit(new Callable<String>() {
+					public String call() {
+						return source.getScriptContent();
+					}
+				});
+				assertEquals(script, result.get(5, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void changedScriptFileShouldBeReloaded() throws Exception {
+		String script1 = "function FindProxyForURL(url, host) { return \"DIRECT\"; }\n";
+		String script2 = "function FindProxyForURL(url, host) { return \"PROXY \u00e4:80\"; }\n";
+		File file = File.createTempFile("proxy", ".pac");
+		System.setProperty(UrlPacScriptSource.OVERRIDE_FILE_CHECK_INTERVAL, "0");
+		try {
+			Files.write(file.toPath(), script1.getBytes("UTF-8"));
+			UrlPacScriptSource source = new UrlPacScriptSource(file.toURI().toURL().toString());
+			assertEquals(script1, source.getScriptContent());
+			long version = source.getScriptVersion();
+
+			// Touching the file without changing it keeps the version.
+			Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(file.lastModified() - 10000));
+			waitUntilExpired();
+			assertEquals(script1, source.getScriptContent());
+			assertEquals(version, source.getScriptVersion());
+
+			Files.write(file.toPath(), script2.getBytes("UTF-8"));
+			Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(file.lastModified() + 10000));
+			waitUntilExpired();
+			assertEquals(script2, source.getScriptContent());
+			assertEquals(version + 1, source.getScriptVersion());
+		} finally {
+			System.clearProperty(UrlPacScriptSource.OVERRIDE_FILE_CHECK_INTERVAL);
+			file.delete();
+		}
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void missingScriptFileShouldKeepTheScript() throws Exception {
+		String script1 = "function FindProxyForURL(url, host) { return \"PROXY p:80\"; }\n";
+		String script2 = "function FindProxyForURL(url, host) { return \"PROXY q:8080\"; }\n";
+		File file = File.createTempFile("proxy", ".pac");
+		System.setProperty(UrlPacScriptSource.OVERRIDE_FILE_CHECK_INTERVAL, "0");
+		try {
+			Files.write(file.toPath(), script1.getBytes("UTF-8"));
+			UrlPacScriptSource source = new UrlPacScriptSource(file.toURI().toURL().toString());
+			assertEquals(script1, source.getScriptContent());
+			long version = source.getScriptVersion();
+
+			// The file is replaced without an atomic move.
+			assertTrue(file.delete());
+			waitUntilExpired();
+			assertEquals(script1, source.getScriptContent());
+			assertEquals(version, source.getScriptVersion());
+
+			Files.write(file.toPath(), script2.getBytes("UTF-8"));
+			waitUntilExpired();
+			assertEquals(script2, source.getScriptContent());
+			assertEquals(version + 1, source.getScriptVersion());
+		} finally {
+			System.clearProperty(UrlPacScriptSource.OVERRIDE_FILE_CHECK_INTERVAL);
+			file.delete();
+		}
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testFileContentDecoding() throws Exception {
+		assertEquals("\u00e4", UrlPacScriptSource.decodeFileContent("\u00e4".getBytes("UTF-8")));
+		assertEquals("\u00e4", UrlPacScriptSource.decodeFileContent("\u00e4".getBytes("ISO-8859-1")));
+		assertEquals("a", UrlPacScriptSource.decodeFileContent(new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF, 'a' }));
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void diskCacheShouldBeUsedAtStartup() throws Exception {
+		final String script = "function FindProxyForURL(url, host) { return \"PROXY p:80\"; }\n";
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/proxy.pac", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().set("ETag", "\"1\"");
+				byte[] body = script.getBytes("ISO-8859-1");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+				exchange.close();
+			}
+		});
+		server.start();
+		String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/proxy.pac";
+		File cacheDir = Files.createTempDirectory("pac-cache").toFile();
+		try {
+			assertEquals(script, new UrlPacScriptSource(url, false, cacheDir).getScriptContent());
+			server.stop(0);
+
+			// The server is gone, the cached copy is served.
+			assertEquals(script, new UrlPacScriptSource(url, false, cacheDir).getScriptContent());
+
+			PacScriptDiskCache cache = new PacScriptDiskCache(cacheDir);
+			assertEquals("\"1\"", cache.load(url).entityTag);
+			File file = cache.getFile(url);
+			String stored = new String(Files.readAllBytes(file.toPath()), "ISO-8859-1");
+			Files.write(file.toPath(), stored.replace("PROXY p", "PROXY x").getBytes("ISO-8859-1"));
+			assertNull(cache.load(url));
+		} finally {
+			server.stop(0);
+			for (File file : cacheDir.listFiles()) {
+				file.delete();
+			}
+			cacheDir.delete();
+		}
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void unchangedScriptShouldNotBeWrittenToDiskCacheAgain() throws Exception {
+		String url = "http://127.0.0.1/proxy.pac";
+		String script = "function FindProxyForURL(url, host) { return \"DIRECT\"; }\n";
+		File cacheDir = Files.createTempDirectory("pac-cache").toFile();
+		try {
+			PacScriptDiskCache cache = new PacScriptDiskCache(cacheDir);
+			File file = cache.getFile(url);
+			cache.store(url, new PacScriptDiskCache.Entry(script, 1000, "\"1\"", null));
+			assertTrue(file.delete());
+
+			// A 304 response only changes the expiry.
+			cache.store(url, new PacScriptDiskCache.Entry(script, 2000, null, null));
+			cache.store(url, new PacScriptDiskCache.Entry(script, 3000, "\"1\"", null));
+			assertFalse(file.exists());
+
+			cache.store(url, new PacScriptDiskCache.Entry(script, 4000, "\"2\"", null));
+			assertEquals("\"2\"", new PacScriptDiskCache(cacheDir).load(url).entityTag);
+		} finally {
+			for (File file : cacheDir.listFiles()) {
+				file.delete();
+			}
+			cacheDir.delete();
+		}
+	}
+
 }
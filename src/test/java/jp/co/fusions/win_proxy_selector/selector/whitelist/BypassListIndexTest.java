@@ -0,0 +1,111 @@
+package jp.co.fusions.win_proxy_selector.selector.whitelist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Test;
+
+import jp.co.fusions.win_proxy_selector.util.UriFilter;
+
+/*****************************************************************************
+ * Unit tests for the compiled bypass list.
+ ****************************************************************************/
+
+public class BypassListIndexTest {
+
+	private static final String BYPASS_LIST = "*.intra.unit-test.invalid, exact.unit-test.invalid, "
+			+ "http://web.unit-test.invalid, srv*.unit-test.invalid, *a*b, ab*ab*, 192.168.0*, 10.0.0.0/8, "
+			+ "10.1.0.0/16, 172.16.0.0/12, 2001:db8::/32, <local>";
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws URISyntaxException
+	 *             on invalid URI.
+	 ************************************************************************/
+
+	@Test
+	public void matchingShouldNotDependOnTheDefaultLocale() throws URISyntaxException {
+		Locale locale = Locale.getDefault();
+		Locale.setDefault(new Locale("tr", "TR"));
+		try {
+			BypassListIndex index = new BypassListIndex(new DefaultWhiteListParser()
+				.parseWhiteList("*.INTRA.unit-test.invalid, wais://host.unit-test.invalid"));
+			assertTrue(index.accept(new URI("http://X.intra.unit-test.invalid/")));
+			assertTrue(index.accept(new URI("http://x.INTRA.unit-test.invalid/")));
+			assertTrue(index.accept(new URI("WAIS://host.unit-test.invalid/")));
+		} finally {
+			Locale.setDefault(locale);
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws URISyntaxException
+	 *             on invalid URI.
+	 ************************************************************************/
+
+	@Test
+	public void indexShouldMatchLikeTheFilters() throws URISyntaxException {
+		List<UriFilter> filters = new DefaultWhiteListParser().parseWhiteList(BYPASS_LIST);
+		BypassListIndex index = new BypassListIndex(filters);
+		List<String> uris = Arrays.asList("http://a.intra.unit-test.invalid/", "http://a.b.intra.unit-test.invalid:8080/",
+			"http://intra.unit-test.invalid/", "http://xintra.unit-test.invalid/", "http://EXACT.unit-test.invalid/",
+			"http://x.exact.unit-test.invalid/", "http://web.unit-test.invalid/", "ftp://web.unit-test.invalid/",
+			"http://srv1.unit-test.invalid/", "http://srv.unit-test.invalid/", "http://s.unit-test.invalid/",
+			"http://xaxb/", "http://ab/", "http://abab/", "http://abxabyy/", "http://abx/", "http://192.168.0.100/",
+			"http://192.168.1.100/", "http://10.2.3.4/", "http://11.2.3.4/", "http://172.31.255.255/",
+			"http://172.32.0.0/", "http://[2001:db8::1]/", "http://[2001:db9::1]/", "http://[::ffff:10.0.0.1]/",
+			"http://localhost/", "file:///tmp/test");
+		for (String uri : uris) {
+			boolean expected = false;
+			for (UriFilter filter : filters) {
+				expected |= filter.accept(new URI(uri));
+			}
+			assertEquals(uri, expected, index.accept(new URI(uri)));
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+
+	@Test
+	public void wildcardAutomatonShouldMatchCompletely() {
+		HostPatternIndex.WildcardAutomaton automaton = new HostPatternIndex.WildcardAutomaton(
+			Arrays.asList("*a*a", "abc", "x**y"));
+		assertTrue(automaton.matches("aa"));
+		assertTrue(automaton.matches("bbabba"));
+		assertTrue(automaton.matches("abc"));
+		assertTrue(automaton.matches("xy"));
+		assertTrue(automaton.matches("x-y"));
+		assertFalse(automaton.matches("abcabc"));
+		assertFalse(automaton.matches("a"));
+		assertFalse(automaton.matches("xyz"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+
+	@Test
+	public void manyWildcardsShouldSpanSeveralWords() {
+		String[] patterns = new String[40];
+		for (int i = 0; i < patterns.length; i++) {
+			patterns[i] = "host" + i + "-*.unit-test.invalid";
+		}
+		HostPatternIndex.WildcardAutomaton automaton = new HostPatternIndex.WildcardAutomaton(Arrays.asList(patterns));
+		assertTrue(automaton.matches("host39-a.unit-test.invalid"));
+		assertTrue(automaton.matches("host0-.unit-test.invalid"));
+		assertFalse(automaton.matches("host40-a.unit-test.invalid"));
+	}
+
+}
@@ -1,12 +1,16 @@
 package jp.co.fusions.win_proxy_selector.selector.whitelist;
 
 import jp.co.fusions.win_proxy_selector.TestUtil;
+import jp.co.fusions.win_proxy_selector.util.DnsResolver;
 import jp.co.fusions.win_proxy_selector.util.UriFilter;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.UnknownHostException;
 
 import org.junit.Test;
 
@@ -184,4 +188,33 @@ public class UriFilterTest {
 		assertFalse(filter.accept(new URI("http://192.168.1.100:81/test.data")));
 	}
 
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws URISyntaxException
+	 *             on invalid URL syntax.
+	 ************************************************************************/
+	@Test
+	public void testIpRangeHostNameResolution() throws URISyntaxException {
+		final int[] lookups = new int[1];
+		DnsResolver resolver = new DnsResolver() {
+			public InetAddress[] resolve(String host) throws UnknownHostException {
+				lookups[0]++;
+				return new InetAddress[] { InetAddress.getByAddress(host, new byte[] { 10, 1, 2, 3 }) };
+			}
+		};
+		URI uri = new URI("http://intranet.unit-test.invalid/test.data");
+
+		// Literal only by default.
+		assertFalse(new IpRangeFilter("10.0.0.0/8").accept(uri));
+		assertTrue(new IpRangeFilter("10.0.0.0/8").accept(new URI("http://10.1.2.3/test.data")));
+		assertFalse(new IpRangeFilter("10.0.0.0/8", null).accept(uri));
+
+		IpRangeFilter filter = new IpRangeFilter("10.0.0.0/8", resolver);
+		assertTrue(filter.accept(uri));
+		assertFalse(new IpRangeFilter("11.0.0.0/8", resolver).accept(uri));
+		assertTrue(filter.accept(new URI("http://10.1.2.3/test.data")));
+		assertEquals(2, lookups[0]);
+	}
+
 }
@@ -0,0 +1,116 @@
+package jp.co.fusions.win_proxy_selector.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import jp.co.fusions.win_proxy_selector.TestUtil;
+
+/*****************************************************************************
+ * Unit tests for the asynchronous proxy selection.
+ ****************************************************************************/
+
+public class AsyncProxySelectionTest {
+
+	private static final List<Proxy> TEST_PROXIES = Collections.singletonList(
+		new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("http_proxy.unit-test.invalid", 8090)));
+
+	/*************************************************************************
+	 * Selector blocking until released.
+	 ************************************************************************/
+
+	private static class BlockingSelector extends ProxySelector {
+		final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public List<Proxy> select(URI uri) {
+			try {
+				this.release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return TEST_PROXIES;
+		}
+
+		@Override
+		public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+			// Not used.
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	@Test
+	public void shouldCompleteWithSelectorResult() throws Exception {
+		BlockingSelector selector = new BlockingSelector();
+		selector.release.countDown();
+		List<Proxy> result = AsyncProxySelection.selectAsync(selector, TestUtil.HTTP_TEST_URI, 5000, null)
+			.get(5, TimeUnit.SECONDS);
+		assertSame(TEST_PROXIES, result);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	@Test
+	public void shouldTimeOutToDefaultDecision() throws Exception {
+		BlockingSelector selector = new BlockingSelector();
+		try {
+			long start = System.nanoTime();
+			List<Proxy> result = AsyncProxySelection
+				.selectAsync(selector, TestUtil.HTTP_TEST_URI, 100, ProxyUtil.noProxyList()).get(5, TimeUnit.SECONDS);
+			assertEquals(ProxyUtil.noProxyList(), result);
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 4000);
+		} finally {
+			selector.release.countDown();
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	@Test
+	public void shouldPropagateSelectorErrors() throws Exception {
+		ProxySelector selector = new BlockingSelector() {
+			@Override
+			public List<Proxy> select(URI uri) {
+				throw new IllegalArgumentException("Test");
+			}
+		};
+		try {
+			AsyncProxySelection.selectAsync(selector, TestUtil.HTTP_TEST_URI).get(5, TimeUnit.SECONDS);
+			fail("Exception expected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+package jp.co.fusions.win_proxy_selector.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/*****************************************************************************
+ * Unit tests for the caching DNS resolver.
+ ****************************************************************************/
+
+public class CachingDnsResolverTest {
+
+	/*************************************************************************
+	 * Resolver answering unit-test hosts with 127.0.0.1 after an optional
+	 * delay and failing for all others.
+	 ************************************************************************/
+
+	private static class CountingResolver implements DnsResolver {
+		final AtomicInteger calls = new AtomicInteger();
+		volatile CountDownLatch gate;
+
+		public InetAddress[] resolve(String host) throws UnknownHostException {
+			this.calls.incrementAndGet();
+			if (this.gate != null) {
+				try {
+					this.gate.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new UnknownHostException(host);
+				}
+			}
+			if (!host.endsWith(".unit-test.invalid")) {
+				throw new UnknownHostException(host);
+			}
+			return new InetAddress[] { InetAddress.getByAddress(host, new byte[] { 127, 0, 0, 1 }) };
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws UnknownHostException
+	 *             on resolve error.
+	 ************************************************************************/
+
+	@Test
+	public void resolvedHostsShouldBeCached() throws UnknownHostException {
+		CountingResolver delegate = new CountingResolver();
+		CachingDnsResolver resolver = new CachingDnsResolver(delegate, 60000, 60000, 10);
+		assertEquals("127.0.0.1", resolver.resolve("host1.unit-test.invalid")[0].getHostAddress());
+		assertEquals("127.0.0.1", resolver.resolve("HOST1.unit-test.invalid")[0].getHostAddress());
+		assertEquals(1, delegate.calls.get());
+		assertEquals(1, resolver.getLookupCount());
+
+		resolver.clear();
+		resolver.resolve("host1.unit-test.invalid");
+		assertEquals(2, delegate.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws InterruptedException
+	 *             on interruption.
+	 ************************************************************************/
+
+	@Test
+	public void failedLookupsShouldBeCachedSeparately() throws InterruptedException {
+		CountingResolver delegate = new CountingResolver();
+		CachingDnsResolver resolver = new CachingDnsResolver(delegate, 60000, 100, 10);
+		for (int i = 0; i < 3; i++) {
+			try {
+				resolver.resolve("intranet");
+				fail("Host should not be resolvable");
+			} catch (UnknownHostException e) {
+				// Expected
+			}
+		}
+		assertEquals(1, delegate.calls.get());
+
+		Thread.sleep(200);
+		try {
+			resolver.resolve("intranet");
+			fail("Host should not be resolvable");
+		} catch (UnknownHostException e) {
+			// Expected
+		}
+		assertEquals(2, delegate.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on resolve error.
+	 ************************************************************************/
+
+	@Test
+	public void concurrentLookupsShouldBeCoalesced() throws Exception {
+		final CountingResolver delegate = new CountingResolver();
+		delegate.gate = new CountDownLatch(1);
+		final CachingDnsResolver resolver = new CachingDnsResolver(delegate, 60000, 60000, 10);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<InetAddress[]>> results = new ArrayList<Future<InetAddress[]>>();
+			for (int i = 0; i < 4; i++) {
+				results.add(executor.submit(new Callable<InetAddress[]>() {
+					public InetAddress[] call() throws Exception {
+						return resolver.resolve("host1.unit-test.invalid");
+					}
+				}));
+			}
+			Thread.sleep(100);
+			delegate.gate.countDown();
+			for (Future<InetAddress[]> result : results) {
+				assertEquals("127.0.0.1", result.get()[0].getHostAddress());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, delegate.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws UnknownHostException
+	 *             on resolve error.
+	 ************************************************************************/
+
+	@Test
+	public void cacheShouldBeBounded() throws UnknownHostException {
+		CountingResolver delegate = new CountingResolver();
+		CachingDnsResolver resolver = new CachingDnsResolver(delegate, 60000, 60000, 2);
+		for (int i = 0; i < 10; i++) {
+			resolver.resolve("host" + i + ".unit-test.invalid");
+		}
+		assertEquals(10, delegate.calls.get());
+		resolver.resolve("host9.unit-test.invalid");
+		assertEquals(10, delegate.calls.get());
+	}
+
+}
@@ -0,0 +1,108 @@
+package jp.co.fusions.win_proxy_selector.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+/*****************************************************************************
+ * Unit tests for the CIDR range matching.
+ ****************************************************************************/
+
+public class CidrRangeTest {
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws UnknownHostException
+	 *             on invalid test address.
+	 ************************************************************************/
+
+	@Test
+	public void ipv4RangeShouldMatchMappedAddresses() throws UnknownHostException {
+		CidrRange range = CidrRange.parse("192.168.0.0/16");
+		assertTrue(range.contains(InetAddress.getByName("192.168.1.1")));
+		assertTrue(range.contains(InetAddress.getByName("::ffff:192.168.255.255")));
+		assertFalse(range.contains(InetAddress.getByName("192.169.0.0")));
+		assertFalse(range.contains(InetAddress.getByName("::192.168.1.1")));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws UnknownHostException
+	 *             on invalid test address.
+	 ************************************************************************/
+
+	@Test
+	public void mappedRangeShouldUseIpv6PrefixLength() throws UnknownHostException {
+		CidrRange range = CidrRange.parse("::ffff:192.168.0.0/112");
+		assertTrue(range.contains(InetAddress.getByName("192.168.1.1")));
+		assertTrue(range.contains(InetAddress.getByName("::ffff:192.168.255.255")));
+		assertFalse(range.contains(InetAddress.getByName("192.169.0.0")));
+
+		CidrRange host = CidrRange.parse("::ffff:10.0.0.1/128");
+		assertTrue(host.contains(InetAddress.getByName("10.0.0.1")));
+		assertFalse(host.contains(InetAddress.getByName("10.0.0.2")));
+		assertNull(CidrRange.parse("::ffff:10.0.0.1/129"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws UnknownHostException
+	 *             on invalid test address.
+	 ************************************************************************/
+
+	@Test
+	public void ipv6RangeShouldCompareBothHalves() throws UnknownHostException {
+		CidrRange range = CidrRange.parse("2001:db8::/32");
+		assertTrue(range.contains(InetAddress.getByName("2001:db8:ffff::1")));
+		assertFalse(range.contains(InetAddress.getByName("2001:db9::1")));
+
+		CidrRange host = CidrRange.parse("2001:db8::1/128");
+		assertTrue(host.contains(InetAddress.getByName("2001:db8::1")));
+		assertFalse(host.contains(InetAddress.getByName("2001:db8::2")));
+
+		CidrRange all = CidrRange.parse("::/0");
+		assertTrue(all.contains(InetAddress.getByName("10.0.0.1")));
+		assertTrue(all.contains(InetAddress.getByName("ffff::1")));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+
+	@Test
+	public void invalidRangesShouldBeRejected() {
+		assertNull(CidrRange.parse("192.168.0.0"));
+		assertNull(CidrRange.parse("192.168.0.0/33"));
+		assertNull(CidrRange.parse("192.168.0.0/-1"));
+		assertNull(CidrRange.parse("192.168.0.0/16/8"));
+		assertNull(CidrRange.parse("unit-test.invalid/16"));
+		assertNull(CidrRange.ofMask("192.168.0.0", "2001:db8::"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws UnknownHostException
+	 *             on invalid test address.
+	 ************************************************************************/
+
+	@Test
+	public void maskShouldWorkLikeIsInNet() throws UnknownHostException {
+		CidrRange range = CidrRange.ofMask("198.95.0.0", "255.255.0.0");
+		assertTrue(range.contains(InetAddress.getByName("198.95.1.2")));
+		assertFalse(range.contains(InetAddress.getByName("198.96.1.2")));
+		assertFalse(range.contains(InetAddress.getByName("2001:db8::1")));
+
+		// Pattern bits outside the mask never match.
+		assertFalse(CidrRange.ofMask("198.95.1.0", "255.255.0.0").contains(InetAddress.getByName("198.95.1.0")));
+	}
+
+}
@@ -0,0 +1,100 @@
+package jp.co.fusions.win_proxy_selector.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jp.co.fusions.win_proxy_selector.util.Logger.LogBackEnd;
+import jp.co.fusions.win_proxy_selector.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Unit tests for the level checks of the Logger.
+ ****************************************************************************/
+
+public class LoggerTest {
+
+	private LogBackEnd oldBackend;
+	private final List<String> messages = new ArrayList<String>();
+
+	@Before
+	public void setUp() {
+		this.oldBackend = Logger.getBackend();
+		Logger.setBackend(new LogBackEnd() {
+			@Override
+			public void log(Class<?> clazz, LogLevel loglevel, String msg, Object... params) {
+				LoggerTest.this.messages.add(loglevel + " " + MessageFormat.format(msg, params));
+			}
+
+			@Override
+			public boolean isEnabled(Class<?> clazz, LogLevel loglevel) {
+				return loglevel.compareTo(LogLevel.INFO) <= 0;
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		Logger.setBackend(this.oldBackend);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+
+	@Test
+	public void disabledLevelsShouldNotReachTheBackend() {
+		assertTrue(Logger.isEnabled(LoggerTest.class, LogLevel.WARNING));
+		assertFalse(Logger.isEnabled(LoggerTest.class, LogLevel.DEBUG));
+
+		Logger.log(LoggerTest.class, LogLevel.DEBUG, "hidden {0}", "a");
+		Logger.log(LoggerTest.class, LogLevel.TRACE, "hidden {0} {1} {2} {3}", "a", "b", "c", "d");
+		Logger.log(LoggerTest.class, LogLevel.INFO, "shown {0} {1}", "a", "b");
+		Logger.log(LoggerTest.class, LogLevel.ERROR, "shown");
+		assertEquals(2, this.messages.size());
+		assertEquals("INFO shown a b", this.messages.get(0));
+		assertEquals("ERROR shown", this.messages.get(1));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+
+	@Test
+	public void supplierShouldOnlyBeCalledWhenEnabled() {
+		final int[] calls = new int[1];
+		Supplier<String> expensive = new Supplier<String>() {
+			@Override
+			public String get() {
+				calls[0]++;
+				return "value";
+			}
+		};
+		Logger.log(LoggerTest.class, LogLevel.DEBUG, "hidden {0}", expensive);
+		assertEquals(0, calls[0]);
+
+		Logger.log(LoggerTest.class, LogLevel.INFO, "shown {0}", expensive);
+		assertEquals(1, calls[0]);
+		assertEquals("INFO shown value", this.messages.get(0));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+
+	@Test
+	public void nothingShouldBeEnabledWithoutBackend() {
+		Logger.setBackend(null);
+		assertFalse(Logger.isEnabled(LoggerTest.class, LogLevel.ERROR));
+		Logger.log(LoggerTest.class, LogLevel.ERROR, "dropped {0}", "a");
+	}
+
+}
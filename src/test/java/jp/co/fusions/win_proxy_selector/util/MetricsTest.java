@@ -0,0 +1,128 @@
+package jp.co.fusions.win_proxy_selector.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jp.co.fusions.win_proxy_selector.TestUtil;
+import jp.co.fusions.win_proxy_selector.selector.fixed.FixedProxySelector;
+import jp.co.fusions.win_proxy_selector.selector.misc.ProxyListFallbackSelector;
+import jp.co.fusions.win_proxy_selector.selector.pac.PacDecisionCache;
+import jp.co.fusions.win_proxy_selector.selector.pac.PacProxySelector;
+import jp.co.fusions.win_proxy_selector.selector.pac.UrlPacScriptSource;
+import jp.co.fusions.win_proxy_selector.selector.whitelist.ProxyBypassListSelector;
+
+/*****************************************************************************
+ * Unit tests for the metrics reported by the selectors.
+ ****************************************************************************/
+
+public class MetricsTest {
+
+	private InMemoryMetrics metrics;
+
+	@Before
+	public void setUp() {
+		this.metrics = new InMemoryMetrics();
+		Metrics.setBackend(this.metrics);
+	}
+
+	@After
+	public void tearDown() {
+		Metrics.setBackend(null);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+
+	@Test
+	public void timerShouldReportPercentiles() {
+		for (int i = 1; i <= 1000; i++) {
+			this.metrics.record("test", i * 1000L);
+		}
+		InMemoryMetrics.Timer timer = this.metrics.getTimer("test");
+		assertEquals(1000, timer.getCount());
+		assertEquals(1000000, timer.getMaxNanos());
+		assertEquals(500500, timer.getMeanNanos(), 0.001);
+		assertWithin(500000, timer.getPercentileNanos(50));
+		assertWithin(990000, timer.getPercentileNanos(99));
+		assertEquals(1000000, timer.getPercentileNanos(100));
+		assertNull(this.metrics.getTimer("unknown"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+
+	@Test
+	public void bucketsShouldCoverAllValues() {
+		long[] values = { 0, 1, 31, 32, 33, 63, 64, 65, 1000, 123456789, Long.MAX_VALUE };
+		for (long value : values) {
+			int bucket = InMemoryMetrics.Timer.bucketOf(value);
+			assertTrue(InMemoryMetrics.Timer.highestValueOf(bucket) >= value);
+			assertTrue(bucket == 0 || InMemoryMetrics.Timer.highestValueOf(bucket - 1) < value);
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws IOException
+	 *             on invalid test file.
+	 ************************************************************************/
+
+	@Test
+	public void selectorsShouldReportEvents() throws IOException {
+		String pacUrl = new File(TestUtil.TEST_DATA_FOLDER + "pac", "test1.pac").toURI().toURL().toString();
+		PacProxySelector pac = new PacProxySelector(new UrlPacScriptSource(pacUrl), new PacDecisionCache());
+		ProxyBypassListSelector bypass = new ProxyBypassListSelector("*.bypass.unit-test.invalid", pac);
+
+		bypass.select(URI.create("http://host.bypass.unit-test.invalid/"));
+		bypass.select(TestUtil.HTTP_TEST_URI);
+		bypass.select(TestUtil.HTTP_TEST_URI);
+
+		assertEquals(1, this.metrics.getCount(Metrics.BYPASS_HIT));
+		assertEquals(2, this.metrics.getCount(Metrics.BYPASS_MISS));
+		assertEquals(1, this.metrics.getCount(Metrics.PAC_CACHE_MISS));
+		assertEquals(1, this.metrics.getCount(Metrics.PAC_CACHE_HIT));
+		assertNotNull(this.metrics.getTimer(Metrics.PAC_EVALUATION));
+		assertEquals(1, this.metrics.getTimer(Metrics.PAC_EVALUATION).getCount());
+
+		ProxyListFallbackSelector fallback = new ProxyListFallbackSelector(
+			new FixedProxySelector(TestUtil.HTTP_TEST_PROXY));
+		fallback.connectFailed(TestUtil.HTTP_TEST_URI, InetSocketAddress.createUnresolved("proxy.unit-test.invalid", 80),
+			new IOException("test"));
+		assertEquals(1, this.metrics.getCount(Metrics.FALLBACK_PROXY_FAILED));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+
+	@Test
+	public void nothingShouldBeMeasuredWithoutBackend() {
+		Metrics.setBackend(null);
+		long start = Metrics.start();
+		assertEquals(Metrics.NOT_STARTED, start);
+		Metrics.stop(Metrics.PAC_EVALUATION, start);
+		Metrics.increment(Metrics.BYPASS_HIT);
+		assertNull(this.metrics.getTimer(Metrics.PAC_EVALUATION));
+		assertEquals(0, this.metrics.getCount(Metrics.BYPASS_HIT));
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue("expected about " + expected + " but was " + actual,
+			Math.abs(actual - expected) <= expected * 0.04);
+	}
+
+}